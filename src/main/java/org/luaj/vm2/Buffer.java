@@ -68,6 +68,11 @@ public final class Buffer {
      */
     private LuaValue value;
 
+    /**
+     * memory charged for the byte array, or null if not accounted
+     */
+    private MemoryAccount.Charge charge;
+
     /**
      * Create buffer with default capacity
      *
@@ -87,6 +92,8 @@ public final class Buffer {
         length = 0;
         offset = 0;
         value = null;
+        if (MemoryAccount.enabled)
+            charge = MemoryAccount.resize(null, this, MemoryAccount.ARRAY_HEADER_BYTES + initialCapacity);
     }
 
     /**
@@ -183,6 +190,20 @@ public final class Buffer {
         return this;
     }
 
+    /**
+     * Append the bytes of a {@link LuaString} from {@code beginIndex} up to {@code endIndex} to the buffer,
+     * without creating a substring.
+     *
+     * @return {@code this} to allow call chaining
+     */
+    public Buffer append(LuaString str, int beginIndex, int endIndex) {
+        final int n = endIndex - beginIndex;
+        makeroom(0, n);
+        str.copyInto(beginIndex, bytes, offset + length, n);
+        length += n;
+        return this;
+    }
+
     /**
      * Append a Java String to the buffer.
      * The Java string will be converted to bytes using the UTF8 encoding.
@@ -261,6 +282,8 @@ public final class Buffer {
             offset = nbefore;
             bytes = new byte[nbefore + length + nafter];
             System.arraycopy(s.m_bytes, s.m_offset, bytes, offset, length);
+            if (MemoryAccount.enabled)
+                charge = MemoryAccount.resize(charge, this, MemoryAccount.ARRAY_HEADER_BYTES + bytes.length);
         } else if (offset + length + nafter > bytes.length || offset < nbefore) {
             int n = nbefore + length + nafter;
             int m = n < 32 ? 32 : Math.max(n, length * 2);
@@ -280,6 +303,8 @@ public final class Buffer {
             System.arraycopy(bytes, offset, newBytes, newOffset, length);
             bytes = newBytes;
             offset = newOffset;
+            if (MemoryAccount.enabled)
+                charge = MemoryAccount.resize(charge, this, MemoryAccount.ARRAY_HEADER_BYTES + newSize);
         }
     }
 
@@ -0,0 +1,134 @@
+package org.luaj.vm2;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide pool of the immutable constants referenced by {@link Prototype}s.
+ * <p>
+ * {@link LoadState} and the compiler pass each {@link LuaString} and {@link LuaDouble} they create
+ * for a prototype through {@link #intern(LuaValue)}, so that loading the same script into many
+ * {@link Globals} shares one instance of each constant, string name and source name rather than
+ * holding a copy per load.
+ * <p>
+ * The pool holds its entries weakly: a constant stays pooled only while some prototype or other
+ * value still references it.  Lookups are lock-free reads of a {@link ConcurrentHashMap}, and
+ * entries whose constant has been collected are removed on the next call to {@link #intern(LuaValue)}.
+ * <p>
+ * A string that is a slice of a larger array, as {@link LoadState} makes of long strings in a chunk,
+ * is copied before it is added, so that the pool never keeps the whole array alive.
+ * <p>
+ * Doubles are pooled by their exact bits, so 0.0 and -0.0, or NaNs with different payloads,
+ * remain distinct constants.
+ *
+ * @see LoadState
+ * @see org.luaj.vm2.compiler.LuaC
+ */
+public final class ConstantPool {
+
+    private static final ConcurrentHashMap<Entry, Entry> pool = new ConcurrentHashMap<>();
+
+    private static final ReferenceQueue<LuaValue> collected = new ReferenceQueue<>();
+
+    private ConstantPool() {
+    }
+
+    /**
+     * Get the pooled instance equal to a constant, adding the constant to the pool if there is none.
+     *
+     * @param k the constant
+     * @return the pooled instance for {@link LuaString} and {@link LuaDouble} constants,
+     * or {@code k} itself for any other value
+     */
+    public static LuaValue intern(LuaValue k) {
+        if (k instanceof LuaString)
+            return intern((LuaString) k);
+        if (!(k instanceof LuaDouble))
+            return k;
+        return lookup(k, Double.hashCode(k.todouble()));
+    }
+
+    /**
+     * Get the pooled instance of a string constant, adding the string to the pool if there is none.
+     *
+     * @param s the string, which may be {@code null}
+     * @return the pooled string with the same bytes as {@code s}, or {@code null}
+     */
+    public static LuaString intern(LuaString s) {
+        if (s == null)
+            return null;
+        final int hash = s.hashCode();
+        if (s.m_offset == 0 && s.m_length == s.m_bytes.length)
+            return (LuaString) lookup(s, hash);
+        final Entry pooled = pool.get(new Entry(s, hash, null));
+        final LuaValue v = pooled != null ? pooled.get() : null;
+        if (v != null)
+            return (LuaString) v;
+        return (LuaString) lookup(LuaString.valueUsing(Arrays.copyOfRange(s.m_bytes, s.m_offset, s.m_offset + s.m_length)), hash);
+    }
+
+    /**
+     * Number of constants in the pool, including any collected but not yet removed.
+     */
+    public static int size() {
+        return pool.size();
+    }
+
+    private static LuaValue lookup(LuaValue k, int hash) {
+        expunge();
+        final Entry entry = new Entry(k, hash);
+        while (true) {
+            final Entry pooled = pool.putIfAbsent(entry, entry);
+            if (pooled == null)
+                return k;
+            final LuaValue v = pooled.get();
+            if (v != null)
+                return v;
+            // collected while we looked; drop it and try again
+            pool.remove(pooled, pooled);
+        }
+    }
+
+    private static void expunge() {
+        for (Reference<? extends LuaValue> r; (r = collected.poll()) != null; )
+            pool.remove(r, r);
+    }
+
+    /**
+     * A weak reference to a pooled constant which is equal to any other entry holding an identical constant.
+     * The hash is kept so that an entry can still be found and removed once its constant is collected.
+     */
+    private static final class Entry extends WeakReference<LuaValue> {
+        private final int hash;
+
+        Entry(LuaValue k, int hash) {
+            this(k, hash, collected);
+        }
+
+        Entry(LuaValue k, int hash, ReferenceQueue<LuaValue> queue) {
+            super(k, queue);
+            this.hash = hash;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Entry) || ((Entry) o).hash != hash)
+                return false;
+            final LuaValue a = get(), b = ((Entry) o).get();
+            if (a == null || b == null)
+                return false;
+            if (a instanceof LuaString)
+                return b instanceof LuaString && a.raweq(b);
+            return b instanceof LuaDouble &&
+                Double.doubleToRawLongBits(a.todouble()) == Double.doubleToRawLongBits(b.todouble());
+        }
+    }
+}
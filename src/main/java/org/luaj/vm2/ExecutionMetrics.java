@@ -0,0 +1,333 @@
+package org.luaj.vm2;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Counters of the work done by one {@link LuaThread} or by all threads of a {@link Globals},
+ * for finding the programs that use the most resources.
+ * <p>
+ * The counters of a Globals are in {@link Globals#metrics}, those of each of its threads in
+ * {@link LuaThread.State#metrics}; whatever is counted for a thread is counted for its Globals too.
+ * Instructions, call depth, resumes and yields are always counted, at the cost of a few field updates per call.
+ * Times and allocations are only measured once {@link #setTimed(boolean)} is called on the counters
+ * of the Globals, because reading the clocks costs more than a short call from Java into lua.
+ * They only cover the periods lua functions of a thread are running:
+ * they stop while it waits for a coroutine it resumed or for its resumer,
+ * so the figures of a thread do not include those of the coroutines it resumes.
+ * <p>
+ * The counters are updated by the thread running the code without synchronization,
+ * so a reading from another thread may be slightly out of date.  Those of a Globals only catch up with
+ * the instructions and call depth of a thread when its outermost lua call returns, when it switches
+ * coroutines, and every million or so instructions of a running loop.
+ * Each instance is also a standard MBean, see {@link #register(String)}.
+ *
+ * @see MemoryAccount
+ * @see Scheduler.Machine#cpuNanos()
+ */
+public final class ExecutionMetrics implements ExecutionMetricsMBean {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * The JVM's per-thread allocation counter, if it has one.
+     */
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocations();
+
+    /**
+     * Whether thread CPU time is sampled.  Reading it costs a few hundred nanoseconds, so it is only
+     * read for one in {@link #CPU_SAMPLE_PERIOD} periods of running lua code, and the CPU time
+     * reported is the wall clock time scaled by the ratio of CPU to wall time in those periods.
+     */
+    public static volatile boolean sampleCpuTime = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private static final int CPU_SAMPLE_PERIOD = 16;
+
+    /**
+     * The Globals counters that those of a thread add to, or null for a Globals.
+     */
+    private final ExecutionMetrics totals;
+
+    /**
+     * Whether times and allocations are measured, for the counters of a Globals.
+     */
+    private volatile boolean timed;
+
+    private long instructions;
+    private long wallNanos;
+    private long sampledWallNanos;
+    private long sampledCpuNanos;
+    private long allocatedBytes;
+    private long resumes;
+    private long yields;
+    private int maxDepth;
+
+    /**
+     * Lua frames of the thread currently running.
+     */
+    private int depth;
+
+    /**
+     * The instructions of a thread already added to its Globals.
+     */
+    private long published;
+
+    /**
+     * Whether the clocks were read when the thread last started running, so they are to be read again when it stops.
+     */
+    private boolean clocked;
+
+    /**
+     * The samples taken when the thread last started running, or -1 when not sampled.
+     */
+    private long startWall;
+    private long startCpu;
+    private long startAllocated;
+    private int periods;
+
+    private ObjectName name;
+
+    ExecutionMetrics(ExecutionMetrics totals) {
+        this.totals = totals;
+    }
+
+    private static com.sun.management.ThreadMXBean allocations() {
+        try {
+            if (THREADS instanceof com.sun.management.ThreadMXBean) {
+                final com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) THREADS;
+                if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled())
+                    return t;
+            }
+        } catch (LinkageError | UnsupportedOperationException e) {
+            // not a HotSpot runtime
+        }
+        return null;
+    }
+
+    /**
+     * Estimated number of lua VM instructions executed, counted when a loop jumps back and when a call returns.
+     */
+    public long getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * Whether times and allocations are measured for this Globals and its threads.
+     */
+    public boolean isTimed() {
+        return (totals != null ? totals : this).timed;
+    }
+
+    /**
+     * Start or stop measuring times and allocations for the Globals these counters belong to and all its threads.
+     * This takes effect as each thread next starts running lua code from Java or is resumed.
+     *
+     * @throws IllegalStateException if these are the counters of a thread rather than of a Globals
+     */
+    public void setTimed(boolean timed) {
+        if (totals != null)
+            throw new IllegalStateException("timing is set on the Globals metrics");
+        this.timed = timed;
+    }
+
+    /**
+     * Wall clock time in nanoseconds spent running lua functions, while {@link #isTimed()}.
+     */
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    /**
+     * Estimated thread CPU time in nanoseconds spent running lua functions while {@link #isTimed()},
+     * or 0 if {@link #sampleCpuTime} is not set.
+     */
+    public long getCpuNanos() {
+        final long sampled = sampledWallNanos;
+        return sampled > 0 ? (long) ((double) wallNanos * sampledCpuNanos / sampled) : 0;
+    }
+
+    /**
+     * Bytes allocated by the Java thread while running lua functions and {@link #isTimed()}, including tables and strings,
+     * or 0 if the Java runtime does not count allocations per thread.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Number of times coroutines were resumed.
+     */
+    public long getResumes() {
+        return resumes;
+    }
+
+    /**
+     * Number of times coroutines suspended, by yielding, being preempted or waiting for an asynchronous call.
+     */
+    public long getYields() {
+        return yields;
+    }
+
+    /**
+     * The deepest nesting of lua function calls reached.
+     */
+    public int getMaxCallDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Register these counters with the platform MBean server, as
+     * {@code org.luaj:type=Globals,name=<name>} for a Globals or {@code org.luaj:type=LuaThread,name=<name>} for a thread.
+     * The server keeps them, and for a thread its state, until {@link #unregister()} is called.
+     *
+     * @param name the name to register under, such as the name of the program
+     * @return the name of the MBean
+     * @throws IllegalStateException if the name is taken or the counters are already registered
+     */
+    public synchronized ObjectName register(String name) {
+        if (this.name != null)
+            throw new IllegalStateException("already registered as " + this.name);
+        try {
+            final ObjectName n = new ObjectName("org.luaj:type=" + (totals == null ? "Globals" : "LuaThread") + ",name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+            return this.name = n;
+        } catch (JMException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Remove these counters from the platform MBean server, if registered.
+     */
+    public synchronized void unregister() {
+        if (name == null)
+            return;
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (JMException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            name = null;
+        }
+    }
+
+    /**
+     * The number of lua frames of the thread currently running or suspended in a call.
+     */
+    int depth() {
+        return depth;
+    }
+
+    /**
+     * Called as a lua frame of the thread starts running.
+     */
+    void enter() {
+        if (++depth > maxDepth)
+            maxDepth = depth;
+        if (depth == 1 && isTimed())
+            start();
+    }
+
+    /**
+     * Called as a lua frame of the thread returns, throws or is suspended.
+     *
+     * @param executed the estimated instructions the frame executed not yet counted at back-edges
+     */
+    void exit(int executed) {
+        instructions += executed;
+        if (--depth == 0) {
+            publish();
+            if (clocked)
+                stop();
+        }
+    }
+
+    /**
+     * Count instructions, normally the length of a loop body as it jumps back.
+     */
+    void count(int executed) {
+        instructions += executed;
+        publish();
+    }
+
+    /**
+     * Add the instructions and call depth of a thread counted since the last call to the counters of its Globals.
+     */
+    private void publish() {
+        if (totals == null)
+            return;
+        totals.instructions += instructions - published;
+        published = instructions;
+        if (maxDepth > totals.maxDepth)
+            totals.maxDepth = maxDepth;
+    }
+
+    /**
+     * Stop the clocks while the thread hands control to another coroutine or its resumer.
+     */
+    void pause() {
+        publish();
+        if (clocked)
+            stop();
+    }
+
+    /**
+     * Restart the clocks when control comes back to the thread.
+     */
+    void unpause() {
+        if (depth > 0 && isTimed())
+            start();
+    }
+
+    void resumed() {
+        resumes++;
+        if (totals != null)
+            totals.resumes++;
+    }
+
+    void yielded() {
+        yields++;
+        if (totals != null)
+            totals.yields++;
+    }
+
+    private void start() {
+        clocked = true;
+        startWall = System.nanoTime();
+        startCpu = sampleCpuTime && periods++ % CPU_SAMPLE_PERIOD == 0 ? THREADS.getCurrentThreadCpuTime() : -1;
+        startAllocated = ALLOCATIONS != null ? ALLOCATIONS.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    private void stop() {
+        final long wall = System.nanoTime() - startWall;
+        long cpu = -1, allocated = 0;
+        if (startCpu >= 0) {
+            final long now = THREADS.getCurrentThreadCpuTime();
+            if (now >= 0)
+                cpu = now - startCpu;
+        }
+        if (startAllocated >= 0) {
+            final long now = ALLOCATIONS.getCurrentThreadAllocatedBytes();
+            if (now >= 0)
+                allocated = now - startAllocated;
+        }
+        clocked = false;
+        add(wall, cpu, allocated);
+        if (totals != null)
+            totals.add(wall, cpu, allocated);
+    }
+
+    private void add(long wall, long cpu, long allocated) {
+        wallNanos += wall;
+        if (cpu >= 0) {
+            sampledWallNanos += wall;
+            sampledCpuNanos += cpu;
+        }
+        allocatedBytes += allocated;
+    }
+}
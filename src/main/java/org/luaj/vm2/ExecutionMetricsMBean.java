@@ -0,0 +1,24 @@
+package org.luaj.vm2;
+
+/**
+ * Management interface of {@link ExecutionMetrics}.
+ */
+public interface ExecutionMetricsMBean {
+    long getInstructions();
+
+    boolean isTimed();
+
+    void setTimed(boolean timed);
+
+    long getWallNanos();
+
+    long getCpuNanos();
+
+    long getAllocatedBytes();
+
+    long getResumes();
+
+    long getYields();
+
+    int getMaxCallDepth();
+}
@@ -0,0 +1,259 @@
+package org.luaj.vm2;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Subclass of {@link LuaTable} whose contents can never change after construction.
+ * <p>
+ * A frozen table is built once from an ordinary table, normally via {@link #freeze(LuaValue)},
+ * and every attempt to write to it raises a {@link LuaError}.  Because its contents are fixed,
+ * the storage is laid out compactly: the contiguous sequence {@code 1..n} is kept in an exactly
+ * sized array, and all other keys live in an open-addressed hash with no per-entry objects.
+ * <p>
+ * All state is reachable through final fields written before the outermost constructor returns,
+ * so once {@link #freeze(LuaValue)} returns the graph may be shared between any number of
+ * {@link Globals} instances and threads without synchronization.  This is intended for
+ * configuration and lookup data; functions stored in a frozen table are shared as-is and keep
+ * the environment they were created with.
+ * <p>
+ * Keys are not frozen, since that would change their identity.  Values and metatables that are
+ * tables are frozen recursively, and weak modes are dropped so that all entries are strong.
+ *
+ * @see #freeze(LuaValue)
+ * @see org.luaj.vm2.lib.TableLib
+ */
+public final class FrozenTable extends LuaTable {
+
+    /**
+     * the values for keys {@code 1..values.length}
+     */
+    private final LuaValue[] values;
+
+    /**
+     * the keys of the hash part, null marks an empty slot
+     */
+    private final LuaValue[] hashKeys;
+
+    /**
+     * the values of the hash part, parallel to {@link #hashKeys}
+     */
+    private final LuaValue[] hashValues;
+
+    /**
+     * the frozen metatable, or null; kept here rather than in m_metatable so that it is final
+     */
+    private final LuaTable metatable;
+
+    /**
+     * Return a frozen copy of a table and all tables reachable from it as values or metatables.
+     * <p>
+     * Shared subtables and cycles are preserved: each distinct table in the graph is frozen
+     * exactly once.  Tables that are already frozen are returned unchanged.
+     *
+     * @param table the table to freeze
+     * @return the frozen table
+     * @throws LuaError if {@code table} is not a table
+     */
+    public static FrozenTable freeze(final LuaValue table) {
+        final LuaTable t = table.checktable();
+        return t instanceof FrozenTable ? (FrozenTable) t : new FrozenTable(t, new IdentityHashMap<>());
+    }
+
+    private FrozenTable(final LuaTable source, final IdentityHashMap<LuaTable, FrozenTable> frozen) {
+        frozen.put(source, this);
+
+        int narray = 0;
+        while (!source.rawget(narray + 1).isnil())
+            ++narray;
+        int nhash = 0;
+        for (Varargs n = source.next(NIL); !n.arg1().isnil(); n = source.next(n.arg1()))
+            ++nhash;
+        nhash -= narray;
+
+        // keep the load factor at or below one half so probe sequences stay short
+        final int capacity = nhash > 0 ? 1 << log2(nhash * 2) : 0;
+        values = narray > 0 ? new LuaValue[narray] : NOVALS;
+        hashKeys = capacity > 0 ? new LuaValue[capacity] : NOVALS;
+        hashValues = capacity > 0 ? new LuaValue[capacity] : NOVALS;
+
+        for (int i = 0; i < narray; ++i)
+            values[i] = frozenValue(source.rawget(i + 1), frozen);
+        for (Varargs n = source.next(NIL); !n.arg1().isnil(); n = source.next(n.arg1())) {
+            final LuaValue key = n.arg1();
+            if (key.isinttype() && key.toint() >= 1 && key.toint() <= narray)
+                continue;
+            int slot = hashSlot(key, capacity - 1);
+            while (hashKeys[slot] != null)
+                slot = (slot + 1) & (capacity - 1);
+            hashKeys[slot] = key;
+            hashValues[slot] = frozenValue(n.arg(2), frozen);
+        }
+
+        final LuaValue mt = source.getmetatable();
+        metatable = mt != null ? (LuaTable) frozenValue(mt, frozen) : null;
+    }
+
+    private static LuaValue frozenValue(final LuaValue value, final IdentityHashMap<LuaTable, FrozenTable> frozen) {
+        if (!value.istable() || value instanceof FrozenTable)
+            return value;
+        final FrozenTable f = frozen.get(value);
+        return f != null ? f : new FrozenTable((LuaTable) value, frozen);
+    }
+
+    private static LuaValue readonly() {
+        throw new LuaError("attempt to modify a frozen table");
+    }
+
+    @Override
+    protected int getArrayLength() {
+        return values.length;
+    }
+
+    @Override
+    protected int getHashLength() {
+        return hashKeys.length;
+    }
+
+    @Override
+    public LuaValue getmetatable() {
+        return metatable;
+    }
+
+    @Override
+    public LuaValue setmetatable(final LuaValue metatable) {
+        return readonly();
+    }
+
+    @Override
+    public LuaValue get(final int key) {
+        final LuaValue v = rawget(key);
+        return v.isnil() && metatable != null ? gettable(this, valueOf(key)) : v;
+    }
+
+    @Override
+    public LuaValue get(final LuaValue key) {
+        final LuaValue v = rawget(key);
+        return v.isnil() && metatable != null ? gettable(this, key) : v;
+    }
+
+    @Override
+    public LuaValue rawget(final int key) {
+        if (key > 0 && key <= values.length)
+            return values[key - 1];
+        return hashget(LuaInteger.valueOf(key));
+    }
+
+    @Override
+    public LuaValue rawget(final LuaValue key) {
+        if (key.isinttype()) {
+            final int ikey = key.toint();
+            if (ikey > 0 && ikey <= values.length)
+                return values[ikey - 1];
+        }
+        return hashget(key);
+    }
+
+    @Override
+    protected LuaValue hashget(final LuaValue key) {
+        final int slot = hashFind(key);
+        return slot >= 0 ? hashValues[slot] : NIL;
+    }
+
+    /**
+     * Find the slot holding a key in the hash part.
+     *
+     * @return the slot index, or -1 if the key is not present
+     */
+    private int hashFind(final LuaValue key) {
+        final int mask = hashKeys.length - 1;
+        if (mask < 0)
+            return -1;
+        for (int slot = hashSlot(key, mask); ; slot = (slot + 1) & mask) {
+            final LuaValue k = hashKeys[slot];
+            if (k == null)
+                return -1;
+            if (key.raweq(k))
+                return slot;
+        }
+    }
+
+    @Override
+    public void set(final int key, final LuaValue value) {
+        readonly();
+    }
+
+    @Override
+    public void set(final LuaValue key, final LuaValue value) {
+        readonly();
+    }
+
+    @Override
+    public void rawset(final int key, final LuaValue value) {
+        readonly();
+    }
+
+    @Override
+    public void rawset(final LuaValue key, final LuaValue value) {
+        readonly();
+    }
+
+    @Override
+    public void hashset(final LuaValue key, final LuaValue value) {
+        readonly();
+    }
+
+    @Override
+    public void presize(final int narray) {
+        readonly();
+    }
+
+    @Override
+    public void presize(final int narray, final int nhash) {
+        readonly();
+    }
+
+    @Override
+    public int length() {
+        if (metatable != null) {
+            final LuaValue len = len();
+            if (!len.isint()) throw new LuaError("table length is not an integer: " + len);
+            return len.toint();
+        }
+        return rawlen();
+    }
+
+    @Override
+    public int rawlen() {
+        // the array part stops at the first nil of the source, so it is always a border
+        return values.length;
+    }
+
+    @Override
+    public Varargs next(final LuaValue key) {
+        int i = 0;
+        if (!key.isnil()) {
+            if (key.isinttype() && key.toint() > 0 && key.toint() <= values.length) {
+                i = key.toint();
+            } else {
+                final int slot = hashFind(key);
+                if (slot < 0)
+                    error("invalid key to 'next': " + key);
+                i = values.length + slot + 1;
+            }
+        }
+        if (i < values.length)
+            return varargsOf(LuaInteger.valueOf(i + 1), values[i]);
+        for (i -= values.length; i < hashKeys.length; ++i)
+            if (hashKeys[i] != null)
+                return varargsOf(hashKeys[i], hashValues[i]);
+        return NIL;
+    }
+
+    @Override
+    public boolean eq_b(final LuaValue val) {
+        if (this == val) return true;
+        if (metatable == null || !val.istable()) return false;
+        final LuaValue valmt = val.getmetatable();
+        return valmt != null && LuaValue.eqmtcall(this, metatable, val, valmt);
+    }
+}
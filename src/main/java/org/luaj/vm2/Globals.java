@@ -28,6 +28,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.util.concurrent.Executor;
 
 /**
  * Global environment used by luaj.  Contains global variables referenced by executing lua.
@@ -83,6 +84,8 @@ import java.io.Reader;
  * <li>{@link #compiler} Current loaded {@link Compiler}, if any.
  * <li>{@link #undumper} Current loaded {@link Undumper}, if any.
  * <li>{@link #loader} Current loaded {@link Loader}, if any.
+ * <li>{@link #memory} Current installed {@link MemoryAccount}, if any.
+ * <li>{@link #metrics} Counters of instructions, time, allocations and coroutine switches.
  * </ul>
  *
  * <h3>Lua Environment Variables</h3>
@@ -98,6 +101,11 @@ import java.io.Reader;
  * which will be logically distinct and not interfere with each other, but share certain
  * static immutable resources such as class data and string data.
  * <p>
+ * Alternatively, once its libraries and modules are loaded, one Globals can be {@link #share() shared}
+ * by threads running functions that only read the globals, library tables and loaded modules,
+ * such as stateless request handlers.  Each Java thread then has its own main {@link LuaThread},
+ * with its own call stack, error handler and debug hooks.
+ * <p>
  *
  * @see org.luaj.vm2.lib.jse.JsePlatform
  * @see org.luaj.vm2.lib.jme.JmePlatform
@@ -131,11 +139,30 @@ public class Globals extends LuaTable {
      */
     public ResourceFinder finder;
 
+    /**
+     * The deepest nesting of lua function calls allowed in any thread, beyond which a call raises a "stack overflow" error.
+     * Calls between lua functions of this Globals keep their frames on the heap rather than the Java stack,
+     * so this is not bounded by the Java thread's stack size, only by memory.
+     */
+    public int maxCallDepth = 200000;
+
+    /**
+     * Counters of the work done by all threads of this Globals, see {@link LuaThread.State#metrics} for each thread.
+     */
+    public final ExecutionMetrics metrics = new ExecutionMetrics(null);
+
     /**
      * The currently running thread.  Should not be changed by non-library code.
+     * Once this Globals is {@link #share() shared}, it is only the main thread of the Java thread that shared it;
+     * use {@link #running()} to find the thread running on the calling Java thread.
      */
     public LuaThread running = new LuaThread(this);
 
+    /**
+     * The running thread of each Java thread, once this Globals is shared, otherwise null.
+     */
+    private ThreadLocal<Context> contexts;
+
     /**
      * The BaseLib instance loaded into this Globals
      */
@@ -151,6 +178,11 @@ public class Globals extends LuaTable {
      */
     public DebugLib debuglib;
 
+    /**
+     * The MemoryAccount charged for tables and strings allocated by this Globals, or null if allocations are not tracked
+     */
+    public MemoryAccount memory;
+
     /**
      * Interface for module that converts a Prototype into a LuaFunction with an environment.
      */
@@ -209,6 +241,28 @@ public class Globals extends LuaTable {
      */
     public Undumper undumper;
 
+    /**
+     * Starts the Java threads that run the coroutines of these globals.
+     *
+     * @see LuaThread#DEFAULT_CARRIER
+     * @see LuaThread#POOLED_CARRIER
+     * @see LuaThread#PLATFORM_CARRIER
+     */
+    public Executor carrier = LuaThread.DEFAULT_CARRIER;
+
+    /**
+     * When true, coroutines whose body is a {@link LuaClosure} run on the Java thread that resumes them
+     * instead of on a carrier thread.  A yield then saves the suspended interpreter frames on the heap,
+     * so it must be reached through calls of lua functions, generic {@code for} iterators,
+     * {@code pcall} and {@code xpcall} only.  Every other path crosses a Java call that cannot be
+     * suspended, and a yield there raises "attempt to yield across a C-call boundary" and ends the coroutine:
+     * unlike C lua, this includes all metamethods, such as {@code __index}, {@code __newindex}, {@code __call},
+     * the arithmetic and comparison ones, {@code __concat} and {@code __len}, as well as, like C lua,
+     * {@code table.sort} comparators, {@code string.gsub} callbacks and functions called by any other Java function.
+     * Coroutines whose body is a Java function still use the {@link #carrier}.
+     */
+    public boolean stackless;
+
     /**
      * Convenience function for loading a file that is either binary lua or lua source.
      *
@@ -358,6 +412,91 @@ public class Globals extends LuaTable {
         return compiler.compile(stream, chunkname);
     }
 
+    /**
+     * Let lua functions of this Globals be called from several Java threads at once.
+     * <p>
+     * Each Java thread that calls into a shared Globals gets its own main {@link LuaThread}, so the
+     * state of a running call (the running coroutine, the error handler set by {@code xpcall},
+     * the call stack and hooks of the debug library, the depth and counters of calls) is kept per thread,
+     * and the coroutines a thread resumes run in its context.  {@code require} is serialized,
+     * so a module is loaded once even if several threads require it at the same time.
+     * <p>
+     * Tables are not synchronized, so the functions run in parallel must only read this Globals,
+     * the library tables and the loaded modules, keeping their own state in locals, arguments and
+     * the tables they create.  Data that must never change can be frozen with {@link FrozenTable#freeze(LuaValue)}.
+     * Fields such as {@link #STDOUT}, {@link #finder} or {@link #stackless} should be set before sharing,
+     * and the Globals then handed to the other threads through a happens-before edge,
+     * such as submitting a task to an executor.
+     * The counters of {@link #metrics} are updated by all threads without synchronization, so they are approximate.
+     *
+     * @return this Globals
+     */
+    public Globals share() {
+        if (contexts == null) {
+            final Context main = new Context(running);
+            contexts = ThreadLocal.withInitial(() -> new Context(new LuaThread(this)));
+            contexts.set(main);
+        }
+        return this;
+    }
+
+    /**
+     * Whether {@link #share()} has been called.
+     */
+    public boolean isShared() {
+        return contexts != null;
+    }
+
+    /**
+     * The thread currently running on the calling Java thread: the same as {@link #running}
+     * unless this Globals is {@link #share() shared}.
+     */
+    public LuaThread running() {
+        final ThreadLocal<Context> c = contexts;
+        return c == null ? running : c.get().running;
+    }
+
+    void setRunning(LuaThread thread) {
+        final ThreadLocal<Context> c = contexts;
+        if (c == null)
+            running = thread;
+        else
+            c.get().running = thread;
+    }
+
+    /**
+     * The context of the calling Java thread in a shared Globals, or null.
+     */
+    Context context() {
+        final ThreadLocal<Context> c = contexts;
+        return c != null ? c.get() : null;
+    }
+
+    /**
+     * Run the calling Java thread in a context taken from another one, as the carrier of a coroutine does
+     * for the thread resuming it, or drop the context it had when null.
+     */
+    void bind(Context context) {
+        final ThreadLocal<Context> c = contexts;
+        if (c == null)
+            return;
+        if (context != null)
+            c.set(context);
+        else
+            c.remove();
+    }
+
+    /**
+     * The running state of a Java thread in a shared Globals, taken on by the carriers of the coroutines it resumes.
+     */
+    static final class Context {
+        LuaThread running;
+
+        Context(LuaThread running) {
+            this.running = running;
+        }
+    }
+
     /**
      * Function which yields the current thread.
      *
@@ -365,9 +504,10 @@ public class Globals extends LuaTable {
      * @return Values supplied as arguments to the resume() call that reactivates this thread.
      */
     public Varargs yield(Varargs args) {
-        if (running == null || running.isMainThread())
+        // no reference to the LuaThread is kept while suspended, so that an orphaned coroutine can be collected
+        final LuaThread.State s = running() != null ? running().state : null;
+        if (s == null || s.function == null)
             throw new LuaError("cannot yield main thread");
-        final LuaThread.State s = running.state;
         return s.lua_yield(args);
     }
 
@@ -21,9 +21,12 @@
  ******************************************************************************/
 package org.luaj.vm2;
 
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 
 /**
@@ -75,6 +78,16 @@ import java.io.InputStream;
  * LuaClosure c = new LuaClosure(p, globals);
  * c.call();
  * } </pre>
+ * <p>
+ * Chunks are decoded from a {@link ByteBuffer}, which may also be supplied directly,
+ * for example a memory-mapped file, via {@link #undump(ByteBuffer, String)}.
+ * Instruction and line arrays are read in bulk through an {@link java.nio.IntBuffer} view
+ * in the byte order of the chunk.
+ * <p>
+ * In lazy mode, see {@link #undump(ByteBuffer, String, boolean)} and {@link #lazyInstance},
+ * the code and constants of nested functions are kept as offsets into the chunk and decoded by
+ * {@link Prototype#materialize()} when they are first called, and debug information is decoded by
+ * {@link Prototype#materializeDebug()} when it is first needed.
  *
  * @see Globals.Compiler
  * @see Globals.Undumper
@@ -90,7 +103,14 @@ public class LoadState {
     /**
      * Shared instance of Globals.Undumper to use loading prototypes from binary lua files
      */
-    public static final Globals.Undumper instance = new GlobalsUndumper();
+    public static final Globals.Undumper instance = new GlobalsUndumper(false);
+
+    /**
+     * Shared instance of Globals.Undumper that loads nested functions and debug information lazily.
+     *
+     * @see #undump(ByteBuffer, String, boolean)
+     */
+    public static final Globals.Undumper lazyInstance = new GlobalsUndumper(true);
 
     /**
      * format corresponding to non-number-patched lua, all numbers are floats or doubles
@@ -169,9 +189,19 @@ public class LoadState {
     private int luacNumberFormat;
 
     /**
-     * input stream from which we are loading
+     * Strings longer than this are looked up in the pool as slices of a heap buffer instead of being copied first.
+     */
+    private static final int SHARED_STRING_LENGTH = 32;
+
+    /**
+     * buffer from which we are loading, in the byte order of the chunk once the header has been read
      */
-    public final DataInputStream is;
+    private final ByteBuffer buffer;
+
+    /**
+     * whether nested functions and debug info are left in the buffer until first used
+     */
+    private final boolean lazy;
 
     /**
      * Name of what is being loaded?
@@ -184,11 +214,6 @@ public class LoadState {
     private static final Upvaldesc[] NOUPVALDESCS = { };
     private static final int[] NOINTS = { };
 
-    /**
-     * Read buffer
-     */
-    private byte[] buf = new byte[512];
-
     /**
      * Install this class as the standard Globals.Undumper for the supplied Globals
      */
@@ -197,70 +222,78 @@ public class LoadState {
     }
 
     /**
-     * Load a 4-byte int value from the input stream
+     * Load a single byte from the chunk
+     *
+     * @return the byte value, sign extended
+     **/
+    int loadByte() {
+        return buffer.get();
+    }
+
+    /**
+     * Load a 4-byte int value from the chunk
      *
      * @return the int value laoded.
      **/
-    int loadInt() throws IOException {
-        is.readFully(buf, 0, 4);
-        return luacLittleEndian ?
-            (buf[3] << 24) | ((0xff & buf[2]) << 16) | ((0xff & buf[1]) << 8) | (0xff & buf[0]) :
-            (buf[0] << 24) | ((0xff & buf[1]) << 16) | ((0xff & buf[2]) << 8) | (0xff & buf[3]);
+    int loadInt() {
+        return buffer.getInt();
     }
 
     /**
-     * Load an array of int values from the input stream
+     * Load an array of int values from the chunk
      *
      * @return the array of int values laoded.
      **/
-    int[] loadIntArray() throws IOException {
+    int[] loadIntArray() {
         int n = loadInt();
         if (n == 0)
             return NOINTS;
 
-        // read all data at once
-        int m = n << 2;
-        if (buf.length < m)
-            buf = new byte[m];
-        is.readFully(buf, 0, m);
+        // decode all values at once through a view in the chunk's byte order
         int[] array = new int[n];
-        for (int i = 0, j = 0; i < n; ++i, j += 4)
-            array[i] = luacLittleEndian ?
-                (buf[j + 3] << 24) | ((0xff & buf[j + 2]) << 16) | ((0xff & buf[j + 1]) << 8) | (0xff & buf[j]) :
-                (buf[j] << 24) | ((0xff & buf[j + 1]) << 16) | ((0xff & buf[j + 2]) << 8) | (0xff & buf[j + 3]);
-
+        buffer.asIntBuffer().get(array);
+        buffer.position(buffer.position() + (n << 2));
         return array;
     }
 
     /**
-     * Load a long  value from the input stream
+     * Load a long  value from the chunk
      *
      * @return the long value laoded.
      **/
-    long loadInt64() throws IOException {
-        int a, b;
-        if (this.luacLittleEndian) {
-            a = loadInt();
-            b = loadInt();
-        } else {
-            b = loadInt();
-            a = loadInt();
-        }
-        return (((long) b) << 32) | (((long) a) & 0xffffffffL);
+    long loadInt64() {
+        return buffer.getLong();
     }
 
     /**
-     * Load a lua strin gvalue from the input stream
+     * Load a lua strin gvalue from the chunk
+     * <p>
+     * Long strings in a buffer with an accessible backing array are read as slices of that array,
+     * so a string already in the {@link ConstantPool} is found without copying;
+     * the pool copies any slice it adds.
      *
      * @return the {@link LuaString} value laoded.
      **/
-    LuaString loadString() throws IOException {
+    LuaString loadString() {
         int size = this.luacSizeofSizeT == 8 ? (int) loadInt64() : loadInt();
         if (size == 0)
             return null;
-        byte[] bytes = new byte[size];
-        is.readFully(bytes, 0, size);
-        return LuaString.valueUsing(bytes, 0, bytes.length - 1);
+        if (size < 0 || size > buffer.remaining())
+            throw new BufferUnderflowException();
+        final int len = size - 1;
+        final LuaString s;
+        if (buffer.hasArray()) {
+            final int off = buffer.arrayOffset() + buffer.position();
+            s = len > SHARED_STRING_LENGTH ?
+                LuaString.valueUsing(buffer.array(), off, len) :
+                LuaString.valueOf(buffer.array(), off, len);
+        } else {
+            final byte[] bytes = new byte[len];
+            buffer.get(buffer.position(), bytes);
+            s = LuaString.valueUsing(bytes);
+        }
+        buffer.position(buffer.position() + size);
+        return ConstantPool.intern(s);
     }
 
     /**
@@ -293,9 +326,8 @@ public class LoadState {
      * Load a number from a binary chunk
      *
      * @return the {@link LuaValue} loaded
-     * @throws IOException if an i/o exception occurs
      */
-    LuaValue loadNumber() throws IOException {
+    LuaValue loadNumber() {
         if (luacNumberFormat == NUMBER_FORMAT_INTS_ONLY) {
             return LuaInteger.valueOf(loadInt());
         } else {
@@ -307,17 +339,16 @@ public class LoadState {
      * Load a list of constants from a binary chunk
      *
      * @param f the function prototype
-     * @throws IOException if an i/o exception occurs
      */
-    void loadConstants(Prototype f) throws IOException {
+    void loadConstants(Prototype f) {
         int n = loadInt();
         LuaValue[] values = n > 0 ? new LuaValue[n] : NOVALUES;
         for (int i = 0; i < n; i++) {
-            switch (is.readByte()) {
+            switch (loadByte()) {
                 case LUA_TNIL -> values[i] = LuaValue.NIL;
-                case LUA_TBOOLEAN -> values[i] = (0 != is.readUnsignedByte() ? LuaValue.TRUE : LuaValue.FALSE);
+                case LUA_TBOOLEAN -> values[i] = (0 != loadByte() ? LuaValue.TRUE : LuaValue.FALSE);
                 case LUA_TINT -> values[i] = LuaInteger.valueOf(loadInt());
-                case LUA_TNUMBER -> values[i] = loadNumber();
+                case LUA_TNUMBER -> values[i] = ConstantPool.intern(loadNumber());
                 case LUA_TSTRING -> values[i] = loadString();
                 default -> throw new IllegalStateException("bad constant");
             }
@@ -327,17 +358,17 @@ public class LoadState {
         n = loadInt();
         Prototype[] protos = n > 0 ? new Prototype[n] : NOPROTOS;
         for (int i = 0; i < n; i++)
-            protos[i] = loadFunction(f.source);
+            protos[i] = lazy ? deferFunction() : loadFunction(f.source);
         f.p = protos;
     }
 
 
-    void loadUpvalues(Prototype f) throws IOException {
+    void loadUpvalues(Prototype f) {
         int n = loadInt();
         f.upvalues = n > 0 ? new Upvaldesc[n] : NOUPVALDESCS;
         for (int i = 0; i < n; i++) {
-            boolean instack = is.readByte() != 0;
-            int idx = ((int) is.readByte()) & 0xff;
+            boolean instack = loadByte() != 0;
+            int idx = loadByte() & 0xff;
             f.upvalues[i] = new Upvaldesc(null, instack, idx);
         }
     }
@@ -346,10 +377,24 @@ public class LoadState {
      * Load the debug info for a function prototype
      *
      * @param f the function Prototype
-     * @throws IOException if there is an i/o exception
      */
-    void loadDebug(Prototype f) throws IOException {
+    void loadDebug(Prototype f) {
         f.source = loadString();
+        if (lazy) {
+            f.chunk = this;
+            f.debugOffset = buffer.position();
+            skipDebugInfo();
+        } else {
+            loadDebugInfo(f);
+        }
+    }
+
+    /**
+     * Load the line info, local variables and upvalue names for a function prototype
+     *
+     * @param f the function Prototype
+     */
+    void loadDebugInfo(Prototype f) {
         f.lineinfo = loadIntArray();
         int n = loadInt();
         f.locvars = n > 0 ? new LocVars[n] : NOLOCVARS;
@@ -366,19 +411,18 @@ public class LoadState {
     }
 
     /**
-     * Load a function prototype from the input stream
+     * Load a function prototype from the chunk
      *
      * @param p name of the source
      * @return {@link Prototype} instance that was loaded
-     * @throws IOException
      */
-    public Prototype loadFunction(LuaString p) throws IOException {
+    public Prototype loadFunction(LuaString p) {
         Prototype f = new Prototype();
         f.linedefined = loadInt();
         f.lastlinedefined = loadInt();
-        f.numparams = is.readUnsignedByte();
-        f.is_vararg = is.readUnsignedByte();
-        f.maxstacksize = is.readUnsignedByte();
+        f.numparams = loadByte() & 0xff;
+        f.is_vararg = loadByte() & 0xff;
+        f.maxstacksize = loadByte() & 0xff;
         f.code = loadIntArray();
         loadConstants(f);
         loadUpvalues(f);
@@ -391,33 +435,135 @@ public class LoadState {
     }
 
     /**
-     * Load the lua chunk header values.
+     * Load the fixed fields, upvalues and source of a nested function prototype and skip the rest,
+     * which is decoded by {@link Prototype#materialize()} and {@link Prototype#materializeDebug()} when first used.
+     *
+     * @return {@link Prototype} instance whose code and debug info are still in the chunk
+     */
+    Prototype deferFunction() {
+        Prototype f = new Prototype();
+        f.linedefined = loadInt();
+        f.lastlinedefined = loadInt();
+        f.numparams = loadByte() & 0xff;
+        f.is_vararg = loadByte() & 0xff;
+        f.maxstacksize = loadByte() & 0xff;
+        f.chunk = this;
+        f.bodyOffset = buffer.position();
+        skipCode();
+        loadUpvalues(f);
+        f.source = loadString();
+        f.debugOffset = buffer.position();
+        skipDebugInfo();
+        return f;
+    }
+
+    /**
+     * Load the deferred code, constants and nested functions of a function prototype
      *
-     * @throws IOException if an i/o exception occurs.
-     */
-    public void loadHeader() throws IOException {
-        luacVersion = is.readByte();
-        luacFormat = is.readByte();
-        luacLittleEndian = (0 != is.readByte());
-        luacSizeofInt = is.readByte();
-        luacSizeofSizeT = is.readByte();
-        luacSizeofInstruction = is.readByte();
-        luacSizeofLuaNumber = is.readByte();
-        luacNumberFormat = is.readByte();
+     * @param f the function Prototype
+     */
+    void loadBody(Prototype f) {
+        LoadState s = new LoadState(this, f.bodyOffset);
+        f.code = s.loadIntArray();
+        s.loadConstants(f);
+    }
+
+    /**
+     * Load the deferred debug info of a function prototype
+     *
+     * @param f the function Prototype
+     */
+    void loadDeferredDebug(Prototype f) {
+        new LoadState(this, f.debugOffset).loadDebugInfo(f);
+    }
+
+    private void skip(long n) {
+        if (n < 0 || n > buffer.remaining())
+            throw new BufferUnderflowException();
+        buffer.position(buffer.position() + (int) n);
+    }
+
+    private void skipString() {
+        skip(this.luacSizeofSizeT == 8 ? loadInt64() : loadInt());
+    }
+
+    /**
+     * Skip the code, constants and nested functions of a function
+     */
+    private void skipCode() {
+        skip((long) loadInt() << 2);
+        for (int n = loadInt(); n > 0; n--) {
+            switch (loadByte()) {
+                case LUA_TNIL -> { }
+                case LUA_TBOOLEAN -> skip(1);
+                case LUA_TINT -> skip(4);
+                case LUA_TNUMBER -> skip(luacNumberFormat == NUMBER_FORMAT_INTS_ONLY ? 4 : 8);
+                case LUA_TSTRING -> skipString();
+                default -> throw new IllegalStateException("bad constant");
+            }
+        }
+        for (int n = loadInt(); n > 0; n--) {
+            skip(11);
+            skipCode();
+            skip((long) loadInt() << 1);
+            skipString();
+            skipDebugInfo();
+        }
+    }
+
+    private void skipDebugInfo() {
+        skip((long) loadInt() << 2);
+        for (int n = loadInt(); n > 0; n--) {
+            skipString();
+            skip(8);
+        }
+        for (int n = loadInt(); n > 0; n--)
+            skipString();
+    }
+
+    /**
+     * Load the lua chunk header values, and switch to the byte order of the chunk.
+     */
+    public void loadHeader() {
+        luacVersion = loadByte();
+        luacFormat = loadByte();
+        luacLittleEndian = (0 != loadByte());
+        luacSizeofInt = loadByte();
+        luacSizeofSizeT = loadByte();
+        luacSizeofInstruction = loadByte();
+        luacSizeofLuaNumber = loadByte();
+        luacNumberFormat = loadByte();
         for (int i = 0; i < LUAC_TAIL.length; ++i)
-            if (is.readByte() != LUAC_TAIL[i])
+            if (loadByte() != LUAC_TAIL[i])
                 throw new LuaError("Unexpeted byte in luac tail of header, index=" + i);
+        buffer.order(luacLittleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
     }
 
     /**
      * Load input stream as a lua binary chunk if the first 4 bytes are the lua binary signature.
+     * <p>
+     * The rest of the stream is read into memory and decoded with {@link #undump(ByteBuffer, String)}.
      *
-     * @param stream    InputStream to read, after having read the first byte already
+     * @param stream    InputStream to read, positioned at the start of the chunk
      * @param chunkname Name to apply to the loaded chunk
      * @return {@link Prototype} that was loaded, or null if the first 4 bytes were not the lua signature.
      * @throws IOException if an IOException occurs
      */
     public static Prototype undump(InputStream stream, String chunkname) throws IOException {
+        return undump(stream, chunkname, false);
+    }
+
+    /**
+     * Load input stream as a lua binary chunk, optionally in lazy mode.
+     *
+     * @param stream    InputStream to read, positioned at the start of the chunk
+     * @param chunkname Name to apply to the loaded chunk
+     * @param lazy      true to defer decoding nested functions and debug info until they are used
+     * @return {@link Prototype} that was loaded, or null if the first 4 bytes were not the lua signature.
+     * @throws IOException if an IOException occurs
+     * @see #undump(ByteBuffer, String, boolean)
+     */
+    public static Prototype undump(InputStream stream, String chunkname, boolean lazy) throws IOException {
         // check rest of signature
         if (stream.read() != LUA_SIGNATURE[0]
             || stream.read() != LUA_SIGNATURE[1]
@@ -425,21 +571,75 @@ public class LoadState {
             || stream.read() != LUA_SIGNATURE[3])
             return null;
 
+        return load(ByteBuffer.wrap(stream.readAllBytes()), chunkname, lazy);
+    }
+
+    /**
+     * Load the contents of a buffer as a lua binary chunk if they start with the lua binary signature.
+     * <p>
+     * The chunk is read from the position of the buffer, which is left unchanged, as are its limit and byte order.
+     * When the buffer is backed by an accessible array, long string constants share that array,
+     * which must therefore not be modified afterwards.  Other buffers, such as memory-mapped files,
+     * are copied from.
+     *
+     * @param chunk     ByteBuffer holding the chunk
+     * @param chunkname Name to apply to the loaded chunk
+     * @return {@link Prototype} that was loaded, or null if the first 4 bytes were not the lua signature.
+     * @throws IOException if the chunk is truncated
+     */
+    public static Prototype undump(ByteBuffer chunk, String chunkname) throws IOException {
+        return undump(chunk, chunkname, false);
+    }
+
+    /**
+     * Load the contents of a buffer as a lua binary chunk, optionally in lazy mode.
+     * <p>
+     * In lazy mode only the main function is decoded.  The chunk is still checked from end to end,
+     * so a truncated chunk is reported here, but nested functions keep only their source, line range and upvalues
+     * until {@link Prototype#materialize()} decodes them when they are first called, and the line info,
+     * local variables and upvalue names of every function are decoded by {@link Prototype#materializeDebug()}.
+     * The prototypes then keep a reference to the buffer, whose contents must not change.
+     *
+     * @param chunk     ByteBuffer holding the chunk
+     * @param chunkname Name to apply to the loaded chunk
+     * @param lazy      true to defer decoding nested functions and debug info until they are used
+     * @return {@link Prototype} that was loaded, or null if the first 4 bytes were not the lua signature.
+     * @throws IOException if the chunk is truncated
+     * @see #undump(ByteBuffer, String)
+     */
+    public static Prototype undump(ByteBuffer chunk, String chunkname, boolean lazy) throws IOException {
+        final ByteBuffer b = chunk.slice();
+        if (b.remaining() < LUA_SIGNATURE.length)
+            return null;
+        for (int i = 0; i < LUA_SIGNATURE.length; ++i)
+            if (b.get() != LUA_SIGNATURE[i])
+                return null;
+        return load(b, chunkname, lazy);
+    }
+
+    /**
+     * Load a chunk from a buffer positioned just after its signature.
+     */
+    private static Prototype load(ByteBuffer chunk, String chunkname, boolean lazy) throws IOException {
         // load file as a compiled chunk
         String sname = getSourceName(chunkname);
-        LoadState s = new LoadState(stream, sname);
-        s.loadHeader();
-
-        // check format
-        switch (s.luacNumberFormat) {
-            case NUMBER_FORMAT_FLOATS_OR_DOUBLES:
-            case NUMBER_FORMAT_INTS_ONLY:
-            case NUMBER_FORMAT_NUM_PATCH_INT32:
-                break;
-            default:
-                throw new LuaError("unsupported int size");
+        LoadState s = new LoadState(chunk, sname, lazy);
+        try {
+            s.loadHeader();
+
+            // check format
+            switch (s.luacNumberFormat) {
+                case NUMBER_FORMAT_FLOATS_OR_DOUBLES:
+                case NUMBER_FORMAT_INTS_ONLY:
+                case NUMBER_FORMAT_NUM_PATCH_INT32:
+                    break;
+                default:
+                    throw new LuaError("unsupported int size");
+            }
+            return s.loadFunction(LuaString.valueOf(sname));
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("truncated binary chunk " + sname);
         }
-        return s.loadFunction(LuaString.valueOf(sname));
     }
 
     /**
@@ -460,15 +660,37 @@ public class LoadState {
     /**
      * Private constructor for create a load state
      */
-    private LoadState(InputStream stream, String name) {
+    private LoadState(ByteBuffer buffer, String name, boolean lazy) {
         this.name = name;
-        this.is = new DataInputStream(stream);
+        this.buffer = buffer;
+        this.lazy = lazy;
+    }
+
+    /**
+     * Create a load state for deferred parts of a chunk, at an offset in its buffer
+     */
+    private LoadState(LoadState chunk, int offset) {
+        this(chunk.buffer.duplicate().order(chunk.buffer.order()).position(offset), chunk.name, true);
+        this.luacVersion = chunk.luacVersion;
+        this.luacFormat = chunk.luacFormat;
+        this.luacLittleEndian = chunk.luacLittleEndian;
+        this.luacSizeofInt = chunk.luacSizeofInt;
+        this.luacSizeofSizeT = chunk.luacSizeofSizeT;
+        this.luacSizeofInstruction = chunk.luacSizeofInstruction;
+        this.luacSizeofLuaNumber = chunk.luacSizeofLuaNumber;
+        this.luacNumberFormat = chunk.luacNumberFormat;
     }
 
     private static final class GlobalsUndumper implements Globals.Undumper {
+        private final boolean lazy;
+
+        GlobalsUndumper(boolean lazy) {
+            this.lazy = lazy;
+        }
+
         public Prototype undump(InputStream stream, String chunkname)
             throws IOException {
-            return LoadState.undump(stream, chunkname);
+            return LoadState.undump(stream, chunkname, lazy);
         }
     }
 }
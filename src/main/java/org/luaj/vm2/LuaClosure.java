@@ -21,8 +21,13 @@
  ******************************************************************************/
 package org.luaj.vm2;
 
+import org.luaj.vm2.lib.AsyncFunction;
+import org.luaj.vm2.lib.BaseLib;
+import org.luaj.vm2.lib.CoroutineLib;
 import org.luaj.vm2.lib.DebugLib.CallFrame;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Extension of {@link LuaFunction} which executes lua bytecode.
  * <p>
@@ -202,23 +207,101 @@ public class LuaClosure extends LuaFunction {
     }
 
     protected Varargs execute(LuaValue[] stack, Varargs varargs) {
+        return execute(stack, varargs, null, null);
+    }
+
+    /**
+     * Execute the bytecode, or continue a frame of a suspended stackless coroutine
+     * by completing its pending call with the values passed to resume.
+     * <p>
+     * Tail calls to closures of the same globals, and calls to them once the thread is {@link #HEAP_CALL_DEPTH}
+     * calls deep, do not recurse on the Java stack: the calling frame is kept on the heap, linked from the callee,
+     * and the callee runs in this same loop until it returns to it.
+     */
+    private Varargs execute(LuaValue[] stack, Varargs varargs, Frame resumed, Varargs resumeArgs) {
         // loop through instructions
         int i, a, b, c, pc = 0, top = 0;
         LuaValue o;
         Varargs v = NONE;
-        int[] code = p.code;
+
+        // the running frame's closure, and the frames of this loop waiting for it to return
+        LuaClosure cl = this;
+        Frame caller = null;
+
+        int[] code = p.materialize().code;
         LuaValue[] k = p.k;
 
         // upvalues are only possible when closures create closures
         // TODO: use linked list.
         UpValue[] openups = p.p.length > 0 ? new UpValue[stack.length] : null;
 
+        // the coroutine state when this frame can be suspended by a stackless yield
+        final LuaThread.State running = globals != null ? globals.running().state : null;
+        final LuaThread.State co = running != null ? running.enter() : null;
+        final ExecutionMetrics metrics = running != null ? running.metrics : null;
+        if (metrics != null && metrics.depth() >= globals.maxCallDepth)
+            throw new LuaError("stack overflow");
+        // instructions counted at back-edges, less the pc the frame started at
+        int steps = resumed != null ? -resumed.pc : 0;
+        boolean suspended = false;
+        if (resumed != null) {
+            pc = resumed.pc;
+            top = resumed.top;
+            v = resumed.v;
+            openups = resumed.openups;
+        }
+
+        // charge allocations to this closure's globals while it runs
+        final MemoryAccount account = globals != null ? globals.memory : null;
+        final MemoryAccount outerAccount = account != null ? MemoryAccount.enter(account) : null;
+
         // allow for debug hooks
         if (globals != null && globals.debuglib != null)
             globals.debuglib.onCall(this, varargs, stack);
+        if (metrics != null)
+            metrics.enter();
 
         // process instructions
         try {
+            if (resumed != null) {
+                // continue the plain calls below this frame as frames of this loop rather than by recursion,
+                // so a coroutine suspended deep in recursion can be resumed on a small Java stack
+                while (!resumed.restart && resumed.protection == null && resumed.callee != null && resumed.callee.closure.globals == globals) {
+                    resumed.caller = caller;
+                    caller = resumed;
+                    resumed = resumed.callee;
+                    cl = resumed.closure;
+                    code = cl.p.code;
+                    k = cl.p.k;
+                    stack = resumed.stack;
+                    varargs = resumed.varargs;
+                    pc = resumed.pc;
+                    top = resumed.top;
+                    v = resumed.v;
+                    openups = resumed.openups;
+                    steps = -pc;
+                    if (globals.debuglib != null)
+                        globals.debuglib.onCall(cl, varargs, stack);
+                    metrics.enter();
+                }
+            }
+            if (resumed != null && !resumed.restart) {
+                v = resumeCall(co, resumed.callee, resumed.protection, resumeArgs);
+                i = code[pc];
+                a = ((i >> 6) & 0xff);
+                if ((i & 0x3f) == Lua.OP_TFORCALL) {
+                    for (c = (i >> 14) & 0x1ff; --c >= 0; )
+                        stack[a + 3 + c] = v.arg(c + 1);
+                    v = NONE;
+                } else if ((c = (i >> 14) & 0x1ff) > 0) {
+                    v.copyto(stack, a, c - 1);
+                    v = NONE;
+                } else {
+                    top = a + v.narg();
+                    v = v.dealias();
+                }
+                ++pc;
+            }
             for (; true; ++pc) {
                 if (globals != null && globals.debuglib != null)
                     globals.debuglib.onInstruction(pc, v, top);
@@ -261,11 +344,11 @@ public class LuaClosure extends LuaFunction {
                         continue;
 
                     case Lua.OP_GETUPVAL: /*	A B	R(A):= UpValue[B]				*/
-                        stack[a] = upValues[i >>> 23].getValue();
+                        stack[a] = cl.upValues[i >>> 23].getValue();
                         continue;
 
                     case Lua.OP_GETTABUP: /*	A B C	R(A) := UpValue[B][RK(C)]			*/
-                        stack[a] = upValues[i >>> 23].getValue().get((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
+                        stack[a] = cl.upValues[i >>> 23].getValue().get((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
                         continue;
 
                     case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
@@ -273,11 +356,11 @@ public class LuaClosure extends LuaFunction {
                         continue;
 
                     case Lua.OP_SETTABUP: /*	A B C	UpValue[A][RK(B)] := RK(C)			*/
-                        upValues[a].getValue().set(((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b]), (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
+                        cl.upValues[a].getValue().set(((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b]), (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
                         continue;
 
                     case Lua.OP_SETUPVAL: /*	A B	UpValue[B]:= R(A)				*/
-                        upValues[i >>> 23].setValue(stack[a]);
+                        cl.upValues[i >>> 23].setValue(stack[a]);
                         continue;
 
                     case Lua.OP_SETTABLE: /*	A B C	R(A)[RK(B)]:= RK(C)				*/
@@ -345,6 +428,12 @@ public class LuaClosure extends LuaFunction {
                     continue;
 
                     case Lua.OP_JMP: /*	A sBx	pc+=sBx; if (A) close all upvalues >= R(A - 1)	*/
+                        if ((i >>> 14) < 0x1ffff) {
+                            if ((steps += 0x1ffff - (i >>> 14)) > MAX_STEPS)
+                                steps = flush(metrics, steps);
+                            if (co != null && --co.budget < 0)
+                                throw new Yield(NONE, true);
+                        }
                         pc += (i >>> 14) - 0x1ffff;
                         if (a > 0) {
                             for (--a, b = openups.length; --b >= 0; )
@@ -384,6 +473,30 @@ public class LuaClosure extends LuaFunction {
                         continue;
 
                     case Lua.OP_CALL: /*	A B C	R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
+                        if ((caller != null || metrics != null && metrics.depth() >= HEAP_CALL_DEPTH)
+                            && (o = stack[a]) instanceof LuaClosure && ((LuaClosure) o).globals == globals) {
+                            if (co != null && --co.budget < 0)
+                                throw new Yield(NONE, true);
+                            if ((i >>> 23) == 0)
+                                v = varargsOf(stack, a + 1, top - v.narg() - (a + 1), v);
+                            break;
+                        }
+                        if (co != null) {
+                            if (--co.budget < 0)
+                                throw new Yield(NONE, true);
+                            b = i >>> 23;
+                            v = stacklessCall(co, stack[a], b > 0 ?
+                                varargsOf(stack, a + 1, b - 1) :
+                                varargsOf(stack, a + 1, top - v.narg() - (a + 1), v));
+                            if ((c = (i >> 14) & 0x1ff) > 0) {
+                                v.copyto(stack, a, c - 1);
+                                v = NONE;
+                            } else {
+                                top = a + v.narg();
+                                v = v.dealias();
+                            }
+                            continue;
+                        }
                         switch (i & (Lua.MASK_B | Lua.MASK_C)) {
                             case (1 << Lua.POS_B) | (0 << Lua.POS_C):
                                 v = stack[a].invoke(NONE);
@@ -434,6 +547,20 @@ public class LuaClosure extends LuaFunction {
                         }
 
                     case Lua.OP_TAILCALL: /*	A B C	return R(A)(R(A+1), ... ,R(A+B-1))		*/
+                        if (globals != null && (caller != null || stack[a] instanceof LuaClosure && ((LuaClosure) stack[a]).globals == globals)) {
+                            if (co != null && --co.budget < 0)
+                                throw new Yield(NONE, true);
+                            b = i >>> 23;
+                            if (stack[a] instanceof LuaClosure && ((LuaClosure) stack[a]).globals == globals) {
+                                if (b == 0)
+                                    v = varargsOf(stack, a + 1, top - v.narg() - (a + 1), v);
+                            } else {
+                                v = new TailcallVarargs(stack[a], b > 0 ?
+                                    varargsOf(stack, a + 1, b - 1) :
+                                    varargsOf(stack, a + 1, top - v.narg() - (a + 1), v));
+                            }
+                            break;
+                        }
                         switch (i & Lua.MASK_B) {
                             case (1 << Lua.POS_B):
                                 return new TailcallVarargs(stack[a], NONE);
@@ -455,22 +582,33 @@ public class LuaClosure extends LuaFunction {
                         b = i >>> 23;
                         switch (b) {
                             case 0:
-                                return varargsOf(stack, a, top - v.narg() - a, v);
+                                v = varargsOf(stack, a, top - v.narg() - a, v);
+                                break;
                             case 1:
-                                return NONE;
+                                v = NONE;
+                                break;
                             case 2:
-                                return stack[a];
+                                v = stack[a];
+                                break;
                             default:
-                                return varargsOf(stack, a, b - 1);
+                                v = varargsOf(stack, a, b - 1);
+                                break;
                         }
+                        if (caller == null)
+                            return v;
+                        break;
 
                     case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/ {
+                        if (co != null && --co.budget < 0)
+                            throw new Yield(NONE, true);
                         LuaValue limit = stack[a + 1];
                         LuaValue step = stack[a + 2];
                         LuaValue idx = stack[a].add(step);
                         if (step.gt_b(0) ? idx.lteq_b(limit) : idx.gteq_b(limit)) {
                             stack[a] = idx;
                             stack[a + 3] = idx;
+                            if ((steps += 0x1ffff - (i >>> 14)) > MAX_STEPS)
+                                steps = flush(metrics, steps);
                             pc += (i >>> 14) - 0x1ffff;
                         }
                     }
@@ -488,7 +626,9 @@ public class LuaClosure extends LuaFunction {
                     continue;
 
                     case Lua.OP_TFORCALL: /* A C	R(A+3), ... ,R(A+2+C) := R(A)(R(A+1), R(A+2));	*/
-                        v = stack[a].invoke(varargsOf(stack[a + 1], stack[a + 2]));
+                        v = co != null ?
+                            stacklessCall(co, stack[a], varargsOf(stack[a + 1], stack[a + 2])) :
+                            stack[a].invoke(varargsOf(stack[a + 1], stack[a + 2]));
                         c = (i >> 14) & 0x1ff;
                         while (--c >= 0)
                             stack[a + 3 + c] = v.arg(c + 1);
@@ -496,8 +636,12 @@ public class LuaClosure extends LuaFunction {
                         continue;
 
                     case Lua.OP_TFORLOOP: /* A sBx	if R(A+1) ~= nil then { R(A)=R(A+1); pc += sBx */
+                        if (co != null && --co.budget < 0)
+                            throw new Yield(NONE, true);
                         if (!stack[a + 1].isnil()) { /* continue loop? */
                             stack[a] = stack[a + 1];  /* save control varible. */
+                            if ((steps += 0x1ffff - (i >>> 14)) > MAX_STEPS)
+                                steps = flush(metrics, steps);
                             pc += (i >>> 14) - 0x1ffff;
                         }
                         continue;
@@ -524,14 +668,14 @@ public class LuaClosure extends LuaFunction {
                     continue;
 
                     case Lua.OP_CLOSURE: /*	A Bx	R(A):= closure(KPROTO[Bx])	*/ {
-                        Prototype newp = p.p[i >>> 14];
+                        Prototype newp = cl.p.p[i >>> 14];
                         LuaClosure ncl = new LuaClosure(newp, globals);
                         Upvaldesc[] uv = newp.upvalues;
                         for (int j = 0, nup = uv.length; j < nup; ++j) {
                             if (uv[j].instack)  /* upvalue refes to local variable? */
                                 ncl.upValues[j] = findupval(stack, uv[j].idx, openups);
                             else  /* get upvalue from enclosing function */
-                                ncl.upValues[j] = upValues[uv[j].idx];
+                                ncl.upValues[j] = cl.upValues[uv[j].idx];
                         }
                         stack[a] = ncl;
                     }
@@ -554,22 +698,323 @@ public class LuaClosure extends LuaFunction {
                     default:
                         throw new java.lang.IllegalArgumentException("Illegal opcode: " + (i & 0x3f));
                 }
+
+                // a call, tail call or return between lua frames of this loop
+                if ((i & 0x3f) == Lua.OP_RETURN || v.isTailcall()) {
+                    // return v to the calling frame, completing its call as if it had been made from there
+                    leave(openups, metrics, Math.max(steps + pc + 1, 0));
+                    cl = caller.closure;
+                    code = cl.p.code;
+                    k = cl.p.k;
+                    stack = caller.stack;
+                    varargs = caller.varargs;
+                    pc = caller.pc;
+                    top = caller.top;
+                    openups = caller.openups;
+                    caller = caller.caller;
+                    steps = -pc;
+                    if (v.isTailcall())
+                        v = co != null ? finish(co, v) : v.eval();
+                    i = code[pc];
+                    a = ((i >> 6) & 0xff);
+                    if ((i & 0x3f) == Lua.OP_TFORCALL) {
+                        for (c = (i >> 14) & 0x1ff; --c >= 0; )
+                            stack[a + 3 + c] = v.arg(c + 1);
+                        v = NONE;
+                    } else if ((c = (i >> 14) & 0x1ff) > 0) {
+                        v.copyto(stack, a, c - 1);
+                        v = NONE;
+                    } else {
+                        top = a + v.narg();
+                        v = v.dealias();
+                    }
+                    continue;
+                }
+                if ((i & 0x3f) == Lua.OP_TAILCALL) {
+                    leave(openups, metrics, Math.max(steps + pc + 1, 0));
+                } else {
+                    if (metrics.depth() >= globals.maxCallDepth)
+                        throw new LuaError("stack overflow");
+                    final Frame f = new Frame(cl, stack, varargs, pc, top, NONE, openups);
+                    f.caller = caller;
+                    caller = f;
+                }
+                cl = (LuaClosure) stack[a];
+                final Prototype p = cl.p;
+                code = p.materialize().code;
+                k = p.k;
+                final LuaValue[] args = stack;
+                stack = cl.getNewStack();
+                if ((b = i >>> 23) > 0) {
+                    // arguments still in the registers of the call
+                    System.arraycopy(args, a + 1, stack, 0, Math.min(b - 1, p.numparams));
+                    varargs = p.is_vararg != 0 && b - 1 > p.numparams ?
+                        varargsOf(args, a + 1 + p.numparams, b - 1 - p.numparams) :
+                        NONE;
+                } else {
+                    for (b = 0; b < p.numparams; b++)
+                        stack[b] = v.arg(b + 1);
+                    varargs = p.is_vararg != 0 ? v.subargs(p.numparams + 1) : NONE;
+                }
+                openups = p.p.length > 0 ? new UpValue[stack.length] : null;
+                top = 0;
+                v = NONE;
+                pc = -1;
+                steps = 0;
+                if (globals.debuglib != null)
+                    globals.debuglib.onCall(cl, varargs, stack);
+                if (metrics != null)
+                    metrics.enter();
             }
+        } catch (Yield y) {
+            // keep the frames, with their upvalues open, for the coroutine to continue
+            Frame f = new Frame(cl, stack, varargs, pc, top, v, openups);
+            f.callee = y.frames;
+            f.restart = y.preempted && y.frames == null;
+            f.protection = y.protection;
+            for (Frame h = caller; h != null; h = h.caller) {
+                h.callee = f;
+                f = h;
+            }
+            y.frames = f;
+            y.protection = null;
+            suspended = true;
+            throw y;
         } catch (LuaError le) {
             if (le.traceback == null)
-                processErrorHooks(le, p, pc);
+                processErrorHooks(le, cl.p, pc);
+            throw le;
+        } catch (StackOverflowError e) {
+            LuaError le = new LuaError("stack overflow");
+            processErrorHooks(le, cl.p, pc);
             throw le;
         } catch (Exception e) {
             LuaError le = new LuaError(e);
-            processErrorHooks(le, p, pc);
+            processErrorHooks(le, cl.p, pc);
             throw le;
         } finally {
-            if (openups != null)
-                for (int u = openups.length; --u >= 0; )
-                    if (openups[u] != null)
-                        openups[u].close();
-            if (globals != null && globals.debuglib != null)
+            leave(suspended ? null : openups, metrics, Math.max(steps + pc + 1, 0));
+            for (Frame h = caller; h != null; h = h.caller)
+                leave(suspended ? null : h.openups, metrics, 0);
+            if (account != null)
+                MemoryAccount.exit(outerAccount);
+        }
+    }
+
+    /**
+     * End a frame: close its upvalues unless it is suspended, and run the return hooks.
+     */
+    private void leave(UpValue[] openups, ExecutionMetrics metrics, int executed) {
+        if (openups != null)
+            for (int u = openups.length; --u >= 0; )
+                if (openups[u] != null)
+                    openups[u].close();
+        if (metrics != null)
+            metrics.exit(executed);
+        if (globals != null && globals.debuglib != null)
+            globals.debuglib.onReturn();
+    }
+
+    /**
+     * The depth of lua calls in a thread from which calls between closures of the same globals keep their frames
+     * on the heap, run by the loop of the calling frame, rather than recursing on the Java stack, which is faster.
+     */
+    static final int HEAP_CALL_DEPTH = 100;
+
+    /**
+     * Instructions counted at back-edges of a frame before they are added to its {@link ExecutionMetrics},
+     * which otherwise happens when the frame exits.
+     */
+    private static final int MAX_STEPS = 1 << 20;
+
+    private static int flush(ExecutionMetrics metrics, int steps) {
+        if (metrics != null)
+            metrics.count(steps);
+        return 0;
+    }
+
+    /**
+     * Call a function from a frame of a stackless coroutine and evaluate its tail calls,
+     * so that lua functions reached this way run as frames that a yield can suspend.
+     */
+    Varargs stacklessCall(LuaThread.State co, LuaValue f, Varargs args) {
+        return finish(co, dispatch(co, f, args));
+    }
+
+    private Varargs dispatch(LuaThread.State co, LuaValue f, Varargs args) {
+        if (f instanceof LuaClosure && ((LuaClosure) f).globals == globals && globals != null) {
+            co.entering = true;
+            return ((LuaClosure) f).onInvoke(args);
+        }
+        if (f instanceof CoroutineLib._yield)
+            throw new Yield(args);
+        if (f instanceof AsyncFunction) {
+            final CompletableFuture<Varargs> future = ((AsyncFunction) f).invokeAsync(args);
+            if (future.isDone())
+                return AsyncFunction.await(future);
+            throw new Yield(future);
+        }
+        if (f instanceof BaseLib.pcall)
+            return protect(co, f, null, args.checkvalue(1), args.subargs(2), null, null, null);
+        if (f instanceof BaseLib.xpcall)
+            return protect(co, f, args.checkvalue(2), args.arg1(), args.subargs(3), null, null, null);
+        return f.onInvoke(args);
+    }
+
+    private Varargs finish(LuaThread.State co, Varargs r) {
+        while (r.isTailcall()) {
+            final TailcallVarargs t = (TailcallVarargs) r;
+            r = dispatch(co, t.func, t.args);
+        }
+        return r;
+    }
+
+    /**
+     * Complete a call that a yield suspended, by continuing the frame it called,
+     * or with the values passed to resume if the call was to yield itself,
+     * or with the result of the asynchronous call it was waiting for.
+     */
+    Varargs resumeCall(LuaThread.State co, Frame callee, Protected protect, Varargs args) {
+        if (protect != null)
+            return protect(co, protect.protector, protect.handler, null, null, callee, protect.inner, args);
+        return finish(co, resumeCallee(co, callee, args));
+    }
+
+    private static Varargs resumeCallee(LuaThread.State co, Frame callee, Varargs args) {
+        if (callee == null)
+            return co.takeAwaited(args);
+        co.entering = true;
+        return callee.closure.execute(callee.stack, callee.varargs, callee, args);
+    }
+
+    /**
+     * Run or resume the call of a pcall or xpcall, as BaseLib does, recording it in a yield passing through.
+     */
+    private Varargs protect(LuaThread.State co, LuaValue protector, LuaValue handler,
+                            LuaValue f, Varargs args, Frame callee, Protected inner, Varargs resumeArgs) {
+        final LuaThread t = globals.running();
+        final LuaValue preverror = t.errorfunc;
+        if (handler != null)
+            t.errorfunc = handler;
+        if (globals.debuglib != null)
+            globals.debuglib.onCall((LuaFunction) protector);
+        try {
+            return varargsOf(TRUE, f != null ? finish(co, dispatch(co, f, args)) : resumeCall(co, callee, inner, resumeArgs));
+        } catch (Yield y) {
+            y.protection = new Protected(protector, handler, y.protection);
+            throw y;
+        } catch (LuaError le) {
+            final LuaValue m = le.getMessageObject();
+            return varargsOf(FALSE, m != null ? m : NIL);
+        } catch (Exception e) {
+            final String m = e.getMessage();
+            return varargsOf(FALSE, valueOf(m != null ? m : e.toString()));
+        } finally {
+            if (globals.debuglib != null)
                 globals.debuglib.onReturn();
+            t.errorfunc = preverror;
+        }
+    }
+
+    /**
+     * An interpreter frame of a suspended stackless coroutine.
+     */
+    static final class Frame {
+        final LuaClosure closure;
+        final LuaValue[] stack;
+        final Varargs varargs;
+        final int pc;
+        final int top;
+        final Varargs v;
+        final UpValue[] openups;
+
+        /**
+         * The frame called by the pending call at pc, or null if that call was to yield.
+         */
+        Frame callee;
+
+        /**
+         * While running, the frame of the same interpreter loop that called this one, and waits for it to return.
+         */
+        Frame caller;
+
+        /**
+         * True if the frame was preempted before the instruction at pc, which is then run again.
+         */
+        boolean restart;
+
+        /**
+         * The pcall and xpcall calls, outermost first, making the pending call.
+         */
+        Protected protection;
+
+        Frame(LuaClosure closure, LuaValue[] stack, Varargs varargs, int pc, int top, Varargs v, UpValue[] openups) {
+            this.closure = closure;
+            this.stack = stack;
+            this.varargs = varargs;
+            this.pc = pc;
+            this.top = top;
+            this.v = v;
+            this.openups = openups;
+        }
+    }
+
+    /**
+     * A pcall or xpcall that a yield passed through, with the message handler of xpcall.
+     */
+    static final class Protected {
+        final LuaValue protector;
+        final LuaValue handler;
+        final Protected inner;
+
+        Protected(LuaValue protector, LuaValue handler, Protected inner) {
+            this.protector = protector;
+            this.handler = handler;
+            this.inner = inner;
+        }
+    }
+
+    /**
+     * Thrown by a stackless yield to unwind the interpreter frames of the coroutine,
+     * each of which adds itself to the frames to be resumed.
+     */
+    static final class Yield extends Error {
+        private static final long serialVersionUID = 1L;
+
+        final Varargs values;
+
+        /**
+         * True if the coroutine ran out of budget rather than calling yield.
+         */
+        final boolean preempted;
+
+        /**
+         * The future of an {@link AsyncFunction} call the coroutine waits for, rather than yielding to its resumer.
+         */
+        final CompletableFuture<Varargs> awaiting;
+
+        /**
+         * The outermost frame captured so far, and the protected calls it is making if any.
+         */
+        Frame frames;
+        Protected protection;
+
+        Yield(Varargs values) {
+            this(values, false);
+        }
+
+        Yield(Varargs values, boolean preempted) {
+            super(null, null, false, false);
+            this.values = values;
+            this.preempted = preempted;
+            this.awaiting = null;
+        }
+
+        Yield(CompletableFuture<Varargs> awaiting) {
+            super(null, null, false, false);
+            this.values = NONE;
+            this.preempted = false;
+            this.awaiting = awaiting;
         }
     }
 
@@ -580,7 +1025,7 @@ public class LuaClosure extends LuaFunction {
      */
     String errorHook(String msg, int level) {
         if (globals == null) return msg;
-        final LuaThread r = globals.running;
+        final LuaThread r = globals.running();
         if (r.errorfunc == null)
             return globals.debuglib != null ?
                 msg + "\n" + globals.debuglib.traceback(level) :
@@ -611,7 +1056,7 @@ public class LuaClosure extends LuaFunction {
             }
             if (frame == null) {
                 file = p.source != null ? p.source.tojstring() : "?";
-                line = p.lineinfo != null && pc >= 0 && pc < p.lineinfo.length ? p.lineinfo[pc] : -1;
+                line = p.getline(pc);
             }
         }
         le.fileline = file + ":" + line;
@@ -38,7 +38,7 @@ public class LuaJc {
     private static final String version = Lua._VERSION + " Copyright (C) 2012 luaj.org";
 
     private static final String usage =
-        "usage: java -cp luaj-jse.jar,bcel-5.2.jar luajc [options] fileordir [, fileordir ...]\n" +
+        "usage: java -cp luaj-jse.jar,asm-9.8.jar luajc [options] fileordir [, fileordir ...]\n" +
             "Available options are:\n" +
             "  -        process stdin\n" +
             "  -s src	source directory\n" +
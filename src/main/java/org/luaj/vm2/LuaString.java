@@ -25,6 +25,10 @@ package org.luaj.vm2;
 import org.luaj.vm2.lib.MathLib;
 
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
  * Subclass of {@link LuaValue} for representing lua strings.
@@ -108,7 +112,9 @@ public class LuaString extends LuaValue {
      * This is simply a list of strings, indexed by their hash codes modulo the cache size
      * that have been recently constructed.  If a string is being constructed frequently
      * from different contexts, it will generally show up as a cache hit and resolve
-     * to the same value.
+     * to the same value.  Entries are replaced without synchronization, which is safe
+     * for threads sharing a {@link Globals} since LuaString is immutable: a racing
+     * thread only misses the cache.
      */
     private static final class RecentShortStrings {
         private static final LuaString recent_short_strings[] =
@@ -266,6 +272,8 @@ public class LuaString extends LuaValue {
         this.m_offset = offset;
         this.m_length = length;
         this.m_hashcode = hashCode(bytes, offset, length);
+        if (MemoryAccount.enabled && length > RECENT_STRINGS_MAX_LENGTH && length == bytes.length)
+            MemoryAccount.allocate(this, MemoryAccount.ARRAY_HEADER_BYTES + length);
     }
 
     public boolean isstring() {
@@ -640,10 +648,7 @@ public class LuaString extends LuaValue {
     public static boolean equals(byte[] a, int i, byte[] b, int j, int n) {
         if (a.length < i + n || b.length < j + n)
             return false;
-        while (--n >= 0)
-            if (a[i++] != b[j++])
-                return false;
-        return true;
+        return n <= 0 || Arrays.equals(a, i, i + n, b, j, j + n);
     }
 
     public void write(DataOutputStream writer, int i, int len) throws IOException {
@@ -728,8 +733,48 @@ public class LuaString extends LuaValue {
      * @return index of first match found, or -1 if not found.
      */
     public int indexOf(byte b, int start) {
-        for (int i = start; i < m_length; ++i) {
-            if (m_bytes[m_offset + i] == b)
+        final int i = indexOf(m_bytes, m_offset + start, m_offset + m_length, b);
+        return i >= 0 ? i - m_offset : -1;
+    }
+
+    /**
+     * Minimum number of bytes to scan before {@link #indexOf(byte[], int, int, byte)} reads a word at a time.
+     */
+    private static final int SWAR_MIN_LENGTH = 16;
+
+    /**
+     * Minimum needle length for which {@link #indexOf(LuaString, int)} uses Boyer-Moore-Horspool.
+     */
+    private static final int BMH_MIN_NEEDLE = 4;
+
+    /**
+     * Minimum number of bytes to search before {@link #indexOf(LuaString, int)} builds a Boyer-Moore-Horspool skip table.
+     */
+    private static final int BMH_MIN_LENGTH = 256;
+
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /**
+     * Find a byte in a range of an array, comparing eight bytes per step once the range is long enough.
+     *
+     * @return the array index of the first match, or -1 if not found
+     */
+    private static int indexOf(byte[] a, int i, int end, byte b) {
+        if (end - i >= SWAR_MIN_LENGTH) {
+            final long pattern = (b & 0xffL) * LOW_BITS;
+            for (final int wend = end - 8; i <= wend; i += 8) {
+                final long x = (long) LONG_VIEW.get(a, i) ^ pattern;
+                // the lowest flagged byte is always a true zero byte of x
+                final long t = (x - LOW_BITS) & ~x & HIGH_BITS;
+                if (t != 0)
+                    return i + (Long.numberOfTrailingZeros(t) >>> 3);
+            }
+        }
+        for (; i < end; ++i) {
+            if (a[i] == b)
                 return i;
         }
         return -1;
@@ -745,9 +790,42 @@ public class LuaString extends LuaValue {
     public int indexOf(LuaString s, int start) {
         final int slen = s.length();
         final int limit = m_length - slen;
-        for (int i = start; i <= limit; ++i) {
-            if (equals(m_bytes, m_offset + i, s.m_bytes, s.m_offset, slen))
-                return i;
+        if (slen <= 1 || start > limit)
+            return slen == 1 ? indexOf(s.m_bytes[s.m_offset], start) : start <= limit ? start : -1;
+        if (slen >= BMH_MIN_NEEDLE && limit - start >= BMH_MIN_LENGTH)
+            return indexOfHorspool(s, start);
+
+        // scan for the first byte, then compare the rest
+        final byte first = s.m_bytes[s.m_offset];
+        final int end = m_offset + limit + 1;
+        for (int i = m_offset + start; (i = indexOf(m_bytes, i, end, first)) >= 0; ++i) {
+            if (equals(m_bytes, i + 1, s.m_bytes, s.m_offset + 1, slen - 1))
+                return i - m_offset;
+        }
+        return -1;
+    }
+
+    /**
+     * Boyer-Moore-Horspool search, for needles long enough that skipping ahead by the shift of the
+     * last byte of each window beats scanning for the first byte.
+     */
+    private int indexOfHorspool(LuaString s, int start) {
+        final byte[] n = s.m_bytes;
+        final int noff = s.m_offset;
+        final int last = s.m_length - 1;
+        final int[] shift = new int[256];
+        Arrays.fill(shift, last + 1);
+        for (int j = 0; j < last; ++j)
+            shift[n[noff + j] & 0xff] = last - j;
+
+        final byte[] a = m_bytes;
+        final byte nlast = n[noff + last];
+        final int end = m_offset + m_length - last;
+        for (int i = m_offset + start; i < end; ) {
+            final byte b = a[i + last];
+            if (b == nlast && equals(a, i, n, noff, last))
+                return i - m_offset;
+            i += shift[b & 0xff];
         }
         return -1;
     }
@@ -783,6 +861,11 @@ public class LuaString extends LuaValue {
     public static String decodeAsUtf8(byte[] bytes, int offset, int length) {
         int i, j, n, b;
         for (i = offset, j = offset + length, n = 0; i < j; ++n) {
+            if ((bytes[i] & 0xF8) == 0xF0 && decodeUtf8(bytes, i, j) >= 0) {
+                i += 4;
+                ++n;
+                continue;
+            }
             switch (0xE0 & bytes[i++]) {
                 case 0xE0:
                     ++i;
@@ -792,6 +875,12 @@ public class LuaString extends LuaValue {
         }
         char[] chars = new char[n];
         for (i = offset, j = offset + length, n = 0; i < j; ) {
+            if ((bytes[i] & 0xF8) == 0xF0 && (b = decodeUtf8(bytes, i, j)) >= 0) {
+                chars[n++] = Character.highSurrogate(b);
+                chars[n++] = Character.lowSurrogate(b);
+                i += 4;
+                continue;
+            }
             chars[n++] = (char) (
                 ((b = bytes[i++]) >= 0 || i >= j) ? b :
                     (b < -32 || i + 1 >= j) ? (((b & 0x3f) << 6) | (bytes[i++] & 0x3f)) :
@@ -815,6 +904,12 @@ public class LuaString extends LuaValue {
         for (i = b = chars.length; --i >= 0; )
             if ((c = chars[i]) >= 0x80)
                 b += (c >= 0x800) ? 2 : 1;
+        // a surrogate pair is one 4-byte sequence rather than two 3-byte ones
+        for (i = 1; i < chars.length; ++i)
+            if (Character.isLowSurrogate(chars[i]) && Character.isHighSurrogate(chars[i - 1])) {
+                b -= 2;
+                ++i;
+            }
         return b;
     }
 
@@ -840,6 +935,8 @@ public class LuaString extends LuaValue {
         for (int i = 0; i < nchars; i++) {
             if ((c = chars[i]) < 0x80) {
                 bytes[j++] = (byte) c;
+            } else if (Character.isHighSurrogate(c) && i + 1 < nchars && Character.isLowSurrogate(chars[i + 1])) {
+                j += encodeToUtf8(Character.toCodePoint(c, chars[++i]), bytes, j);
             } else if (c < 0x800) {
                 bytes[j++] = (byte) (0xC0 | ((c >> 6) & 0x1f));
                 bytes[j++] = (byte) (0x80 | (c & 0x3f));
@@ -864,6 +961,10 @@ public class LuaString extends LuaValue {
         for (int i = m_offset, j = m_offset + m_length; i < j; ) {
             int c = m_bytes[i++];
             if (c >= 0) continue;
+            if ((c & 0xF8) == 0xF0 && decodeUtf8(m_bytes, i - 1, j) >= 0) {
+                i += 3;
+                continue;
+            }
             if (((c & 0xE0) == 0xC0)
                 && i < j
                 && (m_bytes[i++] & 0xC0) == 0x80) continue;
@@ -876,6 +977,76 @@ public class LuaString extends LuaValue {
         return true;
     }
 
+    /**
+     * Decode the UTF-8 sequence starting at an index, as the Lua 5.3 {@code utf8} library does.
+     * <p>
+     * Sequences of up to four bytes encoding values up to 0x10FFFF are accepted;
+     * overlong encodings and sequences cut short by {@code end} are not.
+     * Because the encoding is never overlong, the length of the sequence is
+     * {@link #lengthAsUtf8(int)} of the result.
+     *
+     * @param bytes byte array holding UTF-8
+     * @param i     index of the first byte of the sequence
+     * @param end   index after the last byte that may be read
+     * @return the code point, or -1 if the bytes at {@code i} are not a valid sequence
+     * @see #encodeToUtf8(int, byte[], int)
+     */
+    public static int decodeUtf8(byte[] bytes, int i, int end) {
+        int c = bytes[i] & 0xff;
+        if (c < 0x80)
+            return c;
+        int count = 0, res = 0;
+        for (; (c & 0x40) != 0; c <<= 1) {
+            if (++count > 3 || i + count >= end)
+                return -1;
+            final int cc = bytes[i + count];
+            if ((cc & 0xC0) != 0x80)
+                return -1;
+            res = (res << 6) | (cc & 0x3F);
+        }
+        res |= (c & 0x7F) << (count * 5);
+        if (count == 0 || res > 0x10FFFF || res <= UTF8_LIMITS[count])
+            return -1;
+        return res;
+    }
+
+    /**
+     * Largest value that may be encoded with one fewer continuation byte, indexed by the number of continuation bytes.
+     */
+    private static final int[] UTF8_LIMITS = { 0xFF, 0x7F, 0x7FF, 0xFFFF };
+
+    /**
+     * Count the number of bytes required to encode a code point as UTF-8.
+     *
+     * @param codepoint value from 0 to 0x10FFFF
+     * @return count of bytes needed to encode using UTF-8
+     */
+    public static int lengthAsUtf8(int codepoint) {
+        return codepoint < 0x80 ? 1 : codepoint < 0x800 ? 2 : codepoint < 0x10000 ? 3 : 4;
+    }
+
+    /**
+     * Encode a code point as UTF-8 bytes, writing the result to bytes starting at offset.
+     *
+     * @param codepoint value from 0 to 0x10FFFF
+     * @param bytes     byte array to hold the result, with room for {@link #lengthAsUtf8(int)} bytes
+     * @param off       offset into the byte array to start writing
+     * @return number of bytes written
+     * @see #decodeUtf8(byte[], int, int)
+     */
+    public static int encodeToUtf8(int codepoint, byte[] bytes, int off) {
+        if (codepoint < 0x80) {
+            bytes[off] = (byte) codepoint;
+            return 1;
+        }
+        final int n = lengthAsUtf8(codepoint);
+        int c = codepoint;
+        for (int k = n - 1; k > 0; --k, c >>= 6)
+            bytes[off + k] = (byte) (0x80 | (c & 0x3f));
+        bytes[off] = (byte) ((0xF00 >> n) | c);
+        return n;
+    }
+
     // --------------------- number conversion -----------------------
 
     /**
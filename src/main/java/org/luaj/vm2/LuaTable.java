@@ -95,6 +95,11 @@ public class LuaTable extends LuaValue implements Metatable {
      */
     protected Metatable m_metatable;
 
+    /**
+     * memory charged for the array and hash parts, or null if not accounted
+     */
+    private MemoryAccount.Charge charge;
+
     /**
      * Construct empty table
      */
@@ -186,8 +191,11 @@ public class LuaTable extends LuaValue implements Metatable {
 
     @Override
     public void presize(final int narray) {
-        if (narray > array.length)
+        if (narray > array.length) {
             array = resize(array, 1 << log2(narray));
+            if (MemoryAccount.enabled)
+                chargeStorage();
+        }
     }
 
     public void presize(final int narray, int nhash) {
@@ -197,6 +205,16 @@ public class LuaTable extends LuaValue implements Metatable {
         array = (narray > 0 ? new LuaValue[1 << log2(narray)] : NOVALS);
         hash = (nhash > 0 ? new Slot[1 << log2(nhash)] : NOBUCKETS);
         hashEntries = 0;
+        if (MemoryAccount.enabled)
+            chargeStorage();
+    }
+
+    /**
+     * Update the memory charged for the current size of the array and hash parts.
+     */
+    private void chargeStorage() {
+        charge = MemoryAccount.resize(charge, this,
+            (long) array.length * MemoryAccount.ARRAY_SLOT_BYTES + (long) hash.length * MemoryAccount.HASH_SLOT_BYTES);
     }
 
     /**
@@ -798,6 +816,8 @@ public class LuaTable extends LuaValue implements Metatable {
         hash = newHash;
         array = newArray;
         hashEntries -= movingToArray;
+        if (MemoryAccount.enabled)
+            chargeStorage();
     }
 
     @Override
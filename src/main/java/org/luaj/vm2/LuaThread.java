@@ -22,7 +22,20 @@
 package org.luaj.vm2;
 
 
+import org.luaj.vm2.lib.AsyncFunction;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Cleaner;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Subclass of {@link LuaValue} that implements
@@ -44,12 +57,19 @@ import java.lang.ref.WeakReference;
  * of C coroutine library.  However, because of the use of Java threads
  * to manage call state, it is possible to yield from anywhere in luaj.
  * <p>
- * Each Java thread wakes up at regular intervals and checks a weak reference
- * to determine if it can ever be resumed.  If not, it throws
+ * The Java thread of each coroutine is obtained from the {@link Globals#carrier} of its globals,
+ * which defaults to {@link #DEFAULT_CARRIER}: a virtual thread per coroutine when the
+ * Java runtime supports them, otherwise a platform thread.  Control passes between
+ * the resuming thread and the coroutine with {@link LockSupport#park} and {@link LockSupport#unpark}.
+ * <p>
+ * With {@link Globals#stackless} set, coroutines whose body is a lua function use no Java thread:
+ * they run on the thread that resumes them, and yield by saving their interpreter frames on the heap.
+ * <p>
+ * A {@link Cleaner} wakes the Java thread of a suspended coroutine as soon as its
+ * LuaThread becomes unreachable, and the thread then throws
  * {@link OrphanedThread} which is an {@link java.lang.Error}.
  * Applications should not catch {@link OrphanedThread}, because it can break
- * the thread safety of luaj.  The value controlling the polling interval
- * is {@link #thread_orphan_check_interval} and may be set by the user.
+ * the thread safety of luaj.
  * <p>
  * There are two main ways to abandon a coroutine.  The first is to call
  * {@code yield()} from lua, or equivalently {@link Globals#yield(Varargs)},
@@ -72,20 +92,55 @@ public class LuaThread extends LuaValue {
     public static LuaValue s_metatable;
 
     /**
-     * The current number of coroutines.  Should not be set.
+     * The number of carrier threads started so far, used to name them.  Updated atomically; should not be set.
      */
     public static int coroutine_count = 0;
 
+    private static final VarHandle COROUTINE_COUNT;
+
+    static {
+        try {
+            COROUTINE_COUNT = MethodHandles.lookup().findStaticVarHandle(LuaThread.class, "coroutine_count", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     /**
-     * Polling interval, in milliseconds, which each thread uses while waiting to
-     * return from a yielded state to check if the lua threads is no longer
-     * referenced and therefore should be garbage collected.
-     * A short polling interval for many threads will consume server resources.
-     * Orphaned threads cannot be detected and collected unless garbage
-     * collection is run.  This can be changed by Java startup code if desired.
+     * Formerly the interval at which suspended coroutines polled for being orphaned.
+     * Orphaned coroutines are now woken by a {@link Cleaner} once they are garbage collected,
+     * so this is no longer used.
      */
+    @Deprecated
     public static long thread_orphan_check_interval = 5000;
 
+    /**
+     * Wakes up the carriers of coroutines that can no longer be resumed.
+     */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * Carrier starting a new platform thread named "Coroutine-N" for each coroutine.
+     */
+    public static final Executor PLATFORM_CARRIER = r -> new Thread(r, carrierName()).start();
+
+    /**
+     * Carrier starting a new virtual thread for each coroutine,
+     * or null when the Java runtime does not support virtual threads.
+     */
+    public static final Executor VIRTUAL_CARRIER = virtualCarrier();
+
+    /**
+     * Carrier reusing up to 64 idle platform threads, each kept for a minute.
+     */
+    public static final Executor POOLED_CARRIER = new CarrierPool(64, 60, TimeUnit.SECONDS);
+
+    /**
+     * Carrier used by new {@link Globals}: {@link #VIRTUAL_CARRIER} if available,
+     * otherwise {@link #POOLED_CARRIER}.
+     */
+    public static final Executor DEFAULT_CARRIER = VIRTUAL_CARRIER != null ? VIRTUAL_CARRIER : POOLED_CARRIER;
+
     public static final int STATUS_INITIAL = 0;
     public static final int STATUS_SUSPENDED = 1;
     public static final int STATUS_RUNNING = 2;
@@ -100,6 +155,10 @@ public class LuaThread extends LuaValue {
 
     public final State state;
 
+    /**
+     * Not enforced; the depth of lua calls is limited by {@link Globals#maxCallDepth}.
+     */
+    @Deprecated
     public static final int MAX_CALLSTACK = 256;
 
     /**
@@ -168,20 +227,205 @@ public class LuaThread extends LuaValue {
     }
 
     public Varargs resume(Varargs args) {
-        final LuaThread.State s = this.state;
-        if (s.status > LuaThread.STATUS_SUSPENDED)
-            return LuaValue.varargsOf(LuaValue.FALSE,
-                LuaValue.valueOf("cannot resume " + (s.status == LuaThread.STATUS_DEAD ? "dead" : "non-suspended") + " coroutine"));
-        return s.lua_resume(this, args);
+        return state.lua_resume(this, args);
+    }
+
+    /**
+     * Resume this coroutine as the functions made by {@code coroutine.wrap} do:
+     * return the values it yields or returns, without the status that {@link #resume(Varargs)} puts first,
+     * and throw the {@link LuaError} it failed with, or the reason it cannot be resumed.
+     */
+    public Varargs resumeOrThrow(Varargs args) {
+        return state.transfer(this, args);
+    }
+
+    private static String carrierName() {
+        return "Coroutine-" + ((int) COROUTINE_COUNT.getAndAdd(1) + 1);
+    }
+
+    /**
+     * Look up Thread.ofVirtual() reflectively, as virtual threads are not in every supported Java version.
+     */
+    private static Executor virtualCarrier() {
+        try {
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            final Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Object named = builder.getMethod("name", String.class, long.class).invoke(ofVirtual, "Coroutine-", 1L);
+            final ThreadFactory factory = (ThreadFactory) builder.getMethod("factory").invoke(named);
+            return r -> factory.newThread(r).start();
+        } catch (Throwable t) {
+            // before Java 21, or a preview feature that is not enabled
+            return null;
+        }
+    }
+
+    /**
+     * A carrier that keeps the daemon platform threads of finished coroutines for new ones.
+     * <p>
+     * A coroutine is started on an idle thread if there is one, otherwise on a new thread.
+     * When it ends, its thread waits for the next coroutine unless {@code maxIdle} threads are
+     * already waiting, and ends after waiting for {@code keepAlive} without being given one.
+     * Virtual threads are cheap enough to need no pool.
+     */
+    public static final class CarrierPool implements Executor {
+        private final int maxIdle;
+        private final long keepAliveNanos;
+        private final ArrayDeque<Worker> idle = new ArrayDeque<>();
+
+        public CarrierPool(int maxIdle, long keepAlive, TimeUnit unit) {
+            this.maxIdle = maxIdle;
+            this.keepAliveNanos = unit.toNanos(keepAlive);
+        }
+
+        public void execute(Runnable r) {
+            final Worker w;
+            synchronized (this) {
+                w = idle.pollLast();
+            }
+            if (w != null) {
+                w.task = r;
+                LockSupport.unpark(w.thread);
+            } else {
+                final Worker n = new Worker(r);
+                n.thread = new Thread(n, carrierName());
+                n.thread.setDaemon(true);
+                n.thread.start();
+            }
+        }
+
+        /**
+         * Number of threads waiting for a coroutine.
+         */
+        public synchronized int idleCount() {
+            return idle.size();
+        }
+
+        private final class Worker implements Runnable {
+            volatile Runnable task;
+            Thread thread;
+
+            Worker(Runnable first) {
+                this.task = first;
+            }
+
+            public void run() {
+                Runnable r = task;
+                while (r != null) {
+                    task = null;
+                    r.run();
+                    // let the finished coroutine be collected while this thread waits
+                    r = null;
+                    r = next();
+                }
+            }
+
+            /**
+             * Wait in the pool for the next coroutine, or return null if the pool is full or the wait timed out.
+             */
+            private Runnable next() {
+                synchronized (CarrierPool.this) {
+                    if (idle.size() >= maxIdle)
+                        return null;
+                    idle.addLast(this);
+                }
+                final long deadline = System.nanoTime() + keepAliveNanos;
+                for (Runnable r; (r = task) == null; ) {
+                    final long left = deadline - System.nanoTime();
+                    if (left > 0) {
+                        LockSupport.parkNanos(this, left);
+                        continue;
+                    }
+                    synchronized (CarrierPool.this) {
+                        if (idle.remove(this))
+                            return null;
+                    }
+                    // taken by execute just now, the task is about to be set
+                    LockSupport.parkNanos(this, keepAliveNanos);
+                }
+                return task;
+            }
+        }
     }
 
     public static class State implements Runnable {
         private final Globals globals;
         final WeakReference lua_thread;
         public final LuaValue function;
-        Varargs args = LuaValue.NONE;
-        Varargs result = LuaValue.NONE;
-        String error = null;
+
+        /**
+         * The values handed over by the last transfer of control: the arguments of a resume for the coroutine,
+         * or the values it yielded or returned for the resumer.  Taken by the side receiving control.
+         */
+        private Varargs transfer = LuaValue.NONE;
+
+        /**
+         * The error the coroutine ended with, handed over with its last transfer.
+         */
+        private LuaError failure;
+
+        /**
+         * The context of the Java thread resuming a threaded coroutine of a shared Globals, taken on by its carrier.
+         */
+        private Globals.Context context;
+
+        /**
+         * Whose turn it is to run, written last by the side handing over control.
+         */
+        private volatile boolean coroutineTurn;
+
+        /**
+         * The Java thread running the coroutine function, and the one waiting for it to yield.
+         */
+        private volatile Thread carrierThread;
+        private volatile Thread resumerThread;
+
+        /**
+         * Set by the cleaner once the LuaThread of a suspended coroutine has been collected.
+         */
+        private volatile boolean orphaned;
+
+        /**
+         * Serializes resumes from several Java threads without pinning virtual threads to their carrier.
+         */
+        private final ReentrantLock resumeLock = new ReentrantLock();
+
+        /**
+         * Whether this coroutine runs on the resuming thread, see {@link Globals#stackless}.
+         */
+        private boolean stackless;
+
+        /**
+         * Set by a stackless call into a lua function, and taken by the frame it enters.
+         */
+        boolean entering;
+
+        /**
+         * The yield that suspended a stackless coroutine, holding its frames.
+         */
+        private LuaClosure.Yield suspended;
+
+        /**
+         * Calls and loop iterations a stackless coroutine may run before it is preempted,
+         * as if it had yielded no values.  Set by a {@link Scheduler} for each time slice.
+         */
+        long budget = Long.MAX_VALUE;
+
+        /**
+         * Whether the last resume of a stackless coroutine ended by running out of budget.
+         */
+        boolean preempted;
+
+        /**
+         * The future of the {@link org.luaj.vm2.lib.AsyncFunction} call a stackless coroutine is suspended in, if any.
+         */
+        CompletableFuture<Varargs> awaiting;
+
+        /**
+         * Whether a resume returns as soon as the coroutine waits for an asynchronous call,
+         * leaving it to be resumed again once {@link #awaiting} completes, rather than blocking
+         * until then.  Set by a {@link Scheduler} for its tasks.
+         */
+        boolean suspendOnAwait;
 
         /**
          * Hook function control state used by debug lib.
@@ -196,77 +440,229 @@ public class LuaThread extends LuaValue {
         public int lastline;
         public int bytecodes;
 
-        public int status = LuaThread.STATUS_INITIAL;
+        public volatile int status = LuaThread.STATUS_INITIAL;
+
+        /**
+         * Counters of the work done by this thread, also added to those of its {@link Globals#metrics}.
+         */
+        public final ExecutionMetrics metrics;
 
         State(Globals globals, LuaThread lua_thread, LuaValue function) {
             this.globals = globals;
+            this.metrics = new ExecutionMetrics(globals != null ? globals.metrics : null);
             this.lua_thread = new WeakReference(lua_thread);
             this.function = function;
         }
 
-        public synchronized void run() {
+        public void run() {
+            carrierThread = Thread.currentThread();
+            globals.bind(context);
             try {
-                Varargs a = this.args;
-                this.args = LuaValue.NONE;
-                this.result = function.invoke(a);
+                final Varargs a = this.transfer;
+                this.transfer = LuaValue.NONE;
+                this.transfer = function.invoke(a);
             } catch (Throwable t) {
-                this.error = t.getMessage();
+                this.failure = asLuaError(t);
             } finally {
                 this.status = LuaThread.STATUS_DEAD;
-                this.notify();
+                carrierThread = null;
+                globals.bind(null);
+                handOver(false);
             }
         }
 
-        public synchronized Varargs lua_resume(LuaThread new_thread, Varargs args) {
-            LuaThread previous_thread = globals.running;
+        /**
+         * Give control to the other side and wake it up.
+         */
+        private void handOver(boolean toCoroutine) {
+            final Thread other = toCoroutine ? carrierThread : resumerThread;
+            coroutineTurn = toCoroutine;
+            if (other != null)
+                LockSupport.unpark(other);
+        }
+
+        public Varargs lua_resume(LuaThread new_thread, Varargs args) {
             try {
-                globals.running = new_thread;
-                this.args = args;
+                return LuaValue.varargsOf(LuaValue.TRUE, transfer(new_thread, args));
+            } catch (LuaError e) {
+                final LuaValue m = e.getMessageObject();
+                return LuaValue.varargsOf(LuaValue.FALSE, m != null ? m : LuaValue.NIL);
+            }
+        }
+
+        /**
+         * Run the coroutine until it yields or ends, returning the values it passes back
+         * and throwing the error it ends with.
+         */
+        Varargs transfer(LuaThread new_thread, Varargs args) {
+            // a running coroutine resuming itself or its resumer must fail rather than wait for the lock
+            checkResumable();
+            resumeLock.lock();
+            final LuaThread previous_thread = globals.running();
+            try {
+                // checked again, as another Java thread may have resumed it to its end meanwhile
+                checkResumable();
+                globals.setRunning(new_thread);
+                if (previous_thread != null) {
+                    previous_thread.state.status = STATUS_NORMAL;
+                    previous_thread.state.metrics.pause();
+                }
+                metrics.resumed();
+                if (this.status == STATUS_INITIAL)
+                    this.stackless = globals.stackless && function instanceof LuaClosure
+                        && ((LuaClosure) function).globals == globals;
+                if (this.stackless)
+                    return resumeStackless(args);
+                this.transfer = args;
+                this.context = globals.context();
+                this.resumerThread = Thread.currentThread();
                 if (this.status == STATUS_INITIAL) {
                     this.status = STATUS_RUNNING;
-                    new Thread(this, "Coroutine-" + (++coroutine_count)).start();
+                    this.coroutineTurn = true;
+                    CLEANER.register(new_thread, this::orphan);
+                    globals.carrier.execute(this);
                 } else {
-                    this.notify();
+                    this.status = STATUS_RUNNING;
+                    handOver(true);
                 }
-                if (previous_thread != null)
-                    previous_thread.state.status = STATUS_NORMAL;
-                this.status = STATUS_RUNNING;
-                this.wait();
-                return (this.error != null ?
-                    LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf(this.error)) :
-                    LuaValue.varargsOf(LuaValue.TRUE, this.result));
-            } catch (InterruptedException ie) {
-                throw new OrphanedThread();
+                while (coroutineTurn) {
+                    LockSupport.park(this);
+                    if (Thread.interrupted())
+                        throw new OrphanedThread();
+                }
+                final Varargs values = this.transfer;
+                final LuaError e = this.failure;
+                this.transfer = LuaValue.NONE;
+                this.failure = null;
+                if (e != null)
+                    throw e;
+                return values;
             } finally {
-                this.args = LuaValue.NONE;
-                this.result = LuaValue.NONE;
-                this.error = null;
-                globals.running = previous_thread;
-                if (previous_thread != null)
-                    globals.running.state.status = STATUS_RUNNING;
+                this.resumerThread = null;
+                globals.setRunning(previous_thread);
+                if (previous_thread != null) {
+                    previous_thread.state.status = STATUS_RUNNING;
+                    previous_thread.state.metrics.unpause();
+                }
+                resumeLock.unlock();
             }
         }
 
-        public synchronized Varargs lua_yield(Varargs args) {
+        private void checkResumable() {
+            final int s = this.status;
+            if (s > STATUS_SUSPENDED)
+                throw new LuaError("cannot resume " + (s == STATUS_DEAD ? "dead" : "non-suspended") + " coroutine");
+        }
+
+        /**
+         * Run a stackless coroutine on the current thread until it yields or ends.
+         */
+        private Varargs resumeStackless(Varargs args) {
+            final LuaClosure body = (LuaClosure) function;
+            LuaClosure.Yield y = this.suspended;
+            this.suspended = null;
+            this.preempted = false;
+            this.status = STATUS_RUNNING;
             try {
-                this.result = args;
-                this.status = STATUS_SUSPENDED;
-                this.notify();
-                do {
-                    this.wait(thread_orphan_check_interval);
-                    if (this.lua_thread.get() == null) {
+                while (true) {
+                    try {
+                        final Varargs r = y == null ?
+                            body.stacklessCall(this, body, args) :
+                            body.resumeCall(this, y.frames, y.protection, args);
                         this.status = STATUS_DEAD;
-                        throw new OrphanedThread();
+                        return r;
+                    } catch (LuaClosure.Yield yielded) {
+                        if (yielded.awaiting != null) {
+                            this.awaiting = yielded.awaiting;
+                            // continue at once, waiting for the call where the result is taken
+                            if (!suspendOnAwait) {
+                                y = yielded;
+                                continue;
+                            }
+                        }
+                        this.suspended = yielded;
+                        this.preempted = yielded.preempted;
+                        this.status = STATUS_SUSPENDED;
+                        metrics.yielded();
+                        return yielded.values;
                     }
-                } while (this.status == STATUS_SUSPENDED);
-                return this.args;
-            } catch (InterruptedException ie) {
+                }
+            } catch (Throwable t) {
                 this.status = STATUS_DEAD;
-                throw new OrphanedThread();
+                throw asLuaError(t);
+            } finally {
+                this.entering = false;
+            }
+        }
+
+        /**
+         * The values a suspended call completes with when its coroutine is resumed:
+         * the result of the asynchronous call it waits for, once that completes,
+         * otherwise the values passed to resume.
+         */
+        Varargs takeAwaited(Varargs args) {
+            final CompletableFuture<Varargs> f = this.awaiting;
+            if (f == null)
+                return args;
+            this.awaiting = null;
+            return AsyncFunction.await(f);
+        }
+
+        /**
+         * Take the mark left by a stackless call for the frame being entered,
+         * returning this state if the frame can be suspended, otherwise null.
+         */
+        LuaThread.State enter() {
+            if (!entering)
+                return null;
+            entering = false;
+            return this;
+        }
+
+        /**
+         * Wake the carrier of a coroutine that can no longer be resumed, so that it ends.
+         */
+        private void orphan() {
+            orphaned = true;
+            final Thread t = carrierThread;
+            if (t != null)
+                LockSupport.unpark(t);
+        }
+
+        public Varargs lua_yield(Varargs args) {
+            if (stackless)
+                throw new LuaError("attempt to yield across a C-call boundary");
+            this.transfer = args;
+            this.status = STATUS_SUSPENDED;
+            // stopped before handing over, as the resumer updates the same Globals counters
+            metrics.pause();
+            metrics.yielded();
+            handOver(false);
+            try {
+                while (!coroutineTurn) {
+                    LockSupport.park(this);
+                    if (Thread.interrupted() || orphaned) {
+                        this.status = STATUS_DEAD;
+                        throw new OrphanedThread();
+                    }
+                }
             } finally {
-                this.args = LuaValue.NONE;
-                this.result = LuaValue.NONE;
+                metrics.unpause();
             }
+            globals.bind(context);
+            final Varargs a = this.transfer;
+            this.transfer = LuaValue.NONE;
+            return a;
+        }
+
+        /**
+         * The error a coroutine ended with, keeping the error value of a {@link LuaError}.
+         */
+        private static LuaError asLuaError(Throwable t) {
+            if (t instanceof LuaError)
+                return (LuaError) t;
+            final String m = t.getMessage();
+            return new LuaError(m != null ? m : t.toString());
         }
     }
 
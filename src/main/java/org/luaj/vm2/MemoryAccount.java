@@ -0,0 +1,229 @@
+package org.luaj.vm2;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Approximate accounting of the memory allocated by one {@link Globals}, with an optional quota.
+ * <p>
+ * When installed via {@link #install(Globals, long)}, the storage of {@link LuaTable}s,
+ * the bytes of long {@link LuaString}s and the backing arrays of {@link Buffer}s created
+ * while that Globals is running are charged to it.  Each charge is tracked by a weak
+ * reference, so it is credited back once the object has been garbage collected, and
+ * {@link #used()} approximates the live heap held by the VM rather than a running total.
+ * <p>
+ * The running VM is found through a thread-local that {@link LuaClosure} binds for the
+ * duration of each call when its Globals has an account installed.  Nothing is bound and
+ * nothing is charged for a Globals without an account, so the cost when accounting is not
+ * used is a single static field read per table resize or long string.
+ * <p>
+ * When a charge takes the total above the limit, a {@link LuaError} "not enough memory"
+ * is raised in the running script.  The allocation that triggered it has already been
+ * made, so the limit is soft by at most one allocation.
+ *
+ * @see Globals#memory
+ * @see org.luaj.vm2.lib.BaseLib
+ */
+public final class MemoryAccount {
+
+    /**
+     * Estimated bytes held per array-part slot of a table.
+     */
+    static final int ARRAY_SLOT_BYTES = 8;
+
+    /**
+     * Estimated bytes held per hash-part slot of a table, including its entry object.
+     */
+    static final int HASH_SLOT_BYTES = 40;
+
+    /**
+     * Estimated fixed overhead of a string or buffer backing array.
+     */
+    static final int ARRAY_HEADER_BYTES = 16;
+
+    /**
+     * True once any account has been installed, used to skip accounting entirely otherwise.
+     */
+    static volatile boolean enabled;
+
+    private static final ThreadLocal<MemoryAccount> current = new ThreadLocal<>();
+
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+    /**
+     * Head of the list of live charges; keeps the weak references reachable until they are queued.
+     */
+    private final Charge charges = new Charge();
+
+    private long used;
+
+    private long peak;
+
+    /**
+     * Maximum number of bytes this account may hold, or 0 for no limit.
+     */
+    public volatile long limit;
+
+    /**
+     * Create an account with a limit.
+     *
+     * @param limit maximum number of bytes, or 0 for no limit
+     */
+    public MemoryAccount(long limit) {
+        this.limit = limit;
+        charges.prev = charges.next = charges;
+        enabled = true;
+    }
+
+    /**
+     * Install a new account with the supplied limit into a Globals.
+     *
+     * @param globals the Globals to account for
+     * @param limit   maximum number of bytes, or 0 for no limit
+     * @return the installed account
+     */
+    public static MemoryAccount install(Globals globals, long limit) {
+        return globals.memory = new MemoryAccount(limit);
+    }
+
+    /**
+     * Get the approximate number of bytes currently held by objects charged to this account.
+     */
+    public synchronized long used() {
+        drain();
+        return used;
+    }
+
+    /**
+     * Get the highest value {@link #used()} has reached.
+     */
+    public synchronized long peak() {
+        return peak;
+    }
+
+    /**
+     * Make an account the one charged by allocations on the current thread.
+     *
+     * @param account the account to bind, or null to charge nothing
+     * @return the previously bound account, to be restored with {@link #exit(MemoryAccount)}
+     */
+    static MemoryAccount enter(MemoryAccount account) {
+        final MemoryAccount previous = current.get();
+        if (previous != account)
+            current.set(account);
+        return previous;
+    }
+
+    /**
+     * Restore the account that was bound before the matching {@link #enter(MemoryAccount)}.
+     */
+    static void exit(MemoryAccount previous) {
+        current.set(previous);
+    }
+
+    /**
+     * Record the current size of an object that may grow or shrink over time.
+     * <p>
+     * The first call charges the account bound to the current thread, if any,
+     * and later calls adjust that same account.
+     * If the first call exceeds the limit, nothing stays charged, so the next call starts over.
+     *
+     * @param charge the charge returned by the previous call for this object, or null
+     * @param owner  the object whose memory is being charged
+     * @param bytes  the current size of the object's storage
+     * @return the charge to pass to the next call, or null if nothing is being charged
+     */
+    static Charge resize(Charge charge, Object owner, long bytes) {
+        if (charge == null) {
+            final MemoryAccount account = current.get();
+            if (account == null || bytes == 0)
+                return null;
+            final Charge first = account.new Charge(owner);
+            first.bytes = bytes;
+            try {
+                account.adjust(bytes);
+            } catch (LuaError e) {
+                account.cancel(first);
+                throw e;
+            }
+            return first;
+        }
+        final long delta = bytes - charge.bytes;
+        charge.bytes = bytes;
+        charge.account().adjust(delta);
+        return charge;
+    }
+
+    /**
+     * Charge the size of an immutable object to the account bound to the current thread.
+     */
+    static void allocate(Object owner, long bytes) {
+        final MemoryAccount account = current.get();
+        if (account != null) {
+            account.new Charge(owner).bytes = bytes;
+            account.adjust(bytes);
+        }
+    }
+
+    private synchronized void adjust(long delta) {
+        drain();
+        final long total = used + delta;
+        used = total;
+        if (total > peak)
+            peak = total;
+        if (delta > 0 && limit > 0 && total > limit)
+            throw new LuaError("not enough memory");
+    }
+
+    /**
+     * Take back a charge that its owner never kept, so it is not credited again once collected.
+     */
+    private synchronized void cancel(Charge c) {
+        c.clear();
+        used -= c.bytes;
+        c.unlink();
+    }
+
+    // must hold the lock on this
+    private void drain() {
+        for (Charge c; (c = (Charge) collected.poll()) != null; ) {
+            used -= c.bytes;
+            c.unlink();
+        }
+    }
+
+    /**
+     * Weak reference to a charged object which credits its bytes back once the object is collected.
+     */
+    final class Charge extends WeakReference<Object> {
+        long bytes;
+        private Charge prev, next;
+
+        /**
+         * Construct the list head.
+         */
+        private Charge() {
+            super(null);
+        }
+
+        private Charge(Object owner) {
+            super(owner, collected);
+            synchronized (MemoryAccount.this) {
+                prev = charges;
+                next = charges.next;
+                next.prev = this;
+                charges.next = this;
+            }
+        }
+
+        MemoryAccount account() {
+            return MemoryAccount.this;
+        }
+
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = next = null;
+        }
+    }
+}
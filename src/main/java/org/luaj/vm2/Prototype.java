@@ -21,6 +21,8 @@
  ******************************************************************************/
 package org.luaj.vm2;
 
+import java.util.Arrays;
+
 /**
  * Prototype representing compiled lua code.
  *
@@ -90,6 +92,8 @@ public class Prototype {
     public Prototype[] p;
     /* map from opcodes to source lines */
     public int[] lineinfo;
+    /* lineinfo as zigzag varint deltas, once stripDebug has replaced it */
+    public byte[] packedlineinfo;
     /* information about local variables */
     public LocVars[] locvars;
     /* upvalue information */
@@ -100,8 +104,19 @@ public class Prototype {
     public int numparams;
     public int is_vararg;
     public int maxstacksize;
+    /* chunk from which the parts of a lazily undumped function are decoded */
+    LoadState chunk;
+    /* offsets in the chunk of the body and the debug info not decoded yet, or 0 */
+    volatile int bodyOffset;
+    volatile int debugOffset;
     private static final Upvaldesc[] NOUPVALUES = { };
     private static final Prototype[] NOSUBPROTOS = { };
+    private static final LocVars[] NOLOCVARS = { };
+    private static final int[] NOLINEINFO = { };
+    /* packedlineinfo has a checkpoint every 2^LINE_CHECKPOINT_SHIFT instructions */
+    private static final int LINE_CHECKPOINT_SHIFT = 5;
+    /* byte offset in packedlineinfo and line before each checkpoint, built on first use */
+    private volatile int[] linecheckpoints;
 
     public Prototype() {
         p = NOSUBPROTOS;
@@ -113,6 +128,182 @@ public class Prototype {
         upvalues = new Upvaldesc[n_upvalues];
     }
 
+    /**
+     * Decode the code, constants and nested functions of a function
+     * that was undumped lazily, if that has not been done yet.
+     * <p>
+     * Nested functions loaded with {@link LoadState#undump(java.nio.ByteBuffer, String, boolean)} in lazy mode
+     * keep only their source, line range, sizes and upvalues until they are first called;
+     * {@link LuaClosure} calls this when it starts executing.
+     *
+     * @return this prototype
+     */
+    public Prototype materialize() {
+        if (bodyOffset != 0) {
+            synchronized (this) {
+                if (bodyOffset != 0) {
+                    chunk.loadBody(this);
+                    bodyOffset = 0;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Decode the {@link #lineinfo}, {@link #locvars} and upvalue names of a function
+     * that was undumped lazily, if that has not been done yet.
+     * Code reading debug information directly from the fields should call this first.
+     *
+     * @return this prototype
+     */
+    public Prototype materializeDebug() {
+        materialize();
+        if (debugOffset != 0) {
+            synchronized (this) {
+                if (debugOffset != 0) {
+                    chunk.loadDeferredDebug(this);
+                    chunk = null;
+                    debugOffset = 0;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Drop the local variable and upvalue names of this function and the functions nested in it,
+     * and replace their {@link #lineinfo} with the more compact {@link #packedlineinfo},
+     * which takes one byte for most instructions.
+     * <p>
+     * Error messages and {@link #getline(int)} still report line numbers, but debug.getlocal
+     * no longer finds names.  The name of an {@code _ENV} upvalue is kept, so error messages
+     * can still tell global variables from fields.
+     * This modifies the prototype, so it should be done before it is shared between threads.
+     *
+     * @return this prototype
+     * @see org.luaj.vm2.compiler.LuaC#install(Globals, boolean)
+     */
+    public Prototype stripDebug() {
+        materializeDebug();
+        for (Prototype q : p)
+            q.stripDebug();
+        locvars = NOLOCVARS;
+        for (Upvaldesc u : upvalues)
+            if (u.name != null && !u.name.raweq(LuaValue.ENV))
+                u.name = null;
+        if (lineinfo != null) {
+            packedlineinfo = packlines(lineinfo);
+            linecheckpoints = null;
+            lineinfo = null;
+        }
+        return this;
+    }
+
+    /**
+     * Get the source line of an instruction, from either {@link #lineinfo} or {@link #packedlineinfo}.
+     * Packed lines are decoded from the nearest checkpoint before pc, so each call takes constant time.
+     *
+     * @param pc the program counter
+     * @return the line, or -1 if not known
+     */
+    public int getline(int pc) {
+        materializeDebug();
+        final int[] lineinfo = this.lineinfo;
+        if (lineinfo != null)
+            return pc >= 0 && pc < lineinfo.length ? lineinfo[pc] : -1;
+        final byte[] packed = packedlineinfo;
+        if (packed == null || pc < 0)
+            return -1;
+        int[] checkpoints = linecheckpoints;
+        if (checkpoints == null)
+            linecheckpoints = checkpoints = checkpointlines(packed);
+        final int c = (pc >> LINE_CHECKPOINT_SHIFT) << 1;
+        if (c >= checkpoints.length)
+            return -1;
+        return unpacklines(packed, checkpoints[c], checkpoints[c + 1], null, pc & ((1 << LINE_CHECKPOINT_SHIFT) - 1));
+    }
+
+    /**
+     * Get the source lines of all instructions, decoding {@link #packedlineinfo} if needed.
+     *
+     * @return {@link #lineinfo} itself if present, which must not be modified, or a new array
+     */
+    public int[] getlineinfo() {
+        materializeDebug();
+        if (lineinfo != null)
+            return lineinfo;
+        if (packedlineinfo == null)
+            return NOLINEINFO;
+        int n = 0;
+        for (byte b : packedlineinfo)
+            if (b >= 0)
+                n++;
+        final int[] lines = new int[n];
+        unpacklines(packedlineinfo, 0, 0, lines, n);
+        return lines;
+    }
+
+    private static byte[] packlines(int[] lines) {
+        final byte[] packed = new byte[lines.length * 5];
+        int n = 0, prev = 0;
+        for (int line : lines) {
+            final int d = line - prev;
+            int z = (d << 1) ^ (d >> 31);
+            while ((z & ~0x7f) != 0) {
+                packed[n++] = (byte) (z | 0x80);
+                z >>>= 7;
+            }
+            packed[n++] = (byte) z;
+            prev = line;
+        }
+        return Arrays.copyOf(packed, n);
+    }
+
+    // the byte offset and preceding line of every 2^LINE_CHECKPOINT_SHIFT-th instruction
+    private static int[] checkpointlines(byte[] packed) {
+        int n = 0;
+        for (byte b : packed)
+            if (b >= 0)
+                n++;
+        final int[] checkpoints = new int[((n + (1 << LINE_CHECKPOINT_SHIFT) - 1) >> LINE_CHECKPOINT_SHIFT) << 1];
+        for (int c = 0, i = 0, line = 0; c < checkpoints.length; c += 2) {
+            checkpoints[c] = i;
+            checkpoints[c + 1] = line;
+            for (int k = 0; k < 1 << LINE_CHECKPOINT_SHIFT && i < packed.length; k++) {
+                int z = 0;
+                for (int shift = 0; ; shift += 7) {
+                    final int b = packed[i++];
+                    z |= (b & 0x7f) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                line += (z >>> 1) ^ -(z & 1);
+            }
+        }
+        return checkpoints;
+    }
+
+    // decode lines from byte offset i, after the given line, up to pc into lines if not null,
+    // returning the line at pc or -1
+    private static int unpacklines(byte[] packed, int i, int line, int[] lines, int pc) {
+        for (int n = 0; i < packed.length; n++) {
+            int z = 0;
+            for (int shift = 0; ; shift += 7) {
+                final int b = packed[i++];
+                z |= (b & 0x7f) << shift;
+                if (b >= 0)
+                    break;
+            }
+            line += (z >>> 1) ^ -(z & 1);
+            if (lines != null)
+                lines[n] = line;
+            if (n == pc)
+                return line;
+        }
+        return -1;
+    }
+
     public String toString() {
         return source + ":" + linedefined + "-" + lastlinedefined;
     }
@@ -125,6 +316,7 @@ public class Prototype {
      * @return the name, or null if not found
      */
     public LuaString getlocalname(int number, int pc) {
+        final LocVars[] locvars = materializeDebug().locvars;
         int i;
         for (i = 0; i < locvars.length && locvars[i].startpc <= pc; i++) {
             if (pc < locvars[i].endpc) {  /* is variable active? */
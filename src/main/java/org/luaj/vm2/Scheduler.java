@@ -0,0 +1,345 @@
+package org.luaj.vm2;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs the tasks of many independent {@link Globals} on a fixed number of worker threads,
+ * sharing the workers fairly between them.
+ * <p>
+ * Each Globals added with {@link #add(Globals, int, boolean)} becomes a {@link Machine} with its own queue of
+ * {@link Task}s.  A task is a lua function run as a coroutine of its Globals.
+ * Workers take machines that have runnable tasks in round-robin order, and run one task of each
+ * for a time slice of {@code sliceSteps} times the weight of the machine.  Every call and loop
+ * iteration of the task counts as one step; when the slice is used up the task is preempted at
+ * that point and put back at the end of the queue of its machine.  A machine is run by at most
+ * one worker at a time, so its Globals is never used by two threads at once.
+ * <p>
+ * A task that calls {@code coroutine.yield} waits for {@link Task#resume(Varargs)}, whose values are
+ * then returned by the yield.  Values passed to resume while the task is queued or running are kept
+ * and delivered in order at its next yields, so the resume queue of a task serves as its event queue.
+ * <p>
+ * A task that calls an {@link org.luaj.vm2.lib.AsyncFunction} gives up its worker until the future
+ * returned by the function completes, and is then queued again to continue with its result,
+ * so a few workers can keep thousands of tasks waiting on I/O.
+ * <p>
+ * Preemption and giving up the worker for asynchronous calls need a machine added in
+ * {@link Globals#stackless} mode, where a task holds no Java thread while it is not running.
+ * They only happen within lua functions that a stackless coroutine can suspend; a slice
+ * spent inside a Java function, a metamethod or a coroutine resumed by the task itself lasts until
+ * control comes back to the task's own lua code, and an asynchronous call made there blocks the worker.
+ * Stackless mode also makes a yield from a metamethod, a {@code table.sort} comparator or a
+ * {@code string.gsub} callback fail, see {@link Globals#stackless}.  A machine added without it
+ * runs each task on a carrier thread of its Globals, where a task can yield from anywhere but is never
+ * preempted, and its asynchronous calls block the worker until they complete.
+ * <pre> {@code
+ * Scheduler scheduler = new Scheduler(8, 10000);
+ * Scheduler.Machine vm = scheduler.add(JsePlatform.standardGlobals(), 1, true);
+ * Varargs r = vm.submit(vm.globals.load(script, "job"), LuaValue.NONE).result().join();
+ * } </pre>
+ *
+ * @see Globals#stackless
+ * @see LuaThread
+ */
+public class Scheduler implements AutoCloseable {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final int sliceSteps;
+
+    private final Thread[] workers;
+
+    /**
+     * Machines with runnable tasks, in the order they will be run.
+     */
+    private final BlockingQueue<Machine> ready = new LinkedBlockingQueue<>();
+
+    /**
+     * Create a scheduler and start its worker threads.
+     *
+     * @param workers    the number of worker threads
+     * @param sliceSteps the number of steps a task of weight 1 runs before it is preempted
+     */
+    public Scheduler(int workers, int sliceSteps) {
+        if (workers < 1 || sliceSteps < 1)
+            throw new IllegalArgumentException("workers and sliceSteps must be positive");
+        this.sliceSteps = sliceSteps;
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = new Thread(this::work, "LuaScheduler-" + (i + 1));
+            this.workers[i].setDaemon(true);
+            this.workers[i].start();
+        }
+    }
+
+    /**
+     * Add a Globals to be run by this scheduler.
+     *
+     * @param globals   the Globals, which should not be used by other threads from now on
+     * @param weight    the relative share of worker time given to the machine when others are busy too
+     * @param stackless the value to set {@link Globals#stackless} to: true for tasks that can be preempted
+     *                  and give up their worker during asynchronous calls, false for tasks that must be able
+     *                  to yield from metamethods and from functions called by Java functions
+     * @return the machine to submit tasks to
+     */
+    public Machine add(Globals globals, int weight, boolean stackless) {
+        if (weight < 1)
+            throw new IllegalArgumentException("weight must be positive");
+        globals.stackless = stackless;
+        return new Machine(globals, weight);
+    }
+
+    /**
+     * Stop the worker threads.  Tasks not yet run stay queued and are never completed.
+     */
+    public void close() {
+        for (Thread t : workers)
+            t.interrupt();
+    }
+
+    private void work() {
+        try {
+            while (true)
+                ready.take().runSlice();
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * A Globals run by the scheduler, with its queue of runnable tasks and statistics.
+     */
+    public final class Machine {
+        public final Globals globals;
+
+        private final int weight;
+
+        private final ArrayDeque<Task> queue = new ArrayDeque<>();
+
+        /**
+         * True while the machine is in the ready queue or being run.
+         */
+        private boolean scheduled;
+
+        private long cpuNanos;
+
+        private long slices;
+
+        private long preemptions;
+
+        Machine(Globals globals, int weight) {
+            this.globals = globals;
+            this.weight = weight;
+        }
+
+        /**
+         * Queue a function to be called as a new task of this machine.
+         *
+         * @param function the function to call, normally loaded by this machine's globals
+         * @param args     the arguments to call it with
+         * @return the task, whose result completes when the function returns
+         */
+        public Task submit(LuaValue function, Varargs args) {
+            final Task task = new Task(this, new LuaThread(globals, function));
+            task.thread.state.suspendOnAwait = true;
+            synchronized (this) {
+                task.runnable = true;
+                task.next = args;
+                enqueue(task);
+            }
+            return task;
+        }
+
+        /**
+         * Total CPU time, in nanoseconds, the workers have spent running this machine's tasks.
+         */
+        public synchronized long cpuNanos() {
+            return cpuNanos;
+        }
+
+        /**
+         * Number of time slices this machine has been run for.
+         */
+        public synchronized long slices() {
+            return slices;
+        }
+
+        /**
+         * Number of time slices that ended with a task being preempted.
+         */
+        public synchronized long preemptions() {
+            return preemptions;
+        }
+
+        /**
+         * Number of tasks waiting to be run.
+         */
+        public synchronized int queued() {
+            return queue.size();
+        }
+
+        /**
+         * Add a runnable task at the end of the queue, scheduling the machine if it is idle.  Called holding the lock.
+         */
+        private void enqueue(Task task) {
+            queue.addLast(task);
+            if (!scheduled) {
+                scheduled = true;
+                ready.add(this);
+            }
+        }
+
+        /**
+         * Run the first queued task for one time slice, then requeue the machine if it has more to do.
+         */
+        private void runSlice() {
+            final Task task;
+            final Varargs args;
+            synchronized (this) {
+                task = queue.pollFirst();
+                args = task.next;
+                task.next = LuaValue.NONE;
+            }
+            final LuaThread.State state = task.thread.state;
+            final long start = cpuTime();
+            Varargs values = null;
+            LuaError error = null;
+            state.budget = (long) sliceSteps * weight;
+            try {
+                values = task.thread.resumeOrThrow(args);
+            } catch (LuaError e) {
+                error = e;
+            } finally {
+                state.budget = Long.MAX_VALUE;
+            }
+            final long used = cpuTime() - start;
+            final boolean ended = state.status == LuaThread.STATUS_DEAD;
+            final boolean preempted = !ended && state.preempted;
+            final CompletableFuture<Varargs> awaiting = ended ? null : state.awaiting;
+            synchronized (this) {
+                cpuNanos += used;
+                slices++;
+                if (preempted) {
+                    preemptions++;
+                    queue.addLast(task);
+                } else if (awaiting != null) {
+                    // stays runnable, so resumes meanwhile go to the inbox, and is queued when the call completes
+                } else if (!ended) {
+                    task.yielded = values;
+                    if (!task.inbox.isEmpty()) {
+                        task.next = task.inbox.pollFirst();
+                        queue.addLast(task);
+                    } else {
+                        task.runnable = false;
+                    }
+                } else {
+                    task.runnable = false;
+                    task.ended = true;
+                    task.inbox.clear();
+                }
+                if (queue.isEmpty())
+                    scheduled = false;
+                else
+                    ready.add(this);
+            }
+            if (awaiting != null) {
+                awaiting.whenComplete((r, e) -> {
+                    synchronized (this) {
+                        enqueue(task);
+                    }
+                });
+            } else if (ended) {
+                if (error != null)
+                    task.result.completeExceptionally(error);
+                else
+                    task.result.complete(values);
+            }
+        }
+    }
+
+    /**
+     * A function running as a coroutine of a {@link Machine}.
+     */
+    public static final class Task {
+        private final Machine machine;
+
+        private final LuaThread thread;
+
+        private final CompletableFuture<Varargs> result = new CompletableFuture<>();
+
+        /**
+         * Values passed to resume while the task was queued or running, delivered at its next yields.
+         */
+        private final ArrayDeque<Varargs> inbox = new ArrayDeque<>();
+
+        /**
+         * The values to resume the task with when it is next run.
+         */
+        private Varargs next = LuaValue.NONE;
+
+        private Varargs yielded = LuaValue.NONE;
+
+        /**
+         * True while the task is queued or running, false while it waits for a resume.
+         */
+        private boolean runnable;
+
+        private boolean ended;
+
+        Task(Machine machine, LuaThread thread) {
+            this.machine = machine;
+            this.thread = thread;
+        }
+
+        /**
+         * Completes with the values returned by the task's function, or exceptionally with the error it raised.
+         */
+        public CompletableFuture<Varargs> result() {
+            return result;
+        }
+
+        /**
+         * Deliver values to the task: they are returned by the yield it is waiting in,
+         * or by its next yield if it is queued or running.
+         *
+         * @throws IllegalStateException if the task has ended
+         */
+        public void resume(Varargs args) {
+            synchronized (machine) {
+                if (ended)
+                    throw new IllegalStateException("task has ended");
+                if (runnable) {
+                    inbox.addLast(args);
+                } else {
+                    runnable = true;
+                    next = args;
+                    machine.enqueue(this);
+                }
+            }
+        }
+
+        /**
+         * The values passed to the last yield of the task.
+         */
+        public Varargs yielded() {
+            synchronized (machine) {
+                return yielded;
+            }
+        }
+
+        /**
+         * The coroutine running the task.
+         */
+        public LuaThread thread() {
+            return thread;
+        }
+    }
+}
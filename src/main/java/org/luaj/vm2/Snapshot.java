@@ -0,0 +1,622 @@
+package org.luaj.vm2;
+
+import org.luaj.vm2.lib.ResourceFinder;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * A copy of the state of an initialized {@link Globals}, from which new Globals can be forked
+ * without running the libraries' setup and the boot scripts again.
+ * <p>
+ * The snapshot holds the tables, lua closures and upvalues reachable from the Globals when it is taken,
+ * and does not change afterwards, so it can be shared by threads and forked any number of times:
+ * <pre> {@code
+ * Globals booted = JsePlatform.standardGlobals();
+ * booted.load(bootScript, "boot.lua").call();
+ * Snapshot snapshot = new Snapshot(booted, JsePlatform::standardGlobals);
+ * ...
+ * Globals vm = snapshot.fork();
+ * } </pre>
+ * A fork starts as a fresh Globals from the platform supplier, whose library functions, bound to it,
+ * take the place of the library functions of the snapshot wherever these were stored.
+ * Its own library tables, including {@code _G} and {@code package.loaded}, are given the contents of the snapshot.
+ * Every other table of a fork is created empty and copied from the snapshot when the fork first uses it,
+ * so the tables a VM never touches cost it one small object, and the strings, prototypes and
+ * immutable values are shared by all forks.  Closures and upvalues are copied with the tables holding them,
+ * and keep their sharing: two closures of the snapshot sharing an upvalue share it in the fork.
+ * <p>
+ * Java functions that are not part of the platform's libraries, userdata and {@link FrozenTable}s
+ * are shared by all forks as they are, so functions registered by the host for each VM
+ * should keep no state of their own, or be registered again on each fork.
+ * Coroutines cannot be copied, and taking a snapshot of Globals that hold one fails.
+ * A fork takes the streams, resource finder, carrier, {@link Globals#stackless} and
+ * {@link Globals#maxCallDepth} of the snapshot Globals, but none of its memory account or counters.
+ */
+public final class Snapshot {
+
+    private final Supplier<Globals> platform;
+
+    /**
+     * The snapshot of the Globals, and of the other tables found in the libraries of the platform,
+     * which are copied into the tables in the same places of a fork as it is created.
+     */
+    private final TableNode root;
+    private final TableNode[] libraries;
+    private final LibraryNode[] functions;
+
+    private final InputStream stdin;
+    private final PrintStream stdout;
+    private final PrintStream stderr;
+    private final ResourceFinder finder;
+    private final Executor carrier;
+    private final boolean stackless;
+    private final int maxCallDepth;
+
+    /**
+     * Take a snapshot of the current state of a Globals.  It should not be running meanwhile.
+     *
+     * @param globals  the initialized Globals
+     * @param platform creates Globals with the libraries that {@code globals} was created with,
+     *                 such as {@code JsePlatform::standardGlobals}, used for each fork
+     * @throws IllegalArgumentException if the state holds a coroutine
+     */
+    public Snapshot(Globals globals, Supplier<Globals> platform) {
+        this.platform = platform;
+        final Capture capture = new Capture(globals, platform.get());
+        this.root = (TableNode) capture.node(globals);
+        capture.run();
+        this.libraries = capture.libraries.toArray(new TableNode[0]);
+        this.functions = capture.functions.toArray(new LibraryNode[0]);
+        this.stdin = globals.STDIN;
+        this.stdout = globals.STDOUT;
+        this.stderr = globals.STDERR;
+        this.finder = globals.finder;
+        this.carrier = globals.carrier;
+        this.stackless = globals.stackless;
+        this.maxCallDepth = globals.maxCallDepth;
+    }
+
+    /**
+     * Create a new Globals in the state of the snapshot.
+     */
+    public Globals fork() {
+        final Globals globals = platform.get();
+        globals.STDIN = stdin;
+        globals.STDOUT = stdout;
+        globals.STDERR = stderr;
+        globals.finder = finder;
+        globals.carrier = carrier;
+        globals.stackless = stackless;
+        globals.maxCallDepth = maxCallDepth;
+        final Fork fork = new Fork(globals);
+        synchronized (fork) {
+            // found before the library tables are emptied
+            for (LibraryNode n : functions)
+                n.create(fork);
+            // the library tables of the new Globals stand for those of the snapshot, filled before any other table
+            final List<LuaTable> tables = new ArrayList<>();
+            final List<TableNode> nodes = new ArrayList<>();
+            for (TableNode n : libraries) {
+                final LuaValue t = n == root ? globals : lookup(globals, n.path);
+                if (t.istable() && !(t instanceof FrozenTable) && !fork.values.containsKey(n)) {
+                    fork.values.put(n, t);
+                    tables.add((LuaTable) t);
+                    nodes.add(n);
+                }
+            }
+            for (int i = 0; i < tables.size(); i++) {
+                final LuaTable t = tables.get(i);
+                for (LuaValue k : t.keys())
+                    t.rawset(k, LuaValue.NIL);
+                fork.fill(t, nodes.get(i));
+            }
+        }
+        return globals;
+    }
+
+    /**
+     * The value at a path of keys from a table, or nil.
+     */
+    private static LuaValue lookup(LuaValue table, LuaValue[] path) {
+        LuaValue v = table;
+        for (int i = 0; i < path.length && v.istable(); i++)
+            v = v.rawget(path[i]);
+        return v;
+    }
+
+    /**
+     * A value of the snapshot that is copied for each fork.  Other values of the snapshot are shared as they are.
+     */
+    private abstract static class Node {
+        /**
+         * Create the fork's copy, registering it with the fork before copying what it refers to.
+         */
+        abstract LuaValue create(Fork fork);
+    }
+
+    private static final class TableNode extends Node {
+        /**
+         * The keys from the Globals at which the platform keeps the same table, or null.
+         */
+        final LuaValue[] path;
+
+        /**
+         * The entries of the table, as values to share or nodes.
+         */
+        Object[] keys;
+        Object[] values;
+        Object metatable;
+
+        /**
+         * The table the node is taken from, until it is.
+         */
+        LuaTable source;
+
+        TableNode(LuaValue[] path, LuaTable source) {
+            this.path = path;
+            this.source = source;
+        }
+
+        LuaValue create(Fork fork) {
+            final ForkedTable t = new ForkedTable(fork, this);
+            fork.values.put(this, t);
+            return t;
+        }
+    }
+
+    private static final class ClosureNode extends Node {
+        final Prototype p;
+
+        /**
+         * Whether the closure runs with the Globals, rather than an environment of its own.
+         */
+        final boolean global;
+        final UpValueNode[] upvalues;
+
+        ClosureNode(Prototype p, boolean global, UpValueNode[] upvalues) {
+            this.p = p;
+            this.global = global;
+            this.upvalues = upvalues;
+        }
+
+        LuaValue create(Fork fork) {
+            final LuaClosure c = new LuaClosure(p, global ? fork.globals : LuaValue.NIL);
+            fork.values.put(this, c);
+            for (int i = 0; i < upvalues.length; i++)
+                c.upValues[i] = fork.upvalue(upvalues[i]);
+            return c;
+        }
+    }
+
+    private static final class UpValueNode {
+        Object value;
+    }
+
+    /**
+     * A Java function of the platform's libraries, replaced with the one in the same place of a fork.
+     */
+    private static final class LibraryNode extends Node {
+        final LuaValue[] path;
+        final LuaValue function;
+
+        LibraryNode(LuaValue[] path, LuaValue function) {
+            this.path = path;
+            this.function = function;
+        }
+
+        LuaValue create(Fork fork) {
+            final LuaValue f = lookup(fork.globals, path);
+            final LuaValue v = f.getClass() == function.getClass() ? f : function;
+            fork.values.put(this, v);
+            return v;
+        }
+    }
+
+    /**
+     * Takes the snapshot of a Globals, without recursion so that long chains of tables can be copied.
+     */
+    private static final class Capture {
+        final Globals globals;
+
+        /**
+         * The tables and Java functions of the Globals found in the same places as in a fresh Globals of the platform.
+         */
+        final IdentityHashMap<LuaValue, LuaValue[]> paths = new IdentityHashMap<>();
+        final List<TableNode> libraries = new ArrayList<>();
+        final List<LibraryNode> functions = new ArrayList<>();
+
+        final IdentityHashMap<Object, Object> nodes = new IdentityHashMap<>();
+        final ArrayDeque<TableNode> pending = new ArrayDeque<>();
+        final ArrayDeque<Object[]> pendingUpValues = new ArrayDeque<>();
+
+        Capture(Globals globals, Globals fresh) {
+            this.globals = globals;
+            // breadth first, so that each value gets its shortest path, such as string rather than package.loaded.string
+            final IdentityHashMap<LuaValue, Boolean> seen = new IdentityHashMap<>();
+            final ArrayDeque<Object[]> queue = new ArrayDeque<>();
+            queue.add(new Object[] { fresh, new LuaValue[0] });
+            seen.put(fresh, Boolean.TRUE);
+            while (!queue.isEmpty()) {
+                final Object[] e = queue.poll();
+                final LuaTable table = (LuaTable) e[0];
+                final LuaValue[] path = (LuaValue[]) e[1];
+                final LuaValue mine = lookup(globals, path);
+                if (mine.istable() && !paths.containsKey(mine))
+                    paths.put(mine, path);
+                for (LuaValue k : table.keys()) {
+                    final LuaValue v = table.rawget(k);
+                    if (!(v.istable() || v.isfunction() && !v.isclosure()) || seen.put(v, Boolean.TRUE) != null)
+                        continue;
+                    final LuaValue[] p = Arrays.copyOf(path, path.length + 1);
+                    p[path.length] = k;
+                    if (v.istable()) {
+                        queue.add(new Object[] { v, p });
+                    } else {
+                        final LuaValue f = lookup(globals, p);
+                        if (f.getClass() == v.getClass() && !paths.containsKey(f))
+                            paths.put(f, p);
+                    }
+                }
+            }
+        }
+
+        /**
+         * The value or node standing for a value of the Globals.
+         */
+        Object node(LuaValue v) {
+            switch (v.type()) {
+                case LuaValue.TNIL:
+                case LuaValue.TBOOLEAN:
+                case LuaValue.TNUMBER:
+                case LuaValue.TSTRING:
+                    return v;
+                case LuaValue.TTHREAD:
+                    throw new IllegalArgumentException("cannot take a snapshot of a coroutine");
+            }
+            final Object n = nodes.get(v);
+            if (n != null)
+                return n;
+            if (v instanceof FrozenTable)
+                return v;
+            if (v.istable()) {
+                final TableNode t = new TableNode(paths.get(v), (LuaTable) v);
+                nodes.put(v, t);
+                if (t.path != null)
+                    libraries.add(t);
+                pending.add(t);
+                return t;
+            }
+            if (v instanceof LuaClosure) {
+                final LuaClosure c = (LuaClosure) v;
+                final UpValueNode[] upvalues = new UpValueNode[c.upValues.length];
+                final ClosureNode cn = new ClosureNode(c.p, c.globals == globals, upvalues);
+                nodes.put(v, cn);
+                for (int i = 0; i < upvalues.length; i++) {
+                    final UpValue u = c.upValues[i];
+                    if (u == null)
+                        continue;
+                    UpValueNode un = (UpValueNode) nodes.get(u);
+                    if (un == null) {
+                        nodes.put(u, un = new UpValueNode());
+                        pendingUpValues.add(new Object[] { un, u.getValue() });
+                    }
+                    upvalues[i] = un;
+                }
+                return cn;
+            }
+            final LuaValue[] path = v.isfunction() ? paths.get(v) : null;
+            if (path == null)
+                return v;
+            final LibraryNode l = new LibraryNode(path, v);
+            nodes.put(v, l);
+            functions.add(l);
+            return l;
+        }
+
+        void run() {
+            while (!pending.isEmpty() || !pendingUpValues.isEmpty()) {
+                if (!pendingUpValues.isEmpty()) {
+                    final Object[] e = pendingUpValues.poll();
+                    ((UpValueNode) e[0]).value = node((LuaValue) e[1]);
+                    continue;
+                }
+                final TableNode t = pending.poll();
+                final LuaTable source = t.source;
+                t.source = null;
+                final List<Object> keys = new ArrayList<>(), values = new ArrayList<>();
+                for (Varargs n = source.next(LuaValue.NIL); !n.arg1().isnil(); n = source.next(n.arg1())) {
+                    keys.add(node(n.arg1()));
+                    values.add(node(n.arg(2)));
+                }
+                t.keys = keys.toArray();
+                t.values = values.toArray();
+                final LuaValue mt = source.getmetatable();
+                t.metatable = mt != null ? node(mt) : null;
+            }
+        }
+    }
+
+    /**
+     * The copies made so far for one fork, and the lock under which its tables are filled.
+     */
+    private static final class Fork {
+        final Globals globals;
+        final IdentityHashMap<Object, Object> values = new IdentityHashMap<>();
+
+        Fork(Globals globals) {
+            this.globals = globals;
+        }
+
+        LuaValue value(Object o) {
+            if (!(o instanceof Node))
+                return (LuaValue) o;
+            final LuaValue v = (LuaValue) values.get(o);
+            return v != null ? v : ((Node) o).create(this);
+        }
+
+        UpValue upvalue(UpValueNode n) {
+            if (n == null)
+                return null;
+            UpValue u = (UpValue) values.get(n);
+            if (u == null) {
+                values.put(n, u = new UpValue(new LuaValue[1], 0));
+                u.setValue(value(n.value));
+            }
+            return u;
+        }
+
+        synchronized void fill(ForkedTable t) {
+            final TableNode n = t.node;
+            if (n == null || t.filling)
+                return;
+            t.filling = true;
+            fill(t, n);
+            t.node = null;
+        }
+
+        void fill(LuaTable t, TableNode n) {
+            final ForkedTable f = t instanceof ForkedTable ? (ForkedTable) t : null;
+            for (int i = 0; i < n.keys.length; i++) {
+                final LuaValue k = value(n.keys[i]), v = value(n.values[i]);
+                if (f != null)
+                    f.put(k, v);
+                else
+                    t.rawset(k, v);
+            }
+            final LuaValue mt = n.metatable != null ? value(n.metatable) : null;
+            if (f != null)
+                f.putmetatable(mt);
+            else
+                t.setmetatable(mt);
+        }
+    }
+
+    /**
+     * A table of a fork, copied from the snapshot when it is first used.
+     */
+    private static final class ForkedTable extends LuaTable {
+        private final Fork fork;
+
+        /**
+         * The snapshot of the table until it is copied.
+         */
+        private volatile TableNode node;
+
+        /**
+         * Set while the table is being copied, guarded by the lock of the fork.
+         */
+        private boolean filling;
+
+        ForkedTable(Fork fork, TableNode node) {
+            this.fork = fork;
+            this.node = node;
+        }
+
+        private void touch() {
+            if (node != null)
+                fork.fill(this);
+        }
+
+        void put(LuaValue key, LuaValue value) {
+            super.rawset(key, value);
+        }
+
+        void putmetatable(LuaValue metatable) {
+            super.setmetatable(metatable);
+        }
+
+        @Override
+        public void presize(int narray) {
+            touch();
+            super.presize(narray);
+        }
+
+        @Override
+        public void presize(int narray, int nhash) {
+            touch();
+            super.presize(narray, nhash);
+        }
+
+        @Override
+        protected int getArrayLength() {
+            touch();
+            return super.getArrayLength();
+        }
+
+        @Override
+        protected int getHashLength() {
+            touch();
+            return super.getHashLength();
+        }
+
+        @Override
+        public LuaValue getmetatable() {
+            touch();
+            return super.getmetatable();
+        }
+
+        @Override
+        public LuaValue setmetatable(LuaValue metatable) {
+            touch();
+            return super.setmetatable(metatable);
+        }
+
+        @Override
+        public LuaValue get(int key) {
+            touch();
+            return super.get(key);
+        }
+
+        @Override
+        public LuaValue get(LuaValue key) {
+            touch();
+            return super.get(key);
+        }
+
+        @Override
+        public LuaValue rawget(int key) {
+            touch();
+            return super.rawget(key);
+        }
+
+        @Override
+        public LuaValue rawget(LuaValue key) {
+            touch();
+            return super.rawget(key);
+        }
+
+        @Override
+        protected LuaValue hashget(LuaValue key) {
+            touch();
+            return super.hashget(key);
+        }
+
+        @Override
+        public void set(int key, LuaValue value) {
+            touch();
+            super.set(key, value);
+        }
+
+        @Override
+        public void set(LuaValue key, LuaValue value) {
+            touch();
+            super.set(key, value);
+        }
+
+        @Override
+        public void rawset(int key, LuaValue value) {
+            touch();
+            super.rawset(key, value);
+        }
+
+        @Override
+        public void rawset(LuaValue key, LuaValue value) {
+            touch();
+            super.rawset(key, value);
+        }
+
+        @Override
+        public void hashset(LuaValue key, LuaValue value) {
+            touch();
+            super.hashset(key, value);
+        }
+
+        @Override
+        public LuaValue remove(int pos) {
+            touch();
+            return super.remove(pos);
+        }
+
+        @Override
+        public void insert(int pos, LuaValue value) {
+            touch();
+            super.insert(pos, value);
+        }
+
+        @Override
+        public LuaValue concat(LuaString sep, int i, int j) {
+            touch();
+            return super.concat(sep, i, j);
+        }
+
+        @Override
+        public int length() {
+            touch();
+            return super.length();
+        }
+
+        @Override
+        public LuaValue len() {
+            touch();
+            return super.len();
+        }
+
+        @Override
+        public int rawlen() {
+            touch();
+            return super.rawlen();
+        }
+
+        @Override
+        public Varargs next(LuaValue key) {
+            touch();
+            return super.next(key);
+        }
+
+        @Override
+        public Varargs inext(LuaValue key) {
+            touch();
+            return super.inext(key);
+        }
+
+        @Override
+        public void sort(LuaValue comparator) {
+            touch();
+            super.sort(comparator);
+        }
+
+        @Override
+        public int keyCount() {
+            touch();
+            return super.keyCount();
+        }
+
+        @Override
+        public LuaValue[] keys() {
+            touch();
+            return super.keys();
+        }
+
+        @Override
+        public boolean eq_b(LuaValue val) {
+            touch();
+            return super.eq_b(val);
+        }
+
+        @Override
+        public Varargs unpack() {
+            touch();
+            return super.unpack();
+        }
+
+        @Override
+        public Varargs unpack(int i) {
+            touch();
+            return super.unpack(i);
+        }
+
+        @Override
+        public Varargs unpack(int i, int j) {
+            touch();
+            return super.unpack(i, j);
+        }
+    }
+}
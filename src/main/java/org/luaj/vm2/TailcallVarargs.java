@@ -43,8 +43,8 @@ package org.luaj.vm2;
  */
 public class TailcallVarargs extends Varargs {
 
-    private LuaValue func;
-    private Varargs args;
+    LuaValue func;
+    Varargs args;
     private Varargs result;
 
     public TailcallVarargs(LuaValue f, Varargs args) {
@@ -0,0 +1,362 @@
+package org.luaj.vm2.compiler;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.Lua;
+import org.luaj.vm2.Prototype;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link Globals.Compiler} that keeps the binary chunks of compiled sources in a directory,
+ * so that later runs load them with {@link LoadState#undump(ByteBuffer, String)} instead of parsing the source again.
+ * <p>
+ * Each file is named after a SHA-256 digest of the chunk name, the source bytes and a version string
+ * covering the cache format, the binary chunk format and the compiler, so a changed source or an upgraded
+ * compiler never finds a stale entry.  A file holds a small header with the length and CRC-32 checksum
+ * of the chunk written by {@link DumpState}; files are memory-mapped for reading, and a file whose
+ * header or checksum does not match is deleted and the source compiled again.
+ * <p>
+ * Files are written to a temporary name and then atomically renamed, so concurrent writers and readers,
+ * including other processes sharing the directory, see either a complete file or none.
+ * When the total size of the cache files exceeds {@code maxBytes}, the least recently used ones are deleted.
+ * The total is counted from the directory once, then kept up to date with the files this cache writes and
+ * deletes; the directory is only listed again when the total goes over the bound, which also takes in the
+ * files written by other processes.  Recent use is the modification time of a file, which a hit only
+ * updates when it is older than {@link #TOUCH_INTERVAL_MILLIS}, so that most hits write nothing.
+ * <p>
+ * Failures to read or write the cache directory are not errors; the source is then simply compiled.
+ * The cache can be combined with a {@link PrototypeCache} in front of it to also share prototypes in memory:
+ * <pre> {@code
+ * BytecodeCache disk = new BytecodeCache(LuaC.instance, Paths.get("cache"), 64 << 20);
+ * new PrototypeCache(disk, 256).install(globals);
+ * } </pre>
+ *
+ * @see DumpState
+ * @see LoadState
+ * @see Globals#compiler
+ */
+public class BytecodeCache implements Globals.Compiler {
+
+    /**
+     * First bytes of every cache file.
+     */
+    private static final int MAGIC = 0x4C4A4243; // "LJBC"
+
+    /**
+     * Version of the layout of cache files.
+     */
+    private static final int FORMAT = 1;
+
+    /**
+     * Bytes before the chunk: magic, format, chunk length and checksum.
+     */
+    private static final int HEADER_SIZE = 16;
+
+    private static final String SUFFIX = ".lbc";
+
+    /**
+     * How old the modification time of a file must be for a hit to update it.
+     */
+    static final long TOUCH_INTERVAL_MILLIS = 60_000;
+
+    private final Globals.Compiler compiler;
+
+    private final Path directory;
+
+    private final long maxBytes;
+
+    private final byte[] version;
+
+    private final boolean stripDebug;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * The total size of the cache files, as far as this cache knows.
+     */
+    private long totalBytes;
+
+    /**
+     * Create a cache in a directory, which is created if it does not exist.
+     *
+     * @param compiler  the compiler used for source that is not cached
+     * @param directory the directory holding the cache files
+     * @param maxBytes  the maximum total size of the cache files
+     * @throws IOException if the directory cannot be created
+     */
+    public BytecodeCache(Globals.Compiler compiler, Path directory, long maxBytes) throws IOException {
+        this.compiler = compiler;
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+        this.stripDebug = compiler instanceof LuaC && ((LuaC) compiler).stripsDebug();
+        this.version = (FORMAT + "/" + Lua._VERSION + "/" + LoadState.LUAC_VERSION + "/" + compiler.getClass().getName()
+            + (stripDebug ? "/stripped" : "")).getBytes(StandardCharsets.UTF_8);
+        long total = 0;
+        for (CacheFile f : list())
+            total += f.size;
+        this.totalBytes = total;
+    }
+
+    /**
+     * Install this cache as the compiler of a Globals, so that its compilations are cached.
+     *
+     * @param globals the Globals into which this is to be installed.
+     */
+    public void install(Globals globals) {
+        globals.compiler = this;
+    }
+
+    public Prototype compile(InputStream stream, String chunkname) throws IOException {
+        final byte[] source = stream.readAllBytes();
+        final Path file = directory.resolve(key(source, chunkname) + SUFFIX);
+        final Prototype cached = read(file, chunkname);
+        if (cached != null) {
+            synchronized (this) {
+                hits++;
+            }
+            return cached;
+        }
+        synchronized (this) {
+            misses++;
+        }
+        final Prototype p = compiler.compile(new ByteArrayInputStream(source), chunkname);
+        write(file, p);
+        return p;
+    }
+
+    /**
+     * Number of compilations answered from the cache directory.
+     */
+    public synchronized long hitCount() {
+        return hits;
+    }
+
+    /**
+     * Number of compilations passed on to the underlying compiler.
+     */
+    public synchronized long missCount() {
+        return misses;
+    }
+
+    /**
+     * The directory holding the cache files.
+     */
+    public Path directory() {
+        return directory;
+    }
+
+    private String key(byte[] source, String chunkname) {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        md.update(version);
+        md.update((byte) 0);
+        md.update(chunkname.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        final byte[] digest = md.digest(source);
+        final StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    /**
+     * Load the prototype cached in a file, or return null if there is no usable file.
+     */
+    private Prototype read(Path file, String chunkname) {
+        final ByteBuffer chunk;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            chunk = checkedChunk(mapped, size);
+        } catch (IOException e) {
+            return null;
+        }
+        if (chunk == null) {
+            forget(file);
+            return null;
+        }
+        try {
+            final Prototype p = LoadState.undump(chunk, chunkname);
+            if (p == null) {
+                forget(file);
+                return null;
+            }
+            touch(file);
+            return stripDebug ? p.stripDebug() : p;
+        } catch (IOException | RuntimeException e) {
+            forget(file);
+            return null;
+        }
+    }
+
+    /**
+     * Get the chunk of a cache file after checking its header and checksum, or null if it is corrupt.
+     */
+    private static ByteBuffer checkedChunk(ByteBuffer file, long size) {
+        if (size < HEADER_SIZE || file.getInt(0) != MAGIC || file.getInt(4) != FORMAT)
+            return null;
+        final int length = file.getInt(8);
+        if (length < 0 || HEADER_SIZE + (long) length != size)
+            return null;
+        final ByteBuffer chunk = file.slice(HEADER_SIZE, length);
+        final CRC32 crc = new CRC32();
+        crc.update(chunk.duplicate());
+        return (int) crc.getValue() == file.getInt(12) ? chunk : null;
+    }
+
+    /**
+     * Store the binary chunk of a prototype, replacing any existing file atomically.
+     */
+    private void write(Path file, Prototype p) {
+        Path tmp = null;
+        try {
+            final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+            DumpState.dump(p, chunk, false);
+            final byte[] bytes = chunk.toByteArray();
+            final CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            tmp = Files.createTempFile(directory, "tmp", ".part");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeInt(bytes.length);
+                out.writeInt((int) crc.getValue());
+                out.write(bytes);
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+            if (added(HEADER_SIZE + bytes.length) > maxBytes)
+                evict();
+        } catch (IOException e) {
+            // the cache is best effort; the compiled prototype is still returned
+        } finally {
+            if (tmp != null)
+                delete(tmp);
+        }
+    }
+
+    /**
+     * Count bytes written to the directory, returning the new total.
+     */
+    private synchronized long added(long bytes) {
+        return totalBytes += bytes;
+    }
+
+    /**
+     * Delete a cache file this cache found to be unusable, and take it out of the total.
+     */
+    private void forget(Path file) {
+        long size = 0;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            // already gone
+        }
+        delete(file);
+        added(-size);
+    }
+
+    /**
+     * The cache files in the directory with their sizes and modification times.
+     */
+    private List<CacheFile> list() throws IOException {
+        final List<CacheFile> files = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path f : dir) {
+                try {
+                    final BasicFileAttributes a = Files.readAttributes(f, BasicFileAttributes.class);
+                    files.add(new CacheFile(f, a.size(), a.lastModifiedTime()));
+                } catch (NoSuchFileException e) {
+                    // evicted by someone else
+                }
+            }
+        }
+        return files;
+    }
+
+    private static final class CacheFile {
+        final Path path;
+        final long size;
+        final FileTime modified;
+
+        CacheFile(Path path, long size, FileTime modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Recount the cache files and delete the least recently used ones until their total size is within the bound.
+     */
+    private synchronized void evict() throws IOException {
+        final List<CacheFile> files = list();
+        long total = 0;
+        for (CacheFile f : files)
+            total += f.size;
+        if (total > maxBytes) {
+            files.sort(Comparator.comparing(f -> f.modified));
+            for (int i = 0; i < files.size() && total > maxBytes; i++) {
+                delete(files.get(i).path);
+                total -= files.get(i).size;
+            }
+        }
+        totalBytes = total;
+    }
+
+    /**
+     * Mark a file as recently used, unless it was marked not long ago.
+     */
+    private static void touch(Path file) {
+        try {
+            final long now = System.currentTimeMillis();
+            if (now - Files.getLastModifiedTime(file).toMillis() >= TOUCH_INTERVAL_MILLIS)
+                Files.setLastModifiedTime(file, FileTime.fromMillis(now));
+        } catch (IOException e) {
+            // only affects the eviction order
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // left for eviction
+        }
+    }
+}
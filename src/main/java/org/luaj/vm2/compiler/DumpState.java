@@ -23,9 +23,10 @@ package org.luaj.vm2.compiler;
 
 import org.luaj.vm2.*;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 
 /**
@@ -57,6 +58,9 @@ import java.io.OutputStream;
  * LuaClosure c = new LuaClosure(p, globals);
  * c.call();
  * } </pre>
+ * <p>
+ * The chunk is assembled in a {@link ByteBuffer} in the chosen byte order, with instruction and line arrays
+ * written in bulk through an {@link java.nio.IntBuffer} view, and handed to the output stream in a single write.
  *
  * @see luac
  * @see LoadState
@@ -98,61 +102,72 @@ public class DumpState {
     private static final int SIZEOF_SIZET = 4;
     private static final int SIZEOF_INSTRUCTION = 4;
 
-    DataOutputStream writer;
+    private final OutputStream writer;
+    private ByteBuffer buffer = ByteBuffer.allocate(1024);
     boolean strip;
     int status;
 
     public DumpState(OutputStream w, boolean strip) {
-        this.writer = new DataOutputStream(w);
+        this.writer = w;
         this.strip = strip;
         this.status = 0;
     }
 
-    void dumpBlock(final byte[] b, int size) throws IOException {
-        writer.write(b, 0, size);
+    /**
+     * Make room for n more bytes in the buffer, keeping its byte order.
+     */
+    private void ensure(int n) {
+        if (buffer.remaining() < n) {
+            final ByteBuffer b = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + n));
+            b.order(buffer.order());
+            b.put(buffer.flip());
+            buffer = b;
+        }
     }
 
-    void dumpChar(int b) throws IOException {
-        writer.write(b);
+    void dumpBlock(final byte[] b, int size) {
+        ensure(size);
+        buffer.put(b, 0, size);
     }
 
-    void dumpInt(int x) throws IOException {
-        if (IS_LITTLE_ENDIAN) {
-            writer.writeByte(x & 0xff);
-            writer.writeByte((x >> 8) & 0xff);
-            writer.writeByte((x >> 16) & 0xff);
-            writer.writeByte((x >> 24) & 0xff);
-        } else {
-            writer.writeInt(x);
-        }
+    void dumpChar(int b) {
+        ensure(1);
+        buffer.put((byte) b);
     }
 
-    void dumpString(LuaString s) throws IOException {
+    void dumpInt(int x) {
+        ensure(4);
+        buffer.putInt(x);
+    }
+
+    /**
+     * Dump a count followed by the int values of an array.
+     */
+    void dumpIntArray(final int[] a, int n) {
+        ensure(4 + (n << 2));
+        buffer.putInt(n);
+        buffer.asIntBuffer().put(a, 0, n);
+        buffer.position(buffer.position() + (n << 2));
+    }
+
+    void dumpString(LuaString s) {
         final int len = s.len().toint();
-        dumpInt(len + 1);
-        s.write(writer, 0, len);
-        writer.write(0);
+        ensure(len + 5);
+        buffer.putInt(len + 1);
+        buffer.put(s.m_bytes, s.m_offset, len);
+        buffer.put((byte) 0);
     }
 
-    void dumpDouble(double d) throws IOException {
-        long l = Double.doubleToLongBits(d);
-        if (IS_LITTLE_ENDIAN) {
-            dumpInt((int) l);
-            dumpInt((int) (l >> 32));
-        } else {
-            writer.writeLong(l);
-        }
+    void dumpDouble(double d) {
+        ensure(8);
+        buffer.putLong(Double.doubleToLongBits(d));
     }
 
-    void dumpCode(final Prototype f) throws IOException {
-        final int[] code = f.code;
-        int n = code.length;
-        dumpInt(n);
-        for (int i = 0; i < n; i++)
-            dumpInt(code[i]);
+    void dumpCode(final Prototype f) {
+        dumpIntArray(f.code, f.code.length);
     }
 
-    void dumpConstants(final Prototype f) throws IOException {
+    void dumpConstants(final Prototype f) {
         final LuaValue[] k = f.k;
         int i, n = k.length;
         dumpInt(n);
@@ -160,30 +175,30 @@ public class DumpState {
             final LuaValue o = k[i];
             switch (o.type()) {
                 case LuaValue.TNIL:
-                    writer.write(LuaValue.TNIL);
+                    dumpChar(LuaValue.TNIL);
                     break;
                 case LuaValue.TBOOLEAN:
-                    writer.write(LuaValue.TBOOLEAN);
+                    dumpChar(LuaValue.TBOOLEAN);
                     dumpChar(o.toboolean() ? 1 : 0);
                     break;
                 case LuaValue.TNUMBER:
                     switch (NUMBER_FORMAT) {
                         case NUMBER_FORMAT_FLOATS_OR_DOUBLES:
-                            writer.write(LuaValue.TNUMBER);
+                            dumpChar(LuaValue.TNUMBER);
                             dumpDouble(o.todouble());
                             break;
                         case NUMBER_FORMAT_INTS_ONLY:
                             if (!ALLOW_INTEGER_CASTING && !o.isint())
                                 throw new java.lang.IllegalArgumentException("not an integer: " + o);
-                            writer.write(LuaValue.TNUMBER);
+                            dumpChar(LuaValue.TNUMBER);
                             dumpInt(o.toint());
                             break;
                         case NUMBER_FORMAT_NUM_PATCH_INT32:
                             if (o.isint()) {
-                                writer.write(LuaValue.TINT);
+                                dumpChar(LuaValue.TINT);
                                 dumpInt(o.toint());
                             } else {
-                                writer.write(LuaValue.TNUMBER);
+                                dumpChar(LuaValue.TNUMBER);
                                 dumpDouble(o.todouble());
                             }
                             break;
@@ -192,7 +207,7 @@ public class DumpState {
                     }
                     break;
                 case LuaValue.TSTRING:
-                    writer.write(LuaValue.TSTRING);
+                    dumpChar(LuaValue.TSTRING);
                     dumpString((LuaString) o);
                     break;
                 default:
@@ -205,25 +220,23 @@ public class DumpState {
             dumpFunction(f.p[i]);
     }
 
-    void dumpUpvalues(final Prototype f) throws IOException {
+    void dumpUpvalues(final Prototype f) {
         int n = f.upvalues.length;
         dumpInt(n);
         for (int i = 0; i < n; i++) {
-            writer.writeByte(f.upvalues[i].instack ? 1 : 0);
-            writer.writeByte(f.upvalues[i].idx);
+            dumpChar(f.upvalues[i].instack ? 1 : 0);
+            dumpChar(f.upvalues[i].idx);
         }
     }
 
-    void dumpDebug(final Prototype f) throws IOException {
+    void dumpDebug(final Prototype f) {
         int i, n;
         if (strip)
             dumpInt(0);
         else
             dumpString(f.source);
-        n = strip ? 0 : f.lineinfo.length;
-        dumpInt(n);
-        for (i = 0; i < n; i++)
-            dumpInt(f.lineinfo[i]);
+        final int[] lineinfo = f.getlineinfo();
+        dumpIntArray(lineinfo, strip ? 0 : lineinfo.length);
         n = strip ? 0 : f.locvars.length;
         dumpInt(n);
         for (i = 0; i < n; i++) {
@@ -238,7 +251,8 @@ public class DumpState {
             dumpString(f.upvalues[i].name);
     }
 
-    void dumpFunction(final Prototype f) throws IOException {
+    void dumpFunction(final Prototype f) {
+        f.materializeDebug();
         dumpInt(f.linedefined);
         dumpInt(f.lastlinedefined);
         dumpChar(f.numparams);
@@ -250,17 +264,25 @@ public class DumpState {
         dumpDebug(f);
     }
 
-    void dumpHeader() throws IOException {
-        writer.write(LoadState.LUA_SIGNATURE);
-        writer.write(LoadState.LUAC_VERSION);
-        writer.write(LoadState.LUAC_FORMAT);
-        writer.write(IS_LITTLE_ENDIAN ? 1 : 0);
-        writer.write(SIZEOF_INT);
-        writer.write(SIZEOF_SIZET);
-        writer.write(SIZEOF_INSTRUCTION);
-        writer.write(SIZEOF_LUA_NUMBER);
-        writer.write(NUMBER_FORMAT);
-        writer.write(LoadState.LUAC_TAIL);
+    void dumpHeader() {
+        buffer.order(IS_LITTLE_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        dumpBlock(LoadState.LUA_SIGNATURE, LoadState.LUA_SIGNATURE.length);
+        dumpChar(LoadState.LUAC_VERSION);
+        dumpChar(LoadState.LUAC_FORMAT);
+        dumpChar(IS_LITTLE_ENDIAN ? 1 : 0);
+        dumpChar(SIZEOF_INT);
+        dumpChar(SIZEOF_SIZET);
+        dumpChar(SIZEOF_INSTRUCTION);
+        dumpChar(SIZEOF_LUA_NUMBER);
+        dumpChar(NUMBER_FORMAT);
+        dumpBlock(LoadState.LUAC_TAIL, LoadState.LUAC_TAIL.length);
+    }
+
+    /**
+     * Write the assembled chunk to the output stream.
+     */
+    void flush() throws IOException {
+        writer.write(buffer.array(), 0, buffer.position());
     }
 
     /*
@@ -270,6 +292,7 @@ public class DumpState {
         DumpState D = new DumpState(w, strip);
         D.dumpHeader();
         D.dumpFunction(f);
+        D.flush();
         return D.status;
     }
 
@@ -298,6 +321,7 @@ public class DumpState {
         D.SIZEOF_LUA_NUMBER = (numberFormat == NUMBER_FORMAT_INTS_ONLY ? 4 : 8);
         D.dumpHeader();
         D.dumpFunction(f);
+        D.flush();
         return D.status;
     }
 }
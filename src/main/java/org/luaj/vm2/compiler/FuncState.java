@@ -492,6 +492,8 @@ public class FuncState extends Constants {
             int i = (int) d;
             if (d == (double) i)
                 r = LuaInteger.valueOf(i);
+            else
+                r = ConstantPool.intern(r);
         }
         return this.addk(r);
     }
@@ -72,7 +72,17 @@ public class LuaC extends Constants implements Globals.Compiler, Globals.Loader
     /**
      * A sharable instance of the LuaC compiler.
      */
-    public static final LuaC instance = new LuaC();
+    public static final LuaC instance = new LuaC(false);
+
+    /**
+     * A sharable instance of the LuaC compiler that strips debug information
+     * from what it compiles, keeping packed line numbers.
+     *
+     * @see Prototype#stripDebug()
+     */
+    public static final LuaC stripping = new LuaC(true);
+
+    private final boolean stripDebug;
 
     /**
      * Install the compiler so that LoadState will first
@@ -82,11 +92,29 @@ public class LuaC extends Constants implements Globals.Compiler, Globals.Loader
      * @param globals the Globals into which this is to be installed.
      */
     public static void install(Globals globals) {
-        globals.compiler = instance;
-        globals.loader = instance;
+        install(globals, false);
+    }
+
+    /**
+     * Install the compiler, optionally stripping local variable and upvalue names
+     * from compiled chunks and packing their line info, to reduce their memory use.
+     *
+     * @param globals    the Globals into which this is to be installed.
+     * @param stripDebug true to strip debug information, see {@link Prototype#stripDebug()}
+     */
+    public static void install(Globals globals, boolean stripDebug) {
+        final LuaC c = stripDebug ? stripping : instance;
+        globals.compiler = c;
+        globals.loader = c;
     }
 
-    protected LuaC() {}
+    protected LuaC() {
+        this(false);
+    }
+
+    protected LuaC(boolean stripDebug) {
+        this.stripDebug = stripDebug;
+    }
 
     /**
      * Compile lua source into a Prototype.
@@ -97,7 +125,17 @@ public class LuaC extends Constants implements Globals.Compiler, Globals.Loader
      * @throws IOException
      */
     public Prototype compile(InputStream stream, String chunkname) throws IOException {
-        return (new CompileState()).luaY_parser(stream, chunkname);
+        final Prototype p = (new CompileState()).luaY_parser(stream, chunkname);
+        return stripDebug ? p.stripDebug() : p;
+    }
+
+    /**
+     * Whether this compiler strips debug information from what it compiles.
+     *
+     * @see #install(Globals, boolean)
+     */
+    public boolean stripsDebug() {
+        return stripDebug;
     }
 
     public LuaFunction load(Prototype prototype, String chunkname, LuaValue env) throws IOException {
@@ -127,10 +165,11 @@ public class LuaC extends Constants implements Globals.Compiler, Globals.Loader
             FuncState funcstate = new FuncState();
             // lexstate.buff = buff;
             lexstate.fs = funcstate;
-            lexstate.setinput(this, z.read(), z, (LuaString) LuaValue.valueOf(name));
+            final LuaString source = ConstantPool.intern(LuaString.valueOf(name));
+            lexstate.setinput(this, z.read(), z, source);
             /* main func. is always vararg */
             funcstate.f = new Prototype();
-            funcstate.f.source = (LuaString) LuaValue.valueOf(name);
+            funcstate.f.source = source;
             lexstate.mainfunc(funcstate);
             LuaC._assert(funcstate.prev == null);
             /* all scopes should be correctly finished */
@@ -153,6 +192,8 @@ public class LuaC extends Constants implements Globals.Compiler, Globals.Loader
             LuaString c = (LuaString) strings.get(s);
             if (c != null)
                 return c;
+            // share the instance with any other prototype holding the same string
+            s = ConstantPool.intern(s);
             strings.put(s, s);
             return s;
         }
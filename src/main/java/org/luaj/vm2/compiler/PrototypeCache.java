@@ -0,0 +1,182 @@
+package org.luaj.vm2.compiler;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.Prototype;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link Globals.Compiler} that remembers the {@link Prototype}s compiled by another compiler,
+ * so that the same source loaded into many {@link Globals} is parsed only once.
+ * <p>
+ * Entries are keyed by the chunk name and a SHA-256 digest of the source bytes.
+ * A {@link Prototype} is not modified once compiled, so one instance can be shared by any
+ * number of Globals and threads; each load still creates its own {@link org.luaj.vm2.LuaClosure}
+ * with its own upvalues and environment.
+ * <p>
+ * To share compiled code between Globals, install the same cache into each of them:
+ * <pre> {@code
+ * PrototypeCache cache = new PrototypeCache(LuaC.instance, 256);
+ * for (Globals globals : machines)
+ *     cache.install(globals);
+ * } </pre>
+ * <p>
+ * The cache holds at most {@code maxEntries} prototypes and evicts the least recently used one
+ * beyond that.  Source that fails to compile is not cached.
+ *
+ * @see Globals#compiler
+ * @see LuaC
+ */
+public class PrototypeCache implements Globals.Compiler {
+
+    private final Globals.Compiler compiler;
+
+    private final int maxEntries;
+
+    private final Map<Key, Prototype> entries;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * Create a cache in front of a compiler.
+     *
+     * @param compiler   the compiler used for source that is not cached
+     * @param maxEntries the maximum number of prototypes kept
+     */
+    public PrototypeCache(Globals.Compiler compiler, int maxEntries) {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("maxEntries must be positive");
+        this.compiler = compiler;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Key, Prototype>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Key, Prototype> eldest) {
+                if (size() <= PrototypeCache.this.maxEntries)
+                    return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Install this cache as the compiler of a Globals, so that its compilations are cached.
+     *
+     * @param globals the Globals into which this is to be installed.
+     */
+    public void install(Globals globals) {
+        globals.compiler = this;
+    }
+
+    public Prototype compile(InputStream stream, String chunkname) throws IOException {
+        final byte[] source = stream.readAllBytes();
+        final Key key = new Key(chunkname, digest(source));
+        synchronized (entries) {
+            final Prototype p = entries.get(key);
+            if (p != null) {
+                hits++;
+                return p;
+            }
+            misses++;
+        }
+        final Prototype p = compiler.compile(new ByteArrayInputStream(source), chunkname);
+        synchronized (entries) {
+            // keep the first one when another thread compiled the same source meanwhile
+            final Prototype q = entries.putIfAbsent(key, p);
+            return q != null ? q : p;
+        }
+    }
+
+    /**
+     * Number of compilations answered from the cache.
+     */
+    public long hitCount() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    /**
+     * Number of compilations passed on to the underlying compiler.
+     */
+    public long missCount() {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    /**
+     * Number of prototypes dropped to stay within the size bound.
+     */
+    public long evictionCount() {
+        synchronized (entries) {
+            return evictions;
+        }
+    }
+
+    /**
+     * Number of prototypes currently cached.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Maximum number of prototypes this cache keeps.
+     */
+    public int maxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Remove all cached prototypes.  The counters are not reset.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private static byte[] digest(byte[] source) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(source);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Key {
+        private final String chunkname;
+        private final byte[] digest;
+        private final int hash;
+
+        Key(String chunkname, byte[] digest) {
+            this.chunkname = chunkname;
+            this.digest = digest;
+            this.hash = chunkname.hashCode() * 31 + Arrays.hashCode(digest);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            final Key k = (Key) o;
+            return hash == k.hash && chunkname.equals(k.chunkname) && Arrays.equals(digest, k.digest);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.luaj.vm2.lib;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.Varargs;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Abstract base class for Java functions that start an operation and return its result later,
+ * such as reads and writes of disk or network peripherals.
+ * <p>
+ * Subclasses implement {@link #invokeAsync(Varargs)}, returning a future of the values the
+ * function returns to lua; an error the future completes with is raised as a lua error.
+ * How the caller waits depends on where the function is called from:
+ * <ul>
+ * <li>From a lua function of a stackless coroutine (see {@link Globals#stackless}),
+ * the coroutine is suspended until the future completes, without holding a Java thread.
+ * A coroutine run by a {@link org.luaj.vm2.Scheduler} gives its worker to other tasks meanwhile,
+ * and is queued again when the future completes; one resumed with {@code coroutine.resume}
+ * is continued by that resume once the future completes, so the call looks synchronous to the resumer.</li>
+ * <li>Anywhere else, the calling Java thread blocks until the future completes.
+ * On the virtual thread carrier of a threaded coroutine this only parks the virtual thread.</li>
+ * </ul>
+ * <pre> {@code
+ * globals.set("fetch", new AsyncFunction() {
+ *     public CompletableFuture<Varargs> invokeAsync(Varargs args) {
+ *         return http.sendAsync(request(args.checkjstring(1)), BodyHandlers.ofString())
+ *             .thenApply(r -> valueOf(r.body()));
+ *     }
+ * });
+ * } </pre>
+ *
+ * @see org.luaj.vm2.Scheduler
+ */
+abstract public class AsyncFunction extends VarArgFunction {
+
+    /**
+     * Start the operation.
+     *
+     * @param args the arguments to the function call.
+     * @return a future of the values to return, or completing exceptionally with the error to raise.
+     */
+    abstract public CompletableFuture<Varargs> invokeAsync(Varargs args);
+
+    /**
+     * Start the operation and block the calling thread until it completes.
+     */
+    public Varargs invoke(Varargs args) {
+        return await(invokeAsync(args));
+    }
+
+    /**
+     * Wait for a future returned by {@link #invokeAsync(Varargs)}, returning its values
+     * or throwing its error as a {@link LuaError}.
+     */
+    public static Varargs await(CompletableFuture<Varargs> future) {
+        try {
+            final Varargs v = future.get();
+            return v != null ? v : NONE;
+        } catch (ExecutionException e) {
+            final Throwable t = e.getCause() != null ? e.getCause() : e;
+            if (t instanceof LuaError)
+                throw (LuaError) t;
+            final String m = t.getMessage();
+            throw new LuaError(m != null ? m : t.toString());
+        } catch (CancellationException e) {
+            throw new LuaError("cancelled");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LuaError("interrupted");
+        }
+    }
+}
@@ -135,15 +135,20 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
     }
 
     // "collectgarbage", // ( opt [,arg] ) -> value
-    static final class collectgarbage extends VarArgFunction {
+    final class collectgarbage extends VarArgFunction {
         public Varargs invoke(Varargs args) {
             String s = args.optjstring(1, "collect");
             if ("collect".equals(s)) {
                 System.gc();
                 return ZERO;
             } else if ("count".equals(s)) {
-                Runtime rt = Runtime.getRuntime();
-                long used = rt.totalMemory() - rt.freeMemory();
+                long used;
+                if (globals.memory != null) {
+                    used = globals.memory.used();
+                } else {
+                    Runtime rt = Runtime.getRuntime();
+                    used = rt.totalMemory() - rt.freeMemory();
+                }
                 return varargsOf(valueOf(used / 1024.), valueOf(used % 1024));
             } else if ("step".equals(s)) {
                 System.gc();
@@ -217,7 +222,7 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
     }
 
     // "pcall", // (f, arg1, ...) -> status, result1, ...
-    final class pcall extends VarArgFunction {
+    public final class pcall extends VarArgFunction {
         public Varargs invoke(Varargs args) {
             LuaValue func = args.checkvalue(1);
             if (globals != null && globals.debuglib != null)
@@ -374,9 +379,9 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
     }
 
     // "xpcall", // (f, err) -> result1, ...
-    final class xpcall extends VarArgFunction {
+    public final class xpcall extends VarArgFunction {
         public Varargs invoke(Varargs args) {
-            final LuaThread t = globals.running;
+            final LuaThread t = globals.running();
             final LuaValue preverror = t.errorfunc;
             t.errorfunc = args.checkvalue(2);
             try {
@@ -34,6 +34,9 @@ import org.luaj.vm2.*;
  * However, coroutines that are yielded but never resumed to complete their execution
  * may not be collected by the garbage collector.
  * <p>
+ * When {@link Globals#stackless} is set, coroutines with a lua body instead run without
+ * a Java thread of their own, and can yield through lua calls, {@code pcall} and {@code xpcall} only.
+ * <p>
  * Typically, this library is included as part of a call to either
  * {@link org.luaj.vm2.lib.jse.JsePlatform#standardGlobals()} or {@link org.luaj.vm2.lib.jme.JmePlatform#standardGlobals()}
  * <pre> {@code
@@ -59,8 +62,6 @@ import org.luaj.vm2.*;
  */
 public class CoroutineLib extends TwoArgFunction {
 
-    static int coroutine_count = 0;
-
     Globals globals;
 
     /**
@@ -100,7 +101,7 @@ public class CoroutineLib extends TwoArgFunction {
 
     final class running extends VarArgFunction {
         public Varargs invoke(Varargs args) {
-            final LuaThread r = globals.running;
+            final LuaThread r = globals.running();
             return varargsOf(r, valueOf(r.isMainThread()));
         }
     }
@@ -112,7 +113,7 @@ public class CoroutineLib extends TwoArgFunction {
         }
     }
 
-    final class _yield extends VarArgFunction {
+    public final class _yield extends VarArgFunction {
         public Varargs invoke(Varargs args) {
             return globals.yield(args);
         }
@@ -134,11 +135,14 @@ public class CoroutineLib extends TwoArgFunction {
         }
 
         public Varargs invoke(Varargs args) {
-            final Varargs result = luathread.resume(args);
-            if (result.arg1().toboolean()) {
-                return result.subargs(2);
-            } else {
-                return error(result.arg(2).tojstring());
+            try {
+                return luathread.resumeOrThrow(args);
+            } catch (LuaError e) {
+                // string errors get the position of the call, as in C lua; other error values pass unchanged
+                final LuaValue m = e.getMessageObject();
+                if (m == null || m.isstring())
+                    return error(e.getMessage());
+                throw new LuaError(m);
             }
         }
     }
@@ -137,7 +137,7 @@ public class DebugLib extends TwoArgFunction {
     // debug.gethook ([thread])
     final class gethook extends VarArgFunction {
         public Varargs invoke(Varargs args) {
-            LuaThread t = args.narg() > 0 ? args.checkthread(1) : globals.running;
+            LuaThread t = args.narg() > 0 ? args.checkthread(1) : globals.running();
             LuaThread.State s = t.state;
             return varargsOf(
                 s.hookfunc != null ? s.hookfunc : NIL,
@@ -150,7 +150,7 @@ public class DebugLib extends TwoArgFunction {
     final class getinfo extends VarArgFunction {
         public Varargs invoke(Varargs args) {
             int a = 1;
-            LuaThread thread = args.isthread(a) ? args.checkthread(a++) : globals.running;
+            LuaThread thread = args.isthread(a) ? args.checkthread(a++) : globals.running();
             LuaValue func = args.arg(a++);
             String what = args.optjstring(a++, "flnStu");
             DebugLib.CallStack callstack = callstack(thread);
@@ -213,7 +213,7 @@ public class DebugLib extends TwoArgFunction {
     final class getlocal extends VarArgFunction {
         public Varargs invoke(Varargs args) {
             int a = 1;
-            LuaThread thread = args.isthread(a) ? args.checkthread(a++) : globals.running;
+            LuaThread thread = args.isthread(a) ? args.checkthread(a++) : globals.running();
             int level = args.checkint(a++);
             int local = args.checkint(a++);
             CallFrame f = callstack(thread).getCallFrame(level);
@@ -264,7 +264,7 @@ public class DebugLib extends TwoArgFunction {
     final class sethook extends VarArgFunction {
         public Varargs invoke(Varargs args) {
             int a = 1;
-            LuaThread t = args.isthread(a) ? args.checkthread(a++) : globals.running;
+            LuaThread t = args.isthread(a) ? args.checkthread(a++) : globals.running();
             LuaValue func = args.optfunction(a++, null);
             String str = args.optjstring(a++, "");
             int count = args.optint(a++, 0);
@@ -295,7 +295,7 @@ public class DebugLib extends TwoArgFunction {
     final class setlocal extends VarArgFunction {
         public Varargs invoke(Varargs args) {
             int a = 1;
-            LuaThread thread = args.isthread(a) ? args.checkthread(a++) : globals.running;
+            LuaThread thread = args.isthread(a) ? args.checkthread(a++) : globals.running();
             int level = args.checkint(a++);
             int local = args.checkint(a++);
             LuaValue value = args.arg(a++);
@@ -368,7 +368,7 @@ public class DebugLib extends TwoArgFunction {
     final class traceback extends VarArgFunction {
         public Varargs invoke(Varargs args) {
             int a = 1;
-            LuaThread thread = args.isthread(a) ? args.checkthread(a++) : globals.running;
+            LuaThread thread = args.isthread(a) ? args.checkthread(a++) : globals.running();
             String message = args.optjstring(a++, null);
             int level = args.optint(a++, 1);
             String tb = callstack(thread).traceback(level);
@@ -408,21 +408,21 @@ public class DebugLib extends TwoArgFunction {
     }
 
     public void onCall(LuaFunction f) {
-        LuaThread.State s = globals.running.state;
+        LuaThread.State s = globals.running().state;
         if (s.inhook) return;
         callstack().onCall(f);
         if (s.hookcall) callHook(s, CALL, NIL);
     }
 
     public void onCall(LuaClosure c, Varargs varargs, LuaValue[] stack) {
-        LuaThread.State s = globals.running.state;
+        LuaThread.State s = globals.running().state;
         if (s.inhook) return;
         callstack().onCall(c, varargs, stack);
         if (s.hookcall) callHook(s, CALL, NIL);
     }
 
     public void onInstruction(int pc, Varargs v, int top) {
-        LuaThread.State s = globals.running.state;
+        LuaThread.State s = globals.running().state;
         if (s.inhook) return;
         callstack().onInstruction(pc, v, top);
         if (s.hookfunc == null) return;
@@ -439,7 +439,7 @@ public class DebugLib extends TwoArgFunction {
     }
 
     public void onReturn() {
-        LuaThread.State s = globals.running.state;
+        LuaThread.State s = globals.running().state;
         if (s.inhook) return;
         callstack().onReturn();
         if (s.hookrtrn) callHook(s, RETURN, NIL);
@@ -468,7 +468,7 @@ public class DebugLib extends TwoArgFunction {
     }
 
     CallStack callstack() {
-        return callstack(globals.running);
+        return callstack(globals.running());
     }
 
     CallStack callstack(LuaThread t) {
@@ -555,6 +555,9 @@ public class DebugLib extends TwoArgFunction {
 
         /**
          * Get the traceback starting at a specific level.
+         * <p>
+         * As in C lua, a stack deeper than {@link #TRACEBACK_FIRST} + {@link #TRACEBACK_LAST} levels
+         * only shows its first and last levels, with a line telling how many were skipped.
          *
          * @param level
          * @return String containing the traceback.
@@ -562,7 +565,14 @@ public class DebugLib extends TwoArgFunction {
         synchronized String traceback(int level) {
             StringBuffer sb = new StringBuffer();
             sb.append("stack traceback:");
+            int limit = calls - level + 1 > TRACEBACK_FIRST + TRACEBACK_LAST ? TRACEBACK_FIRST : -1;
             for (DebugLib.CallFrame c; (c = getCallFrame(level++)) != null; ) {
+                if (limit-- == 0) {
+                    final int n = calls - level - TRACEBACK_LAST + 2;
+                    sb.append("\n\t...\t(skipping ").append(n).append(" levels)");
+                    level += n;
+                    c = getCallFrame(level - 1);
+                }
                 sb.append("\n\t");
                 sb.append(c.shortsource());
                 sb.append(':');
@@ -588,6 +598,12 @@ public class DebugLib extends TwoArgFunction {
             return sb.toString();
         }
 
+        /**
+         * Levels shown at the top and the bottom of a long traceback.
+         */
+        static final int TRACEBACK_FIRST = 10;
+        static final int TRACEBACK_LAST = 11;
+
         synchronized DebugLib.CallFrame getCallFrame(int level) {
             if (level < 1 || level > calls)
                 return null;
@@ -713,8 +729,7 @@ public class DebugLib extends TwoArgFunction {
 
         public int currentline() {
             if (!f.isclosure()) return -1;
-            int[] li = f.checkclosure().p.lineinfo;
-            return li == null || pc < 0 || pc >= li.length ? -1 : li[pc];
+            return f.checkclosure().p.getline(pc);
         }
 
         String sourceline() {
@@ -734,8 +749,10 @@ public class DebugLib extends TwoArgFunction {
 
     static LuaString findupvalue(LuaClosure c, int up) {
         if (c.upValues != null && up > 0 && up <= c.upValues.length) {
-            if (c.p.upvalues != null && up <= c.p.upvalues.length)
-                return c.p.upvalues[up - 1].name;
+            if (c.p.upvalues != null && up <= c.p.upvalues.length) {
+                LuaString name = c.p.materializeDebug().upvalues[up - 1].name;
+                return name != null ? name : EMPTYSTRING;  /* stripped */
+            }
             else
                 return LuaString.valueOf("." + up);
         }
@@ -825,6 +842,7 @@ public class DebugLib extends TwoArgFunction {
     // return NameWhat if found, null if not
     public static NameWhat getobjname(Prototype p, int lastpc, int reg) {
         int pc = lastpc; // currentpc(L, ci);
+        p.materializeDebug();
         LuaString name = p.getlocalname(reg + 1, pc);
         if (name != null) /* is a local? */
             return new NameWhat(name.tojstring(), "local");
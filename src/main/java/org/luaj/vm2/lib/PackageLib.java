@@ -24,6 +24,7 @@ package org.luaj.vm2.lib;
 import org.luaj.vm2.*;
 
 import java.io.InputStream;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Subclass of {@link LibFunction} which implements the lua standard package and module
@@ -106,6 +107,11 @@ public class PackageLib extends TwoArgFunction {
      */
     Globals globals;
 
+    /**
+     * Held while require loads a module into a shared Globals, see {@link Globals#share()}.
+     */
+    private final ReentrantLock loading = new ReentrantLock();
+
     /**
      * The table for this package.
      */
@@ -213,6 +219,18 @@ public class PackageLib extends TwoArgFunction {
      */
     public class require extends OneArgFunction {
         public LuaValue call(LuaValue arg) {
+            if (globals == null || !globals.isShared())
+                return require(arg);
+            // one module at a time, so that threads sharing the globals load each module once
+            loading.lock();
+            try {
+                return require(arg);
+            } finally {
+                loading.unlock();
+            }
+        }
+
+        private LuaValue require(LuaValue arg) {
             LuaString name = arg.checkstring();
             LuaValue loaded = package_.get(_LOADED);
             LuaValue result = loaded.get(name);
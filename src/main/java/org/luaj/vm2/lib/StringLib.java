@@ -26,6 +26,10 @@ import org.luaj.vm2.compiler.DumpState;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Subclass of {@link LibFunction} which implements the lua standard {@code string}
@@ -93,9 +97,12 @@ public class StringLib extends TwoArgFunction {
         string.set("len", new len());
         string.set("lower", new lower());
         string.set("match", new match());
+        string.set("pack", new pack());
+        string.set("packsize", new packsize());
         string.set("rep", new rep());
         string.set("reverse", new reverse());
         string.set("sub", new sub());
+        string.set("unpack", new unpack());
         string.set("upper", new upper());
 
         env.set("string", string);
@@ -233,74 +240,187 @@ public class StringLib extends TwoArgFunction {
     final class format extends VarArgFunction {
         public Varargs invoke(Varargs args) {
             LuaString fmt = args.checkstring(1);
-            final int n = fmt.length();
-            Buffer result = new Buffer(n);
+            final FormatSpec spec = formatSpec(fmt);
+            final FormatDesc[] descs = spec.descs;
+            Buffer result = new Buffer(fmt.length());
             int arg = 1;
-            int c;
 
-            for (int i = 0; i < n; ) {
-                switch (c = fmt.luaByte(i++)) {
-                    case '\n':
-                        result.append("\n");
+            for (int k = 0; k < descs.length; ++k) {
+                result.append(spec.literals[k]);
+                arg++;
+                FormatDesc fdsc = descs[k];
+                if (fdsc.invalid != null)
+                    error(fdsc.invalid);
+                switch (fdsc.conversion) {
+                    case 'c':
+                        fdsc.format(result, (byte) args.checkint(arg));
                         break;
-                    default:
-                        result.append((byte) c);
+                    case 'i':
+                    case 'd':
+                        fdsc.format(result, args.checklong(arg));
                         break;
-                    case L_ESC:
-                        if (i < n) {
-                            if ((c = fmt.luaByte(i)) == L_ESC) {
-                                ++i;
-                                result.append((byte) L_ESC);
-                            } else {
-                                arg++;
-                                FormatDesc fdsc = new FormatDesc(args, fmt, i);
-                                i += fdsc.length;
-                                switch (fdsc.conversion) {
-                                    case 'c':
-                                        fdsc.format(result, (byte) args.checkint(arg));
-                                        break;
-                                    case 'i':
-                                    case 'd':
-                                        fdsc.format(result, args.checklong(arg));
-                                        break;
-                                    case 'o':
-                                    case 'u':
-                                    case 'x':
-                                    case 'X':
-                                        fdsc.format(result, args.checklong(arg));
-                                        break;
-                                    case 'e':
-                                    case 'E':
-                                    case 'f':
-                                    case 'g':
-                                    case 'G':
-                                        fdsc.format(result, args.checkdouble(arg));
-                                        break;
-                                    case 'q':
-                                        addquoted(result, args.checkstring(arg));
-                                        break;
-                                    case 's': {
-                                        LuaString s = args.checkstring(arg);
-                                        if (fdsc.precision == -1 && s.length() >= 100) {
-                                            result.append(s);
-                                        } else {
-                                            fdsc.format(result, s);
-                                        }
-                                    }
-                                    break;
-                                    default:
-                                        error("invalid option '%" + (char) fdsc.conversion + "' to 'format'");
-                                        break;
-                                }
-                            }
+                    case 'o':
+                    case 'u':
+                    case 'x':
+                    case 'X':
+                        fdsc.format(result, args.checklong(arg));
+                        break;
+                    case 'e':
+                    case 'E':
+                    case 'f':
+                    case 'g':
+                    case 'G':
+                        fdsc.format(result, args.checkdouble(arg));
+                        break;
+                    case 'q':
+                        addquoted(result, args.checkstring(arg));
+                        break;
+                    case 's': {
+                        LuaString s = args.checkstring(arg);
+                        if (fdsc.precision == -1 && s.length() >= 100) {
+                            result.append(s);
+                        } else {
+                            fdsc.format(result, s);
                         }
+                    }
+                    break;
+                    default:
+                        error("invalid option '%" + (char) fdsc.conversion + "' to 'format'");
+                        break;
                 }
             }
+            result.append(spec.literals[descs.length]);
 
             return result.tostring();
         }
     }
 
+    /**
+     * Maximum number of parsed format strings kept by {@link #formatSpec(LuaString)}.
+     */
+    private static final int FORMAT_CACHE_SIZE = 128;
+
+    private final CompiledCache<FormatSpec> formatCache = new CompiledCache<FormatSpec>(FORMAT_CACHE_SIZE);
+
+    /**
+     * Get the parsed form of a format string, parsing it if it is not cached.
+     */
+    FormatSpec formatSpec(LuaString fmt) {
+        FormatSpec spec = formatCache.get(fmt);
+        if (spec == null) {
+            spec = new FormatSpec(fmt);
+            formatCache.put(fmt, spec);
+        }
+        return spec;
+    }
+
+    /**
+     * A bounded cache of what strings such as patterns and formats compile to, which threads read without locking,
+     * so that the VMs of many threads can share it.
+     * <p>
+     * Eviction is approximate, as in the CLOCK algorithm: when the cache is full, adding an entry removes
+     * one that was not used since an earlier eviction went past it.
+     */
+    static final class CompiledCache<V> {
+        private final int capacity;
+
+        private final ConcurrentHashMap<LuaString, Entry<V>> map = new ConcurrentHashMap<LuaString, Entry<V>>();
+
+        private static final class Entry<V> {
+            final V value;
+            boolean used;
+
+            Entry(V value) {
+                this.value = value;
+            }
+        }
+
+        CompiledCache(int capacity) {
+            this.capacity = capacity;
+        }
+
+        V get(LuaString key) {
+            final Entry<V> e = map.get(key);
+            if (e == null)
+                return null;
+            if (!e.used)
+                e.used = true;
+            return e.value;
+        }
+
+        void put(LuaString key, V value) {
+            // don't let the cache keep alive a large string the key is a view into
+            if (key.m_offset != 0 || key.m_length != key.m_bytes.length) {
+                final byte[] b = new byte[key.m_length];
+                key.copyInto(0, b, 0, b.length);
+                key = LuaString.valueUsing(b);
+            }
+            if (map.size() >= capacity)
+                evict();
+            map.put(key, new Entry<V>(value));
+        }
+
+        int size() {
+            return map.size();
+        }
+
+        private void evict() {
+            // the first pass may only clear the marks of entries in use
+            for (int pass = 0; pass < 2; pass++) {
+                for (Iterator<Entry<V>> i = map.values().iterator(); i.hasNext(); ) {
+                    final Entry<V> e = i.next();
+                    if (!e.used) {
+                        i.remove();
+                        return;
+                    }
+                    e.used = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * A format string parsed into its conversion specifications and the literal text around them.
+     * <p>
+     * {@code literals[k]} is the text preceding {@code descs[k]}, and the last literal follows the
+     * last specification, with "%%" already reduced to "%".  Parsing stops at a malformed
+     * specification, which is reported when formatting reaches it.
+     */
+    final class FormatSpec {
+        final LuaString[] literals;
+        final FormatDesc[] descs;
+
+        FormatSpec(LuaString fmt) {
+            final int n = fmt.length();
+            final byte[] lit = new byte[n];
+            final ArrayList<LuaString> literals = new ArrayList<>();
+            final ArrayList<FormatDesc> descs = new ArrayList<>();
+            int nlit = 0;
+            for (int i = 0; i < n; ) {
+                final int c = fmt.luaByte(i++);
+                if (c != L_ESC) {
+                    lit[nlit++] = (byte) c;
+                } else if (i < n) {
+                    if (fmt.luaByte(i) == L_ESC) {
+                        ++i;
+                        lit[nlit++] = (byte) L_ESC;
+                    } else {
+                        literals.add(LuaString.valueOf(lit, 0, nlit));
+                        nlit = 0;
+                        final FormatDesc fdsc = new FormatDesc(fmt, i);
+                        descs.add(fdsc);
+                        if (fdsc.invalid != null)
+                            break;
+                        i += fdsc.length;
+                    }
+                }
+            }
+            literals.add(LuaString.valueOf(lit, 0, nlit));
+            this.literals = literals.toArray(new LuaString[0]);
+            this.descs = descs.toArray(new FormatDesc[0]);
+        }
+    }
+
     static void addquoted(Buffer buf, LuaString s) {
         int c;
         buf.append((byte) '"');
@@ -333,43 +453,70 @@ public class StringLib extends TwoArgFunction {
 
     private static final String FLAGS = "-+ #0";
 
+    /**
+     * Largest precision handled by {@link FormatDesc#formatFixed(Buffer, double)}.
+     */
+    private static final int MAX_FIXED_PRECISION = 9;
+
+    private static final long[] POW10 = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L,
+    };
+
     class FormatDesc {
 
-        private boolean leftAdjust;
-        private boolean zeroPad;
-        private boolean explicitPlus;
-        private boolean space;
-        private boolean alternateForm;
+        private final boolean leftAdjust;
+        private final boolean zeroPad;
+        private final boolean explicitPlus;
+        private final boolean space;
+        private final boolean alternateForm;
         private static final int MAX_FLAGS = 5;
 
-        private int width;
-        int precision;
+        private final int width;
+        final int precision;
+
+        /**
+         * true if the flags are ones that {@link #formatFixed(Buffer, double)} handles
+         */
+        private final boolean fixedFlags;
 
         public final int conversion;
         public final int length;
 
         public final String src;
 
-        public FormatDesc(Varargs args, LuaString strfrmt, final int start) {
+        /**
+         * the error to raise when this specification is used, or null if it is valid
+         */
+        final String invalid;
+
+        public FormatDesc(LuaString strfrmt, final int start) {
             int p = start, n = strfrmt.length();
             int c = 0;
+            boolean leftAdjust = false, zeroPad = false, explicitPlus = false, space = false, alternateForm = false;
+            boolean repeated = false;
+            String invalid = null;
 
             boolean moreFlags = true;
             while (moreFlags) {
                 switch (c = ((p < n) ? strfrmt.luaByte(p++) : 0)) {
                     case '-':
+                        repeated |= leftAdjust;
                         leftAdjust = true;
                         break;
                     case '+':
+                        repeated |= explicitPlus;
                         explicitPlus = true;
                         break;
                     case ' ':
+                        repeated |= space;
                         space = true;
                         break;
                     case '#':
+                        repeated |= alternateForm;
                         alternateForm = true;
                         break;
                     case '0':
+                        repeated |= zeroPad;
                         zeroPad = true;
                         break;
                     default:
@@ -378,9 +525,9 @@ public class StringLib extends TwoArgFunction {
                 }
             }
             if (p - start > MAX_FLAGS)
-                error("invalid format (repeated flags)");
+                invalid = "invalid format (repeated flags)";
 
-            width = -1;
+            int width = -1;
             if (Character.isDigit((char) c)) {
                 width = c - '0';
                 c = ((p < n) ? strfrmt.luaByte(p++) : 0);
@@ -390,10 +537,14 @@ public class StringLib extends TwoArgFunction {
                 }
             }
 
-            precision = -1;
+            int precision = -1;
+            int bareDot = -1;
             if (c == '.') {
                 c = ((p < n) ? strfrmt.luaByte(p++) : 0);
+                precision = 0; // as in C, a '.' alone means zero
+                bareDot = p - 1;
                 if (Character.isDigit((char) c)) {
+                    bareDot = -1;
                     precision = c - '0';
                     c = ((p < n) ? strfrmt.luaByte(p++) : 0);
                     if (Character.isDigit((char) c)) {
@@ -403,13 +554,25 @@ public class StringLib extends TwoArgFunction {
                 }
             }
 
-            if (Character.isDigit((char) c))
-                error("invalid format (width or precision too long)");
-
-            zeroPad &= !leftAdjust; // '-' overrides '0'
+            if (Character.isDigit((char) c) && invalid == null)
+                invalid = "invalid format (width or precision too long)";
+
+            // combinations that java.util.Formatter rejects are left to format(String, double)
+            fixedFlags = !repeated && !alternateForm && !(leftAdjust && zeroPad) && !(explicitPlus && space) &&
+                (width != -1 || !(leftAdjust || zeroPad));
+
+            this.leftAdjust = leftAdjust;
+            this.zeroPad = zeroPad & !leftAdjust; // '-' overrides '0'
+            this.explicitPlus = explicitPlus;
+            this.space = space;
+            this.alternateForm = alternateForm;
+            this.width = width;
+            this.precision = precision;
+            this.invalid = invalid;
             conversion = c;
             length = p - start;
-            src = strfrmt.substring(start - 1, p).tojstring();
+            src = bareDot == -1 ? strfrmt.substring(start - 1, p).tojstring()
+                : strfrmt.substring(start - 1, bareDot).tojstring() + '0' + strfrmt.substring(bareDot, p).tojstring();
         }
 
         public void format(Buffer buf, byte c) {
@@ -418,39 +581,63 @@ public class StringLib extends TwoArgFunction {
         }
 
         public void format(Buffer buf, long number) {
-            String digits;
-
-            if (number == 0 && precision == 0) {
-                digits = "";
-            } else {
-                int radix;
-                switch (conversion) {
-                    case 'x':
-                    case 'X':
-                        radix = 16;
-                        break;
-                    case 'o':
-                        radix = 8;
-                        break;
-                    default:
-                        radix = 10;
-                        break;
+            if (number == Long.MIN_VALUE) {
+                formatDigits(buf, number);
+                return;
+            }
+            final int radix;
+            switch (conversion) {
+                case 'x':
+                case 'X':
+                    radix = 16;
+                    break;
+                case 'o':
+                    radix = 8;
+                    break;
+                default:
+                    radix = 10;
+                    break;
+            }
+            final long magnitude = Math.abs(number);
+
+            // the highest power of the radix not above the magnitude gives the digit count
+            int ndigits = 0;
+            long scale = 1;
+            if (number != 0 || precision != 0) {
+                ndigits = 1;
+                while (magnitude / scale >= radix) {
+                    scale *= radix;
+                    ndigits++;
                 }
-                digits = Long.toString(number, radix);
-                if (conversion == 'X')
-                    digits = digits.toUpperCase();
             }
 
-            int minwidth = digits.length();
-            int ndigits = minwidth;
-            int nzeros;
+            final int nzeros = pad(buf, number < 0, ndigits);
+            if (nzeros > 0)
+                pad(buf, '0', nzeros);
 
-            if (number < 0) {
-                ndigits--;
-            } else if (explicitPlus || space) {
-                minwidth++;
+            final int letters = conversion == 'X' ? 'A' - 10 : 'a' - 10;
+            long rest = magnitude;
+            for (int k = 0; k < ndigits; ++k, scale /= radix) {
+                final int d = (int) (rest / scale);
+                rest -= d * scale;
+                buf.append((byte) (d < 10 ? '0' + d : letters + d));
             }
 
+            if (leftAdjust)
+                pad(buf, ' ', width - ndigits - nzeros - (number < 0 || explicitPlus || space ? 1 : 0));
+        }
+
+        /**
+         * Write the leading spaces and sign of an integer conversion.
+         *
+         * @return the number of zeros to write before the digits
+         */
+        private int pad(Buffer buf, boolean negative, int ndigits) {
+            int minwidth = ndigits;
+            if (negative || explicitPlus || space)
+                minwidth++;
+
+            int nzeros;
             if (precision > ndigits)
                 nzeros = precision - ndigits;
             else if (precision == -1 && zeroPad && width > minwidth)
@@ -459,35 +646,118 @@ public class StringLib extends TwoArgFunction {
                 nzeros = 0;
 
             minwidth += nzeros;
-            int nspaces = width > minwidth ? width - minwidth : 0;
-
-            if (!leftAdjust)
-                pad(buf, ' ', nspaces);
+            if (!leftAdjust && width > minwidth)
+                pad(buf, ' ', width - minwidth);
 
-            if (number < 0) {
-                if (nzeros > 0) {
-                    buf.append((byte) '-');
-                    digits = digits.substring(1);
-                }
-            } else if (explicitPlus) {
+            if (negative)
+                buf.append((byte) '-');
+            else if (explicitPlus)
                 buf.append((byte) '+');
-            } else if (space) {
+            else if (space)
                 buf.append((byte) ' ');
-            }
+            return nzeros;
+        }
 
+        private void formatDigits(Buffer buf, long number) {
+            final String digits;
+            if (number == 0 && precision == 0) {
+                digits = "";
+            } else {
+                final int radix = conversion == 'x' || conversion == 'X' ? 16 : conversion == 'o' ? 8 : 10;
+                final String s = Long.toString(number, radix);
+                digits = conversion == 'X' ? s.toUpperCase() : s;
+            }
+            final boolean negative = number < 0;
+            final int ndigits = negative ? digits.length() - 1 : digits.length();
+            final int nzeros = pad(buf, negative, ndigits);
             if (nzeros > 0)
                 pad(buf, '0', nzeros);
-
-            buf.append(digits);
-
+            buf.append(negative ? digits.substring(1) : digits);
             if (leftAdjust)
-                pad(buf, ' ', nspaces);
+                pad(buf, ' ', width - ndigits - nzeros - (negative || explicitPlus || space ? 1 : 0));
         }
 
         public void format(Buffer buf, double x) {
+            if (conversion == 'f' && formatFixed(buf, x))
+                return;
             buf.append(StringLib.this.format(src, x));
         }
 
+        /**
+         * Format a '%f' conversion directly into the buffer from the exact binary value,
+         * rounding half to even as C printf does.
+         *
+         * @return false if the value or specification is outside what this handles
+         */
+        private boolean formatFixed(Buffer buf, double x) {
+            final int prec = precision == -1 ? 6 : precision;
+            if (!fixedFlags || prec > MAX_FIXED_PRECISION || !(Math.abs(x) * POW10[prec] < 9e18))
+                return false;
+
+            // x is mantissa * 2^-shift; scale by 10^prec and shift right, rounding the remainder
+            final long bits = Double.doubleToRawLongBits(x);
+            final int exponent = (int) ((bits >>> 52) & 0x7ff);
+            long mantissa = bits & 0xfffffffffffffL;
+            if (exponent != 0)
+                mantissa |= 1L << 52;
+            final int shift = 1075 - (exponent != 0 ? exponent : 1);
+            final long scale = POW10[prec];
+            long q;
+            if (shift <= 0) {
+                q = (mantissa << -shift) * scale;
+            } else if (shift > 84) {
+                // the scaled value is below 2^83, so less than one half
+                q = 0;
+            } else {
+                final long lo = mantissa * scale;
+                final long hi = Math.multiplyHigh(mantissa, scale);
+                // compare the bits shifted out with one half
+                final int half;
+                if (shift < 64) {
+                    q = (hi << (64 - shift)) | (lo >>> shift);
+                    half = Long.compareUnsigned(lo & ((1L << shift) - 1), 1L << (shift - 1));
+                } else if (shift == 64) {
+                    q = hi;
+                    half = Long.compareUnsigned(lo, Long.MIN_VALUE);
+                } else {
+                    q = hi >>> (shift - 64);
+                    final long rest = hi & ((1L << (shift - 64)) - 1);
+                    final long h = 1L << (shift - 65);
+                    half = rest != h ? Long.compare(rest, h) : lo != 0 ? 1 : 0;
+                }
+                if (half > 0 || (half == 0 && (q & 1) != 0))
+                    q++;
+            }
+
+            final long ipart = q / scale;
+            final long fpart = q % scale;
+            int ndigits = 1;
+            for (long t = ipart; t >= 10; t /= 10)
+                ndigits++;
+            final boolean sign = bits < 0 || explicitPlus || space;
+            final int len = (sign ? 1 : 0) + ndigits + (prec > 0 ? prec + 1 : 0);
+            final int npad = width > len ? width - len : 0;
+
+            if (!leftAdjust && !zeroPad)
+                pad(buf, ' ', npad);
+            if (bits < 0)
+                buf.append((byte) '-');
+            else if (explicitPlus)
+                buf.append((byte) '+');
+            else if (space)
+                buf.append((byte) ' ');
+            if (zeroPad)
+                pad(buf, '0', npad);
+            appendDecimal(buf, ipart, ndigits);
+            if (prec > 0) {
+                buf.append((byte) '.');
+                appendDecimal(buf, fpart, prec);
+            }
+            if (leftAdjust)
+                pad(buf, ' ', npad);
+            return true;
+        }
+
         public void format(Buffer buf, LuaString s) {
             int nullindex = s.indexOf((byte) '\0', 0);
             if (nullindex != -1)
@@ -502,6 +772,20 @@ public class StringLib extends TwoArgFunction {
         }
     }
 
+    /**
+     * Append exactly {@code ndigits} decimal digits of a non-negative value, with leading zeros as needed.
+     */
+    private static void appendDecimal(Buffer buf, long value, int ndigits) {
+        long scale = 1;
+        for (int k = 1; k < ndigits; ++k)
+            scale *= 10;
+        for (; scale > 0; scale /= 10) {
+            final int d = (int) (value / scale);
+            value -= d * scale;
+            buf.append((byte) ('0' + d));
+        }
+    }
+
     protected String format(String src, double x) {
         return String.valueOf(x);
     }
@@ -540,21 +824,32 @@ public class StringLib extends TwoArgFunction {
 
     static class GMatchAux extends VarArgFunction {
         private final int srclen;
+        private final Pattern pattern;
         private final MatchState ms;
         private int soffset;
         private int lastmatch;
 
         public GMatchAux(Varargs args, LuaString src, LuaString pat) {
+            // '^' is not an anchor for gmatch, so such patterns are compiled separately
+            Pattern pattern = Pattern.of(pat);
+            if (pattern.anchor)
+                pattern = new Pattern(pat, false);
             this.srclen = src.length();
-            this.ms = new MatchState(args, src, pat);
+            this.pattern = pattern;
+            this.ms = new MatchState(args, src, pattern);
             this.soffset = 0;
             this.lastmatch = -1;
         }
 
         public Varargs invoke(Varargs args) {
             for (; soffset <= srclen; soffset++) {
+                soffset = pattern.candidate(ms.s, soffset);
+                if (soffset < 0) {
+                    soffset = srclen + 1;
+                    break;
+                }
                 ms.reset();
-                int res = ms.match(soffset, 0);
+                int res = pattern.literal ? soffset + pattern.prefix.m_length : ms.match(soffset, 0);
                 if (res >= 0 && res != lastmatch) {
                     int soff = soffset;
                     lastmatch = soffset = res;
@@ -619,26 +914,40 @@ public class StringLib extends TwoArgFunction {
             int lastmatch = -1; /* end of last match */
             LuaValue repl = args.arg(3);
             int max_s = args.optint(4, srclen + 1);
-            final boolean anchor = p.length() > 0 && p.charAt(0) == '^';
+            final Pattern pattern = Pattern.of(p);
+            final boolean anchor = pattern.anchor;
 
-            Buffer lbuf = new Buffer(srclen);
-            MatchState ms = new MatchState(args, src, p);
+            MatchState ms = new MatchState(args, src, pattern);
+            // allocated at the first match, and filled up to 'copied' with unreplaced subject bytes
+            Buffer lbuf = null;
+            int copied = 0;
 
             int soffset = 0;
             int n = 0;
             while (n < max_s) {
+                if (!anchor) {
+                    final int next = pattern.candidate(src, soffset);
+                    if (next < 0)
+                        break;
+                    soffset = next;
+                }
                 ms.reset();
-                int res = ms.match(soffset, anchor ? 1 : 0);
+                int res = pattern.literal && !anchor ? soffset + pattern.prefix.m_length : ms.match(soffset, 0);
                 if (res != -1 && res != lastmatch) {  /* match? */
                     n++;
+                    if (lbuf == null)
+                        lbuf = new Buffer(srclen);
+                    lbuf.append(src, copied, soffset);
                     ms.add_value(lbuf, soffset, res, repl);  /* add replacement to buffer */
-                    soffset = lastmatch = res;
+                    soffset = copied = lastmatch = res;
                 } else if (soffset < srclen) /* otherwise, skip one character */
-                    lbuf.append((byte) src.luaByte(soffset++));
+                    soffset++;
                 else break;   /* end of subject */
                 if (anchor) break;
             }
-            lbuf.append(src.substring(soffset, srclen));
+            if (lbuf == null)
+                return varargsOf(src, valueOf(n));
+            lbuf.append(src, copied, srclen);
             return varargsOf(lbuf.tostring(), valueOf(n));
         }
     }
@@ -683,6 +992,110 @@ public class StringLib extends TwoArgFunction {
         }
     }
 
+    /**
+     * string.pack (fmt, v1, v2, ...)
+     * <p>
+     * Returns a binary string containing the values v1, v2, etc. packed
+     * (that is, serialized in binary form) according to the format string fmt.
+     *
+     * @see PackFormat
+     */
+    static final class pack extends VarArgFunction {
+        public Varargs invoke(Varargs args) {
+            final PackFormat f = PackFormat.of(args.checkstring(1));
+            final Buffer b = new Buffer(f.capacity);
+            long total = 0;
+            int arg = 1;
+            for (int i = 0; i < f.count; i++) {
+                final byte kind = f.kind[i];
+                f.check(i);
+                final int size = f.length[i];
+                final boolean little = f.little[i];
+                for (int ntoalign = f.padding(i, total); ntoalign > 0; --ntoalign, ++total)
+                    b.append((byte) 0);
+                total += size;
+                switch (kind) {
+                    case PackFormat.KINT: {
+                        final long n = args.checklong(++arg);
+                        if (size < 8) {
+                            final long lim = 1L << (size * 8 - 1);
+                            if (n < -lim || n >= lim)
+                                argerror(arg, "integer overflow");
+                        }
+                        packint(b, n, little, size, n < 0);
+                        break;
+                    }
+                    case PackFormat.KUINT: {
+                        final long n = args.checklong(++arg);
+                        if (size < 8 && Long.compareUnsigned(n, 1L << (size * 8)) >= 0)
+                            argerror(arg, "unsigned overflow");
+                        packint(b, n, little, size, false);
+                        break;
+                    }
+                    case PackFormat.KFLOAT: {
+                        final double x = args.checkdouble(++arg);
+                        packint(b, size == 4 ? Float.floatToRawIntBits((float) x) : Double.doubleToRawLongBits(x), little, size, false);
+                        break;
+                    }
+                    case PackFormat.KCHAR: {
+                        final LuaString s = args.checkstring(++arg);
+                        if (s.m_length > size)
+                            argerror(arg, "string longer than given size");
+                        b.append(s);
+                        for (int pad = size - s.m_length; pad > 0; --pad)
+                            b.append((byte) 0);
+                        break;
+                    }
+                    case PackFormat.KSTRING: {
+                        final LuaString s = args.checkstring(++arg);
+                        if (size < 8 && s.m_length >= 1L << (size * 8))
+                            argerror(arg, "string length does not fit in given size");
+                        packint(b, s.m_length, little, size, false);
+                        b.append(s);
+                        total += s.m_length;
+                        break;
+                    }
+                    case PackFormat.KZSTR: {
+                        final LuaString s = args.checkstring(++arg);
+                        if (s.indexOf((byte) 0, 0) >= 0)
+                            argerror(arg, "string contains zeros");
+                        b.append(s);
+                        b.append((byte) 0);
+                        total += s.m_length + 1;
+                        break;
+                    }
+                    case PackFormat.KPADDING:
+                        b.append((byte) 0);
+                        break;
+                }
+            }
+            return b.tostring();
+        }
+    }
+
+    /**
+     * string.packsize (fmt)
+     * <p>
+     * Returns the size of a string resulting from string.pack with the given format.
+     * The format string cannot have the variable-length options 's' or 'z'.
+     */
+    static final class packsize extends OneArgFunction {
+        public LuaValue call(LuaValue arg) {
+            final PackFormat f = PackFormat.of(arg.checkstring());
+            long total = 0;
+            for (int i = 0; i < f.count; i++) {
+                f.check(i);
+                if (f.kind[i] == PackFormat.KSTRING || f.kind[i] == PackFormat.KZSTR)
+                    argerror(1, "variable-length format");
+                final int size = f.length[i] + f.padding(i, total);
+                if (total > Integer.MAX_VALUE - size)
+                    argerror(1, "format result too large");
+                total += size;
+            }
+            return valueOf(total);
+        }
+    }
+
     /**
      * string.rep (s, n)
      * <p>
@@ -749,6 +1162,75 @@ public class StringLib extends TwoArgFunction {
         }
     }
 
+    /**
+     * string.unpack (fmt, s [, pos])
+     * <p>
+     * Returns the values packed in string s according to the format string fmt.
+     * An optional pos marks where to start reading in s (default is 1).
+     * After the read values, this function also returns the index of the first unread byte in s.
+     * <p>
+     * Strings are returned as substrings of s, and numbers are decoded straight from its bytes.
+     *
+     * @see PackFormat
+     */
+    static final class unpack extends VarArgFunction {
+        public Varargs invoke(Varargs args) {
+            final PackFormat f = PackFormat.of(args.checkstring(1));
+            final LuaString s = args.checkstring(2);
+            final byte[] data = s.m_bytes;
+            final int off = s.m_offset;
+            final int ld = s.m_length;
+            int pos = posrelat(args.optint(3, 1), ld) - 1;
+            if (pos < 0 || pos > ld)
+                argerror(3, "initial position out of string");
+            final LuaValue[] results = new LuaValue[f.count + 1];
+            int n = 0;
+            for (int i = 0; i < f.count; i++) {
+                final byte kind = f.kind[i];
+                f.check(i);
+                final int size = f.length[i];
+                final boolean little = f.little[i];
+                final int ntoalign = f.padding(i, pos);
+                if ((long) pos + ntoalign + size > ld)
+                    argerror(2, "data string too short");
+                pos += ntoalign;
+                switch (kind) {
+                    case PackFormat.KINT:
+                    case PackFormat.KUINT:
+                        results[n++] = valueOf(unpackint(data, off + pos, little, size, kind == PackFormat.KINT));
+                        break;
+                    case PackFormat.KFLOAT: {
+                        final long bits = unpackint(data, off + pos, little, size, false);
+                        results[n++] = valueOf(size == 4 ? Float.intBitsToFloat((int) bits) : Double.longBitsToDouble(bits));
+                        break;
+                    }
+                    case PackFormat.KCHAR:
+                        results[n++] = s.substring(pos, pos + size);
+                        break;
+                    case PackFormat.KSTRING: {
+                        final long len = unpackint(data, off + pos, little, size, false);
+                        if (len < 0 || pos + len + size > ld)
+                            argerror(2, "data string too short");
+                        results[n++] = s.substring(pos + size, pos + size + (int) len);
+                        pos += (int) len;
+                        break;
+                    }
+                    case PackFormat.KZSTR: {
+                        final int end = s.indexOf((byte) 0, pos);
+                        if (end < 0)
+                            argerror(2, "unfinished string for format 'z'");
+                        results[n++] = s.substring(pos, end);
+                        pos = end + 1;
+                        break;
+                    }
+                }
+                pos += size;
+            }
+            results[n++] = valueOf(pos + 1);
+            return varargsOf(results, 0, n);
+        }
+    }
+
     /**
      * string.upper (s)
      * <p>
@@ -784,20 +1266,17 @@ public class StringLib extends TwoArgFunction {
                 return varargsOf(valueOf(result + 1), valueOf(result + pat.length()));
             }
         } else {
-            MatchState ms = new MatchState(args, s, pat);
-
-            boolean anchor = false;
-            int poff = 0;
-            if (pat.length() > 0 && pat.luaByte(0) == '^') {
-                anchor = true;
-                poff = 1;
-            }
+            final Pattern pattern = Pattern.of(pat);
+            final boolean anchor = pattern.anchor;
+            MatchState ms = new MatchState(args, s, pattern);
 
             int soff = init;
             do {
                 int res;
+                if (!anchor && (soff = pattern.candidate(s, soff)) < 0)
+                    break;
                 ms.reset();
-                if ((res = ms.match(soff, poff)) != -1) {
+                if ((res = ms.match(soff, 0)) != -1) {
                     if (find) {
                         return varargsOf(valueOf(soff + 1), valueOf(res), ms.push_captures(false, soff, res));
                     } else {
@@ -863,21 +1342,376 @@ public class StringLib extends TwoArgFunction {
         CHAR_TABLE['\f'] |= MASK_SPACE;
     }
 
-    ;
+    static boolean match_class(int c, int cl) {
+        final char lcl = Character.toLowerCase((char) cl);
+        int cdata = CHAR_TABLE[c];
+
+        boolean res;
+        switch (lcl) {
+            case 'a':
+                res = (cdata & MASK_ALPHA) != 0;
+                break;
+            case 'd':
+                res = (cdata & MASK_DIGIT) != 0;
+                break;
+            case 'l':
+                res = (cdata & MASK_LOWERCASE) != 0;
+                break;
+            case 'u':
+                res = (cdata & MASK_UPPERCASE) != 0;
+                break;
+            case 'c':
+                res = (cdata & MASK_CONTROL) != 0;
+                break;
+            case 'p':
+                res = (cdata & MASK_PUNCT) != 0;
+                break;
+            case 's':
+                res = (cdata & MASK_SPACE) != 0;
+                break;
+            case 'g':
+                res = (cdata & (MASK_ALPHA | MASK_DIGIT | MASK_PUNCT)) != 0;
+                break;
+            case 'w':
+                res = (cdata & (MASK_ALPHA | MASK_DIGIT)) != 0;
+                break;
+            case 'x':
+                res = (cdata & MASK_HEXDIGIT) != 0;
+                break;
+            case 'z':
+                res = (c == 0);
+                break;  /* deprecated option */
+            default:
+                return cl == c;
+        }
+        return (lcl == cl) ? res : !res;
+    }
+
+    /**
+     * Maximum number of compiled patterns kept by {@link Pattern#of(LuaString)}.
+     */
+    private static final int PATTERN_CACHE_SIZE = 128;
+
+    private static final CompiledCache<Pattern> PATTERN_CACHE = new CompiledCache<Pattern>(PATTERN_CACHE_SIZE);
+
+    /**
+     * A Lua pattern compiled into a flat program with one item per pattern element.
+     * <p>
+     * Character classes, sets and '.' are expanded once into 256-bit masks, so matching
+     * a single character is a bit test rather than a re-parse of the pattern.
+     * A malformed element compiles to an error item that is raised only when the matcher
+     * reaches it, so errors are reported exactly where the interpreted matcher reported them.
+     * <p>
+     * Programs are immutable and shared between threads through a bounded {@link CompiledCache}.
+     */
+    static final class Pattern {
+        static final byte OP_CHAR = 0;
+        static final byte OP_SET = 1;
+        static final byte OP_OPEN = 2;
+        static final byte OP_POSITION = 3;
+        static final byte OP_CLOSE = 4;
+        static final byte OP_BALANCE = 5;
+        static final byte OP_FRONTIER = 6;
+        static final byte OP_BACKREF = 7;
+        static final byte OP_END = 8;
+        static final byte OP_ERROR = 9;
+
+        /**
+         * true if the pattern started with '^' and that was compiled as an anchor
+         */
+        final boolean anchor;
+        final int size;
+        final byte[] op;
+        /**
+         * the quantifier of a single char item: 0, '?', '*', '+' or '-'
+         */
+        final byte[] quant;
+        /**
+         * the char of OP_CHAR, the digit of OP_BACKREF, or (open << 8 | close) of OP_BALANCE
+         */
+        final int[] arg;
+        final long[][] set;
+        final String[] error;
+
+        /**
+         * literal bytes every match starts with, or null
+         */
+        final LuaString prefix;
+
+        /**
+         * set that the first byte of every match belongs to, or null
+         */
+        final long[] first;
+
+        /**
+         * true if the pattern is nothing but its prefix, so a match is exactly an occurrence of the prefix
+         */
+        final boolean literal;
+
+        /**
+         * Get the compiled form of a pattern with '^' treated as an anchor, compiling it if it is not cached.
+         */
+        static Pattern of(LuaString p) {
+            Pattern pattern = PATTERN_CACHE.get(p);
+            if (pattern == null) {
+                pattern = new Pattern(p, true);
+                PATTERN_CACHE.put(p, pattern);
+            }
+            return pattern;
+        }
+
+        Pattern(LuaString p, boolean anchorable) {
+            final int plen = p.length();
+            anchor = anchorable && plen > 0 && p.luaByte(0) == '^';
+            op = new byte[plen];
+            quant = new byte[plen];
+            arg = new int[plen];
+            set = new long[plen][];
+            error = new String[plen];
+
+            int n = 0;
+            int poff = anchor ? 1 : 0;
+            compile:
+            while (poff < plen) {
+                final int i = n++;
+                switch (p.luaByte(poff)) {
+                    case '(':
+                        if (++poff < plen && p.luaByte(poff) == ')') {
+                            op[i] = OP_POSITION;
+                            poff++;
+                        } else {
+                            op[i] = OP_OPEN;
+                        }
+                        continue;
+                    case ')':
+                        op[i] = OP_CLOSE;
+                        poff++;
+                        continue;
+                    case '$':
+                        if (poff + 1 == plen) {
+                            op[i] = OP_END;
+                            poff++;
+                            continue;
+                        }
+                        break;
+                    case L_ESC:
+                        if (poff + 1 == plen) {
+                            fail(i, "malformed pattern (ends with '%')");
+                            break compile;
+                        }
+                        switch (p.luaByte(poff + 1)) {
+                            case 'b':
+                                if (poff + 2 >= plen - 1) {
+                                    fail(i, "malformed pattern (missing arguments to '%b')");
+                                    break compile;
+                                }
+                                op[i] = OP_BALANCE;
+                                arg[i] = p.luaByte(poff + 2) << 8 | p.luaByte(poff + 3);
+                                poff += 4;
+                                continue;
+                            case 'f': {
+                                poff += 2;
+                                if (poff == plen || p.luaByte(poff) != '[') {
+                                    fail(i, "missing '[' after '%f' in pattern");
+                                    break compile;
+                                }
+                                final int ep = classend(p, poff);
+                                if (ep < 0) {
+                                    fail(i, "malformed pattern (missing ']')");
+                                    break compile;
+                                }
+                                op[i] = OP_FRONTIER;
+                                set[i] = bracketclass(p, poff, ep - 1);
+                                poff = ep;
+                                continue;
+                            }
+                            default:
+                                if (Character.isDigit((char) p.luaByte(poff + 1))) {
+                                    op[i] = OP_BACKREF;
+                                    arg[i] = p.luaByte(poff + 1);
+                                    poff += 2;
+                                    continue;
+                                }
+                        }
+                        break;
+                }
+                final int ep = classend(p, poff);
+                if (ep < 0) {
+                    fail(i, ep == -1 ? "malformed pattern (ends with '%')" : "malformed pattern (missing ']')");
+                    break;
+                }
+                final int c = p.luaByte(poff);
+                switch (c) {
+                    case '.':
+                        op[i] = OP_SET;
+                        set[i] = new long[] { -1L, -1L, -1L, -1L };
+                        break;
+                    case L_ESC: {
+                        final int cl = p.luaByte(poff + 1);
+                        final long[] bits = new long[4];
+                        for (int b = 0; b < 256; ++b)
+                            if (match_class(b, cl))
+                                bits[b >> 6] |= 1L << b;
+                        op[i] = OP_SET;
+                        set[i] = bits;
+                        break;
+                    }
+                    case '[':
+                        op[i] = OP_SET;
+                        set[i] = bracketclass(p, poff, ep - 1);
+                        break;
+                    default:
+                        op[i] = OP_CHAR;
+                        arg[i] = c;
+                        break;
+                }
+                poff = ep;
+                if (ep < plen) {
+                    switch (p.luaByte(ep)) {
+                        case '?':
+                        case '*':
+                        case '+':
+                        case '-':
+                            quant[i] = (byte) p.luaByte(ep);
+                            poff++;
+                            break;
+                    }
+                }
+            }
+            size = n;
+
+            // items that consume no input and cannot fail may precede the literal prefix
+            int i = 0;
+            while (i < n && i < MAX_CAPTURES && (op[i] == OP_OPEN || op[i] == OP_POSITION))
+                i++;
+            final int start = i;
+            while (i < n && op[i] == OP_CHAR && quant[i] == 0)
+                i++;
+            final boolean plus = i < n && op[i] == OP_CHAR && quant[i] == '+';
+            final int count = i - start + (plus ? 1 : 0);
+            if (count > 0) {
+                final byte[] b = new byte[count];
+                for (int k = 0; k < count; ++k)
+                    b[k] = (byte) arg[start + k];
+                prefix = LuaString.valueUsing(b);
+                first = null;
+                literal = start == 0 && i == n && !plus;
+            } else {
+                literal = false;
+                prefix = null;
+                first = start < n && op[start] == OP_SET && (quant[start] == 0 || quant[start] == '+') ? set[start] : null;
+            }
+        }
+
+        private void fail(int i, String message) {
+            op[i] = OP_ERROR;
+            error[i] = message;
+        }
+
+        /**
+         * Find the end of the single char class starting at poff.
+         *
+         * @return the offset after the class, -1 if the pattern ends with '%', or -2 if a ']' is missing
+         */
+        private static int classend(LuaString p, int poffset) {
+            final int plen = p.length();
+            switch (p.luaByte(poffset++)) {
+                case L_ESC:
+                    if (poffset == plen)
+                        return -1;
+                    return poffset + 1;
+
+                case '[':
+                    if (poffset != plen && p.luaByte(poffset) == '^') poffset++;
+                    do {
+                        if (poffset == plen)
+                            return -2;
+                        if (p.luaByte(poffset++) == L_ESC && poffset < plen)
+                            poffset++; /* skip escapes (e.g. '%]') */
+                    } while (poffset == plen || p.luaByte(poffset) != ']');
+                    return poffset + 1;
+                default:
+                    return poffset;
+            }
+        }
+
+        private static long[] bracketclass(LuaString p, int poff, int ec) {
+            final long[] bits = new long[4];
+            for (int c = 0; c < 256; ++c)
+                if (matchbracketclass(p, c, poff, ec))
+                    bits[c >> 6] |= 1L << c;
+            return bits;
+        }
+
+        private static boolean matchbracketclass(LuaString p, int c, int poff, int ec) {
+            boolean sig = true;
+            if (p.luaByte(poff + 1) == '^') {
+                sig = false;
+                poff++;
+            }
+            while (++poff < ec) {
+                if (p.luaByte(poff) == L_ESC) {
+                    poff++;
+                    if (match_class(c, p.luaByte(poff)))
+                        return sig;
+                } else if ((p.luaByte(poff + 1) == '-') && (poff + 2 < ec)) {
+                    poff += 2;
+                    if (p.luaByte(poff - 2) <= c && c <= p.luaByte(poff))
+                        return sig;
+                } else if (p.luaByte(poff) == c) return sig;
+            }
+            return !sig;
+        }
+
+        static boolean inset(long[] bits, int c) {
+            return (bits[c >> 6] & (1L << c)) != 0;
+        }
+
+        /**
+         * Find the first offset at or after soff where a match of an unanchored pattern could start.
+         *
+         * @return the candidate offset, or -1 if no match can start at or after soff
+         */
+        int candidate(LuaString s, int soff) {
+            if (prefix != null)
+                return s.indexOf(prefix, soff);
+            if (first != null) {
+                final byte[] b = s.m_bytes;
+                final int o = s.m_offset;
+                final int n = s.m_length;
+                for (; soff < n; ++soff)
+                    if (inset(first, b[o + soff] & 0xff))
+                        return soff;
+                return -1;
+            }
+            return soff;
+        }
+    }
 
     static class MatchState {
+        /**
+         * Length above which captures are views into the subject rather than copies.
+         */
+        static final int SHARED_CAPTURE_LENGTH = 32;
+
         int matchdepth;  /* control for recursive depth (to avoid C stack overflow) */
         final LuaString s;
-        final LuaString p;
+        final Pattern p;
         final Varargs args;
+        private final byte[] sbytes;
+        private final int soffset;
+        private final int slength;
         int level;
         int[] cinit;
         int[] clen;
 
-        MatchState(Varargs args, LuaString s, LuaString pattern) {
+        MatchState(Varargs args, LuaString s, Pattern pattern) {
             this.s = s;
             this.p = pattern;
             this.args = args;
+            this.sbytes = s.m_bytes;
+            this.soffset = s.m_offset;
+            this.slength = s.m_length;
             this.level = 0;
             this.cinit = new int[MAX_CAPTURES];
             this.clen = new int[MAX_CAPTURES];
@@ -889,30 +1723,44 @@ public class StringLib extends TwoArgFunction {
             this.matchdepth = MAXCCALLS;
         }
 
+        /**
+         * Append a replacement string, copying the spans between escapes
+         * and the captures they refer to straight from the bytes of their strings.
+         */
         private void add_s(Buffer lbuf, LuaString news, int soff, int e) {
             int l = news.length();
-            for (int i = 0; i < l; ++i) {
-                byte b = (byte) news.luaByte(i);
-                if (b != L_ESC) {
-                    lbuf.append((byte) b);
+            int i = 0;
+            int esc;
+            while ((esc = news.indexOf((byte) L_ESC, i)) >= 0) {
+                lbuf.append(news, i, esc);
+                i = esc + 1; // skip ESC
+                byte b = (byte) (i < l ? news.luaByte(i) : 0);
+                if (!Character.isDigit((char) b)) {
+                    if (b != L_ESC) error("invalid use of '" + (char) L_ESC +
+                        "' in replacement string: after '" + (char) L_ESC +
+                        "' must be '0'-'9' or '" + (char) L_ESC +
+                        "', but found " + (i < l ? "symbol '" + (char) b + "' with code " + b +
+                        " at pos " + (i + 1) :
+                        "end of string"));
+                    lbuf.append(b);
+                } else if (b == '0') {
+                    lbuf.append(s, soff, e);
                 } else {
-                    ++i; // skip ESC
-                    b = (byte) (i < l ? news.luaByte(i) : 0);
-                    if (!Character.isDigit((char) b)) {
-                        if (b != L_ESC) error("invalid use of '" + (char) L_ESC +
-                            "' in replacement string: after '" + (char) L_ESC +
-                            "' must be '0'-'9' or '" + (char) L_ESC +
-                            "', but found " + (i < l ? "symbol '" + (char) b + "' with code " + b +
-                            " at pos " + (i + 1) :
-                            "end of string"));
-                        lbuf.append(b);
-                    } else if (b == '0') {
-                        lbuf.append(s.substring(soff, e));
-                    } else {
-                        lbuf.append(push_onecapture(b - '1', soff, e).strvalue());
-                    }
+                    add_onecapture(lbuf, b - '1', soff, e);
                 }
+                i++;
             }
+            lbuf.append(news, i, l);
+        }
+
+        /**
+         * Append capture i the way push_onecapture would return it, without creating a string for it.
+         */
+        private void add_onecapture(Buffer lbuf, int i, int soff, int end) {
+            if (i < level && clen[i] >= 0)
+                lbuf.append(s, cinit[i], cinit[i] + clen[i]);
+            else
+                lbuf.append(push_onecapture(i, soff, end).strvalue());
         }
 
         public void add_value(Buffer lbuf, int soffset, int end, LuaValue repl) {
@@ -937,11 +1785,12 @@ public class StringLib extends TwoArgFunction {
             }
 
             if (!repl.toboolean()) {
-                repl = s.substring(soffset, end);
+                lbuf.append(s, soffset, end);
             } else if (!repl.isstring()) {
                 error("invalid replacement value (a " + repl.typename() + ")");
+            } else {
+                lbuf.append(repl.strvalue());
             }
-            lbuf.append(repl.strvalue());
         }
 
         Varargs push_captures(boolean wholeMatch, int soff, int end) {
@@ -961,7 +1810,8 @@ public class StringLib extends TwoArgFunction {
         private LuaValue push_onecapture(int i, int soff, int end) {
             if (i >= this.level) {
                 if (i == 0) {
-                    return s.substring(soff, end);
+                    // a match of a literal pattern is the pattern's own string
+                    return p.literal ? p.prefix : capture(soff, end);
                 } else {
                     return error("invalid capture index %" + (i + 1));
                 }
@@ -974,11 +1824,23 @@ public class StringLib extends TwoArgFunction {
                     return valueOf(cinit[i] + 1);
                 } else {
                     int begin = cinit[i];
-                    return s.substring(begin, begin + l);
+                    return capture(begin, begin + l);
                 }
             }
         }
 
+        /**
+         * Get the bytes of the subject from begin to end as a string.
+         * Captures longer than {@link #SHARED_CAPTURE_LENGTH} share the subject's bytes instead of copying them;
+         * shorter ones are looked up in the cache of recent strings.
+         */
+        private LuaString capture(int begin, int end) {
+            final int len = end - begin;
+            return len > SHARED_CAPTURE_LENGTH ?
+                LuaString.valueUsing(sbytes, soffset + begin, len) :
+                LuaString.valueOf(sbytes, soffset + begin, len);
+        }
+
         private int check_capture(int l) {
             l -= '1';
             if (l < 0 || l >= level || this.clen[l] == CAP_UNFINISHED) {
@@ -996,187 +1858,77 @@ public class StringLib extends TwoArgFunction {
             return 0;
         }
 
-        int classend(int poffset) {
-            switch (p.luaByte(poffset++)) {
-                case L_ESC:
-                    if (poffset == p.length()) {
-                        error("malformed pattern (ends with '%')");
-                    }
-                    return poffset + 1;
-
-                case '[':
-                    if (poffset != p.length() && p.luaByte(poffset) == '^') poffset++;
-                    do {
-                        if (poffset == p.length()) {
-                            error("malformed pattern (missing ']')");
-                        }
-                        if (p.luaByte(poffset++) == L_ESC && poffset < p.length())
-                            poffset++; /* skip escapes (e.g. '%]') */
-                    } while (poffset == p.length() || p.luaByte(poffset) != ']');
-                    return poffset + 1;
-                default:
-                    return poffset;
-            }
+        private int byteAt(int soff) {
+            return sbytes[soffset + soff] & 0xff;
         }
 
-        static boolean match_class(int c, int cl) {
-            final char lcl = Character.toLowerCase((char) cl);
-            int cdata = CHAR_TABLE[c];
-
-            boolean res;
-            switch (lcl) {
-                case 'a':
-                    res = (cdata & MASK_ALPHA) != 0;
-                    break;
-                case 'd':
-                    res = (cdata & MASK_DIGIT) != 0;
-                    break;
-                case 'l':
-                    res = (cdata & MASK_LOWERCASE) != 0;
-                    break;
-                case 'u':
-                    res = (cdata & MASK_UPPERCASE) != 0;
-                    break;
-                case 'c':
-                    res = (cdata & MASK_CONTROL) != 0;
-                    break;
-                case 'p':
-                    res = (cdata & MASK_PUNCT) != 0;
-                    break;
-                case 's':
-                    res = (cdata & MASK_SPACE) != 0;
-                    break;
-                case 'g':
-                    res = (cdata & (MASK_ALPHA | MASK_DIGIT | MASK_PUNCT)) != 0;
-                    break;
-                case 'w':
-                    res = (cdata & (MASK_ALPHA | MASK_DIGIT)) != 0;
-                    break;
-                case 'x':
-                    res = (cdata & MASK_HEXDIGIT) != 0;
-                    break;
-                case 'z':
-                    res = (c == 0);
-                    break;  /* deprecated option */
-                default:
-                    return cl == c;
-            }
-            return (lcl == cl) ? res : !res;
-        }
-
-        boolean matchbracketclass(int c, int poff, int ec) {
-            boolean sig = true;
-            if (p.luaByte(poff + 1) == '^') {
-                sig = false;
-                poff++;
-            }
-            while (++poff < ec) {
-                if (p.luaByte(poff) == L_ESC) {
-                    poff++;
-                    if (match_class(c, p.luaByte(poff)))
-                        return sig;
-                } else if ((p.luaByte(poff + 1) == '-') && (poff + 2 < ec)) {
-                    poff += 2;
-                    if (p.luaByte(poff - 2) <= c && c <= p.luaByte(poff))
-                        return sig;
-                } else if (p.luaByte(poff) == c) return sig;
-            }
-            return !sig;
-        }
-
-        boolean singlematch(int c, int poff, int ep) {
-            switch (p.luaByte(poff)) {
-                case '.':
-                    return true;
-                case L_ESC:
-                    return match_class(c, p.luaByte(poff + 1));
-                case '[':
-                    return matchbracketclass(c, poff, ep - 1);
-                default:
-                    return p.luaByte(poff) == c;
-            }
+        private boolean singlematch(int c, int pc) {
+            return p.op[pc] == Pattern.OP_CHAR ? p.arg[pc] == c : Pattern.inset(p.set[pc], c);
         }
 
         /**
          * Perform pattern matching. If there is a match, returns offset into s
          * where match ends, otherwise returns -1.
+         *
+         * @param soff offset into s
+         * @param pc   index of the pattern item to match from
          */
-        int match(int soffset, int poffset) {
+        int match(int soff, int pc) {
             if (matchdepth-- == 0) error("pattern too complex");
             try {
                 while (true) {
-                    // Check if we are at the end of the pattern -
-                    // equivalent to the '\0' case in the C version, but our pattern
-                    // string is not NUL-terminated.
-                    if (poffset == p.length())
-                        return soffset;
-                    switch (p.luaByte(poffset)) {
-                        case '(':
-                            if (++poffset < p.length() && p.luaByte(poffset) == ')')
-                                return start_capture(soffset, poffset + 1, CAP_POSITION);
-                            else
-                                return start_capture(soffset, poffset, CAP_UNFINISHED);
-                        case ')':
-                            return end_capture(soffset, poffset + 1);
-                        case L_ESC:
-                            if (poffset + 1 == p.length())
-                                error("malformed pattern (ends with '%')");
-                            switch (p.luaByte(poffset + 1)) {
-                                case 'b':
-                                    soffset = matchbalance(soffset, poffset + 2);
-                                    if (soffset == -1) return -1;
-                                    poffset += 4;
-                                    continue;
-                                case 'f': {
-                                    poffset += 2;
-                                    if (poffset == p.length() || p.luaByte(poffset) != '[') {
-                                        error("missing '[' after '%f' in pattern");
-                                    }
-                                    int ep = classend(poffset);
-                                    int previous = (soffset == 0) ? '\0' : s.luaByte(soffset - 1);
-                                    int next = (soffset == s.length()) ? '\0' : s.luaByte(soffset);
-                                    if (matchbracketclass(previous, poffset, ep - 1) ||
-                                        !matchbracketclass(next, poffset, ep - 1))
-                                        return -1;
-                                    poffset = ep;
-                                    continue;
-                                }
-                                default: {
-                                    int c = p.luaByte(poffset + 1);
-                                    if (Character.isDigit((char) c)) {
-                                        soffset = match_capture(soffset, c);
-                                        if (soffset == -1)
-                                            return -1;
-                                        return match(soffset, poffset + 2);
-                                    }
-                                }
-                            }
-                        case '$':
-                            if (poffset + 1 == p.length())
-                                return (soffset == s.length()) ? soffset : -1;
+                    if (pc == p.size)
+                        return soff;
+                    switch (p.op[pc]) {
+                        case Pattern.OP_OPEN:
+                            return start_capture(soff, pc + 1, CAP_UNFINISHED);
+                        case Pattern.OP_POSITION:
+                            return start_capture(soff, pc + 1, CAP_POSITION);
+                        case Pattern.OP_CLOSE:
+                            return end_capture(soff, pc + 1);
+                        case Pattern.OP_BALANCE:
+                            soff = matchbalance(soff, p.arg[pc]);
+                            if (soff == -1) return -1;
+                            pc++;
+                            continue;
+                        case Pattern.OP_FRONTIER: {
+                            final int previous = (soff == 0) ? '\0' : byteAt(soff - 1);
+                            final int next = (soff == slength) ? '\0' : byteAt(soff);
+                            if (Pattern.inset(p.set[pc], previous) || !Pattern.inset(p.set[pc], next))
+                                return -1;
+                            pc++;
+                            continue;
+                        }
+                        case Pattern.OP_BACKREF:
+                            soff = match_capture(soff, p.arg[pc]);
+                            if (soff == -1)
+                                return -1;
+                            pc++;
+                            continue;
+                        case Pattern.OP_END:
+                            return (soff == slength) ? soff : -1;
+                        case Pattern.OP_ERROR:
+                            throw new LuaError(p.error[pc]);
                     }
-                    int ep = classend(poffset);
-                    boolean m = soffset < s.length() && singlematch(s.luaByte(soffset), poffset, ep);
-                    int pc = (ep < p.length()) ? p.luaByte(ep) : '\0';
-
-                    switch (pc) {
+                    boolean m = soff < slength && singlematch(byteAt(soff), pc);
+                    switch (p.quant[pc]) {
                         case '?':
                             int res;
-                            if (m && ((res = match(soffset + 1, ep + 1)) != -1))
+                            if (m && ((res = match(soff + 1, pc + 1)) != -1))
                                 return res;
-                            poffset = ep + 1;
+                            pc++;
                             continue;
                         case '*':
-                            return max_expand(soffset, poffset, ep);
+                            return max_expand(soff, pc);
                         case '+':
-                            return (m ? max_expand(soffset + 1, poffset, ep) : -1);
+                            return (m ? max_expand(soff + 1, pc) : -1);
                         case '-':
-                            return min_expand(soffset, poffset, ep);
+                            return min_expand(soff, pc);
                         default:
                             if (!m)
                                 return -1;
-                            soffset++;
-                            poffset = ep;
+                            soff++;
+                            pc++;
                             continue;
                     }
                 }
@@ -1185,13 +1937,12 @@ public class StringLib extends TwoArgFunction {
             }
         }
 
-        int max_expand(int soff, int poff, int ep) {
+        int max_expand(int soff, int pc) {
             int i = 0;
-            while (soff + i < s.length() &&
-                singlematch(s.luaByte(soff + i), poff, ep))
+            while (soff + i < slength && singlematch(byteAt(soff + i), pc))
                 i++;
             while (i >= 0) {
-                int res = match(soff + i, ep + 1);
+                int res = match(soff + i, pc + 1);
                 if (res != -1)
                     return res;
                 i--;
@@ -1199,18 +1950,18 @@ public class StringLib extends TwoArgFunction {
             return -1;
         }
 
-        int min_expand(int soff, int poff, int ep) {
+        int min_expand(int soff, int pc) {
             for (; ; ) {
-                int res = match(soff, ep + 1);
+                int res = match(soff, pc + 1);
                 if (res != -1)
                     return res;
-                else if (soff < s.length() && singlematch(s.luaByte(soff), poff, ep))
+                else if (soff < slength && singlematch(byteAt(soff), pc))
                     soff++;
                 else return -1;
             }
         }
 
-        int start_capture(int soff, int poff, int what) {
+        int start_capture(int soff, int pc, int what) {
             int res;
             int level = this.level;
             if (level >= MAX_CAPTURES) {
@@ -1219,16 +1970,16 @@ public class StringLib extends TwoArgFunction {
             cinit[level] = soff;
             clen[level] = what;
             this.level = level + 1;
-            if ((res = match(soff, poff)) == -1)
+            if ((res = match(soff, pc)) == -1)
                 this.level--;
             return res;
         }
 
-        int end_capture(int soff, int poff) {
+        int end_capture(int soff, int pc) {
             int l = capture_to_close();
             int res;
             clen[l] = soff - cinit[l];
-            if ((res = match(soff, poff)) == -1)
+            if ((res = match(soff, pc)) == -1)
                 clen[l] = CAP_UNFINISHED;
             return res;
         }
@@ -1236,32 +1987,305 @@ public class StringLib extends TwoArgFunction {
         int match_capture(int soff, int l) {
             l = check_capture(l);
             int len = clen[l];
-            if ((s.length() - soff) >= len &&
+            if ((slength - soff) >= len &&
                 LuaString.equals(s, cinit[l], s, soff, len))
                 return soff + len;
             else
                 return -1;
         }
 
-        int matchbalance(int soff, int poff) {
-            final int plen = p.length();
-            if (poff == plen || poff + 1 == plen) {
-                error("malformed pattern (missing arguments to '%b')");
-            }
-            final int slen = s.length();
-            if (soff >= slen)
+        int matchbalance(int soff, int delimiters) {
+            if (soff >= slength)
                 return -1;
-            final int b = p.luaByte(poff);
-            if (s.luaByte(soff) != b)
+            final int b = delimiters >> 8;
+            if (byteAt(soff) != b)
                 return -1;
-            final int e = p.luaByte(poff + 1);
+            final int e = delimiters & 0xff;
             int cont = 1;
-            while (++soff < slen) {
-                if (s.luaByte(soff) == e) {
+            while (++soff < slength) {
+                if (byteAt(soff) == e) {
                     if (--cont == 0) return soff + 1;
-                } else if (s.luaByte(soff) == b) cont++;
+                } else if (byteAt(soff) == b) cont++;
             }
             return -1;
         }
     }
+
+    // Binary packing implementation
+
+    /**
+     * Append the low {@code size} bytes of {@code n} in the given byte order,
+     * sign extending past the eighth byte when {@code neg} is true.
+     */
+    static void packint(Buffer b, long n, boolean little, int size, boolean neg) {
+        final byte ext = neg ? (byte) 0xff : 0;
+        for (int j = 0; j < size; j++) {
+            final int i = little ? j : size - 1 - j;
+            b.append(i < 8 ? (byte) (n >>> (i * 8)) : ext);
+        }
+    }
+
+    /**
+     * Read a {@code size} byte integer in the given byte order starting at {@code bytes[p]}.
+     * Integers wider than eight bytes must fit in a long.
+     */
+    static long unpackint(byte[] bytes, int p, boolean little, int size, boolean signed) {
+        final int limit = Math.min(size, 8);
+        long res = 0;
+        for (int i = limit - 1; i >= 0; i--)
+            res = res << 8 | (bytes[little ? p + i : p + size - 1 - i] & 0xff);
+        if (size < 8) {
+            if (signed) {
+                final long mask = 1L << (size * 8 - 1);
+                res = (res ^ mask) - mask;
+            }
+        } else if (size > 8) {
+            final int ext = !signed || res >= 0 ? 0 : 0xff;
+            for (int i = limit; i < size; i++)
+                if ((bytes[little ? p + i : p + size - 1 - i] & 0xff) != ext)
+                    error(size + "-byte integer does not fit into Lua Integer");
+        }
+        return res;
+    }
+
+    /**
+     * Maximum number of compiled formats kept by {@link PackFormat#of(LuaString)}.
+     */
+    private static final int PACK_CACHE_SIZE = 64;
+
+    private static final CompiledCache<PackFormat> PACK_CACHE = new CompiledCache<PackFormat>(PACK_CACHE_SIZE);
+
+    /**
+     * A format string of string.pack, string.unpack and string.packsize compiled into one item per option.
+     * <p>
+     * The byte order and alignment in effect for each item are resolved when compiling,
+     * so '&lt;', '&gt;', '=', '!', ' ' and the option following 'X' leave no item of their own.
+     * The padding needed before an item still depends on the position it is packed at,
+     * which variable-length strings make known only at run time.
+     * As for {@link Pattern}, a malformed option compiles to an error item
+     * that is raised only when it is reached, after the preceding values have been checked.
+     * <p>
+     * Formats are immutable and shared between threads through a bounded {@link CompiledCache}.
+     *
+     * @see <a href="http://www.lua.org/manual/5.3/manual.html#6.4.2">Format Strings for Pack and Unpack</a>
+     */
+    static final class PackFormat {
+        static final byte KINT = 0;
+        static final byte KUINT = 1;
+        static final byte KFLOAT = 2;
+        static final byte KCHAR = 3;
+        static final byte KSTRING = 4;
+        static final byte KZSTR = 5;
+        static final byte KPADDING = 6;
+        static final byte KPADDALIGN = 7;
+        static final byte KERROR = 8;
+        static final byte KARGERROR = 9;
+        private static final byte KNOP = 10;
+
+        private static final boolean NATIVE_LITTLE = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+        /**
+         * Largest size of an integral option, and largest alignment allowed by '!'.
+         */
+        private static final int MAXINTSIZE = 16;
+        private static final int MAXALIGN = 8;
+
+        /**
+         * Largest initial buffer presized by {@link StringLib.pack}.
+         */
+        private static final int MAX_CAPACITY = 4096;
+
+        final int count;
+        final byte[] kind;
+        /**
+         * the size in bytes of the item, or of the length prefix of an 's' item
+         */
+        final int[] length;
+        /**
+         * the alignment of the item, or 0 if it needs none
+         */
+        final int[] align;
+        final boolean[] little;
+        final String[] error;
+
+        /**
+         * initial buffer capacity for packing this format
+         */
+        final int capacity;
+
+        /**
+         * Get the compiled form of a format, compiling it if it is not cached.
+         */
+        static PackFormat of(LuaString fmt) {
+            PackFormat format = PACK_CACHE.get(fmt);
+            if (format == null) {
+                format = new PackFormat(fmt);
+                PACK_CACHE.put(fmt, format);
+            }
+            return format;
+        }
+
+        PackFormat(LuaString fmt) {
+            final Reader r = new Reader(fmt);
+            kind = new byte[fmt.m_length];
+            length = new int[fmt.m_length];
+            align = new int[fmt.m_length];
+            little = new boolean[fmt.m_length];
+            error = new String[fmt.m_length];
+            int n = 0;
+            long fixed = 0;
+            while (r.pos < r.end) {
+                byte k = r.option();
+                final int size = r.optsize;
+                int a = size;
+                if (k == KPADDALIGN) {
+                    // 'X' takes its alignment from the option that follows it
+                    if (r.pos >= r.end) {
+                        k = r.argerror("invalid next option for option 'X'");
+                    } else {
+                        final byte next = r.option();
+                        if (next == KERROR)
+                            k = KERROR;
+                        else if (next == KCHAR || r.optsize == 0)
+                            k = r.argerror("invalid next option for option 'X'");
+                        a = r.optsize;
+                    }
+                }
+                if (k == KNOP)
+                    continue;
+                if (a <= 1 || k == KCHAR) {
+                    a = 0;
+                } else {
+                    if (a > r.maxalign)
+                        a = r.maxalign;
+                    if ((a & (a - 1)) != 0 && k != KERROR && k != KARGERROR)
+                        k = r.argerror("format asks for alignment not power of 2");
+                    if (a == 1)
+                        a = 0;
+                }
+                kind[n] = k;
+                length[n] = size;
+                align[n] = a;
+                little[n] = r.islittle;
+                error[n] = r.message;
+                n++;
+                if (k == KERROR || k == KARGERROR)
+                    break;
+                fixed += size + Math.max(a - 1, 0);
+            }
+            count = n;
+            capacity = (int) Math.min(fixed, MAX_CAPACITY);
+        }
+
+        /**
+         * Raise the error of an error item.
+         */
+        void check(int i) {
+            if (kind[i] == KERROR)
+                LuaValue.error(error[i]);
+            else if (kind[i] == KARGERROR)
+                LuaValue.argerror(1, error[i]);
+        }
+
+        /**
+         * Number of padding bytes needed before item i when it starts at the given offset.
+         */
+        int padding(int i, long offset) {
+            final int a = align[i];
+            return a == 0 ? 0 : (a - (int) (offset & (a - 1))) & (a - 1);
+        }
+
+        /**
+         * The state of compiling a format: the position in it and the current byte order and maximum alignment.
+         */
+        private static final class Reader {
+            final byte[] bytes;
+            final int end;
+            int pos;
+            boolean islittle = NATIVE_LITTLE;
+            int maxalign = 1;
+            int optsize;
+            String message;
+
+            Reader(LuaString fmt) {
+                bytes = fmt.m_bytes;
+                pos = fmt.m_offset;
+                end = fmt.m_offset + fmt.m_length;
+            }
+
+            /**
+             * Read one option, leaving its size in optsize.
+             */
+            byte option() {
+                final int opt = bytes[pos++] & 0xff;
+                optsize = 0;
+                switch (opt) {
+                    case 'b': optsize = 1; return KINT;
+                    case 'B': optsize = 1; return KUINT;
+                    case 'h': optsize = 2; return KINT;
+                    case 'H': optsize = 2; return KUINT;
+                    case 'l':
+                    case 'j': optsize = 8; return KINT;
+                    case 'L':
+                    case 'J':
+                    case 'T': optsize = 8; return KUINT;
+                    case 'f': optsize = 4; return KFLOAT;
+                    case 'd':
+                    case 'n': optsize = 8; return KFLOAT;
+                    case 'i': optsize = numlimit(4); return optsize > 0 ? KINT : KERROR;
+                    case 'I': optsize = numlimit(4); return optsize > 0 ? KUINT : KERROR;
+                    case 's': optsize = numlimit(8); return optsize > 0 ? KSTRING : KERROR;
+                    case 'c':
+                        optsize = num(-1);
+                        if (optsize == -1)
+                            return error("missing size for format option 'c'");
+                        return KCHAR;
+                    case 'z': return KZSTR;
+                    case 'x': optsize = 1; return KPADDING;
+                    case 'X': return KPADDALIGN;
+                    case ' ': return KNOP;
+                    case '<': islittle = true; return KNOP;
+                    case '>': islittle = false; return KNOP;
+                    case '=': islittle = NATIVE_LITTLE; return KNOP;
+                    case '!':
+                        maxalign = numlimit(MAXALIGN);
+                        return maxalign > 0 ? KNOP : KERROR;
+                    default:
+                        return error("invalid format option '" + (char) opt + "'");
+                }
+            }
+
+            int num(int df) {
+                if (pos >= end || !Character.isDigit(bytes[pos]))
+                    return df;
+                int a = 0;
+                do {
+                    a = a * 10 + (bytes[pos++] - '0');
+                } while (pos < end && Character.isDigit(bytes[pos]) && a <= (Integer.MAX_VALUE - 9) / 10);
+                return a;
+            }
+
+            /**
+             * Read an optional size, which must be between 1 and {@link #MAXINTSIZE}; returns 0 after an error.
+             */
+            int numlimit(int df) {
+                final int sz = num(df);
+                if (sz > MAXINTSIZE || sz <= 0) {
+                    message = "integral size (" + sz + ") out of limits [1," + MAXINTSIZE + "]";
+                    return 0;
+                }
+                return sz;
+            }
+
+            byte error(String message) {
+                this.message = message;
+                return KERROR;
+            }
+
+            byte argerror(String message) {
+                this.message = message;
+                return KARGERROR;
+            }
+        }
+    }
 }
@@ -21,6 +21,7 @@
  ******************************************************************************/
 package org.luaj.vm2.lib;
 
+import org.luaj.vm2.FrozenTable;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
@@ -67,6 +68,7 @@ public class TableLib extends TwoArgFunction {
     public LuaValue call(LuaValue modname, LuaValue env) {
         LuaTable table = new LuaTable();
         table.set("concat", new concat());
+        table.set("freeze", new freeze());
         table.set("insert", new insert());
         table.set("pack", new pack());
         table.set("remove", new remove());
@@ -96,6 +98,13 @@ public class TableLib extends TwoArgFunction {
         }
     }
 
+    // "freeze" (table) -> frozen-table
+    static class freeze extends OneArgFunction {
+        public LuaValue call(LuaValue table) {
+            return FrozenTable.freeze(table);
+        }
+    }
+
     // "insert" (table, [pos,] value)
     static class insert extends VarArgFunction {
         public Varargs invoke(Varargs args) {
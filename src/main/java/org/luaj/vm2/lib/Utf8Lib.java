@@ -0,0 +1,284 @@
+package org.luaj.vm2.lib;
+
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+/**
+ * Subclass of {@link LibFunction} which implements the Lua 5.3 {@code utf8} library.
+ * <p>
+ * Typically, this library is included as part of a call to
+ * {@link org.luaj.vm2.lib.jse.JsePlatform#standardGlobals()}
+ * <pre> {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * System.out.println( globals.get("utf8").get("len").call( LuaValue.valueOf("hello") ) );
+ * } </pre>
+ * <p>
+ * To instantiate and use it directly,
+ * link it into your globals table via {@link LuaValue#load(LuaValue)} using code such as:
+ * <pre> {@code
+ * Globals globals = new Globals();
+ * globals.load(new JseBaseLib());
+ * globals.load(new PackageLib());
+ * globals.load(new Utf8Lib());
+ * System.out.println( globals.get("utf8").get("char").call( LuaValue.valueOf(233) ) );
+ * } </pre>
+ * <p>
+ * All functions work directly on the bytes of the {@link LuaString} arguments, using
+ * {@link LuaString#decodeUtf8(byte[], int, int)} and {@link LuaString#encodeToUtf8(int, byte[], int)},
+ * which are also used when converting between Java and Lua strings.
+ * As in Lua 5.3, sequences of up to four bytes encoding values up to 0x10FFFF are accepted.
+ *
+ * @see LibFunction
+ * @see org.luaj.vm2.lib.jse.JsePlatform
+ * @see <a href="http://www.lua.org/manual/5.3/manual.html#6.5">Lua 5.3 UTF-8 Support Reference</a>
+ */
+public class Utf8Lib extends TwoArgFunction {
+
+    /**
+     * Pattern which matches exactly one UTF-8 byte sequence, assuming that the subject is valid UTF-8.
+     */
+    public static final LuaString CHARPATTERN = LuaString.valueOf(new byte[] {
+        '[', 0, '-', 0x7F, (byte) 0xC2, '-', (byte) 0xF4, ']', '[', (byte) 0x80, '-', (byte) 0xBF, ']', '*'
+    });
+
+    private static final int MAXUNICODE = 0x10FFFF;
+
+    public Utf8Lib() {
+    }
+
+    /**
+     * Perform one-time initialization on the library by creating a table
+     * containing the library functions, adding that table to the supplied environment,
+     * adding the table to package.loaded, and returning table as the return value.
+     *
+     * @param modname the module name supplied if this is loaded via 'require'.
+     * @param env     the environment to load into, typically a Globals instance.
+     */
+    public LuaValue call(LuaValue modname, LuaValue env) {
+        LuaTable utf8 = new LuaTable();
+        utf8.set("char", new _char());
+        utf8.set("charpattern", CHARPATTERN);
+        utf8.set("codepoint", new codepoint());
+        utf8.set("codes", new codes());
+        utf8.set("len", new len());
+        utf8.set("offset", new offset());
+        env.set("utf8", utf8);
+        if (!env.get("package").isnil()) env.get("package").get("loaded").set("utf8", utf8);
+        return utf8;
+    }
+
+    /**
+     * utf8.char (...)
+     * <p>
+     * Receives zero or more integers, converts each one to its corresponding UTF-8 byte sequence
+     * and returns a string with the concatenation of all these sequences.
+     */
+    static final class _char extends VarArgFunction {
+        public Varargs invoke(Varargs args) {
+            final int n = args.narg();
+            int length = 0;
+            for (int i = 1; i <= n; ++i)
+                length += LuaString.lengthAsUtf8(checkcode(args, i));
+            final byte[] bytes = new byte[length];
+            for (int i = 1, j = 0; i <= n; ++i)
+                j += LuaString.encodeToUtf8(checkcode(args, i), bytes, j);
+            return LuaString.valueUsing(bytes);
+        }
+
+        private static int checkcode(Varargs args, int i) {
+            final long code = args.checklong(i);
+            if (code < 0 || code > MAXUNICODE)
+                argerror(i, "value out of range");
+            return (int) code;
+        }
+    }
+
+    /**
+     * utf8.codepoint (s [, i [, j]])
+     * <p>
+     * Returns the codepoints (as integers) from all characters in s that start between
+     * byte position i and j (both included). The default for i is 1 and for j is i.
+     * It raises an error if it meets any invalid byte sequence.
+     */
+    static final class codepoint extends VarArgFunction {
+        public Varargs invoke(Varargs args) {
+            final LuaString s = args.checkstring(1);
+            final int len = s.m_length;
+            final int posi = posrelat(args.optint(2, 1), len);
+            final int pose = posrelat(args.optint(3, posi), len);
+            if (posi < 1)
+                argerror(2, "out of range");
+            if (pose > len)
+                argerror(3, "out of range");
+            if (posi > pose)
+                return NONE;
+
+            final byte[] bytes = s.m_bytes;
+            final int end = s.m_offset + len;
+            final LuaValue[] codes = new LuaValue[pose - posi + 1];
+            int n = 0;
+            for (int i = s.m_offset + posi - 1, e = s.m_offset + pose; i < e; ) {
+                final int code = LuaString.decodeUtf8(bytes, i, end);
+                if (code < 0)
+                    error("invalid UTF-8 code");
+                codes[n++] = valueOf(code);
+                i += LuaString.lengthAsUtf8(code);
+            }
+            return n == 1 ? codes[0] : varargsOf(codes, 0, n);
+        }
+    }
+
+    /**
+     * utf8.codes (s)
+     * <p>
+     * Returns values so that the construction
+     * for p, c in utf8.codes(s) do body end
+     * will iterate over all characters in string s, with p being the position (in bytes)
+     * and c the code point of each character. It raises an error if it meets any invalid byte sequence.
+     */
+    static final class codes extends VarArgFunction {
+        public Varargs invoke(Varargs args) {
+            return varargsOf(ITERATOR, args.checkstring(1), ZERO);
+        }
+    }
+
+    /**
+     * The iterator of {@link codes}, which keeps no state of its own: the position of the
+     * previous character is the control variable of the generic for loop.
+     */
+    private static final CodesAux ITERATOR = new CodesAux();
+
+    static final class CodesAux extends VarArgFunction {
+        public Varargs invoke(Varargs args) {
+            final LuaString s = args.checkstring(1);
+            final byte[] bytes = s.m_bytes;
+            final int off = s.m_offset;
+            final int len = s.m_length;
+            int n = args.checkint(2) - 1;
+            if (n < 0) {
+                n = 0;
+            } else if (n < len) {
+                // skip the current byte and its continuations
+                n++;
+                while (n < len && iscont(bytes[off + n]))
+                    n++;
+            }
+            if (n >= len)
+                return NONE;
+            final int code = LuaString.decodeUtf8(bytes, off + n, off + len);
+            if (code < 0) {
+                error("invalid UTF-8 code");
+            } else {
+                final int next = n + LuaString.lengthAsUtf8(code);
+                if (next < len && iscont(bytes[off + next]))
+                    error("invalid UTF-8 code");
+            }
+            return varargsOf(valueOf(n + 1), valueOf(code));
+        }
+    }
+
+    /**
+     * utf8.len (s [, i [, j]])
+     * <p>
+     * Returns the number of UTF-8 characters in string s that start between positions i and j (both inclusive).
+     * The default for i is 1 and for j is -1. If it finds any invalid byte sequence,
+     * returns a false value plus the position of the first invalid byte.
+     */
+    static final class len extends VarArgFunction {
+        public Varargs invoke(Varargs args) {
+            final LuaString s = args.checkstring(1);
+            final int len = s.m_length;
+            int posi = posrelat(args.optint(2, 1), len);
+            int posj = posrelat(args.optint(3, -1), len);
+            if (posi < 1 || --posi > len)
+                argerror(2, "initial position out of string");
+            if (--posj >= len)
+                argerror(3, "final position out of string");
+
+            final byte[] bytes = s.m_bytes;
+            final int off = s.m_offset;
+            int n = 0;
+            while (posi <= posj) {
+                final int code = LuaString.decodeUtf8(bytes, off + posi, off + len);
+                if (code < 0)
+                    return varargsOf(NIL, valueOf(posi + 1));
+                posi += LuaString.lengthAsUtf8(code);
+                n++;
+            }
+            return valueOf(n);
+        }
+    }
+
+    /**
+     * utf8.offset (s, n [, i])
+     * <p>
+     * Returns the position (in bytes) where the encoding of the n-th character of s
+     * (counting from position i) starts. A negative n gets characters before position i.
+     * The default for i is 1 when n is non-negative and #s + 1 otherwise,
+     * so that utf8.offset(s, -n) gets the offset of the n-th character from the end of the string.
+     * If the specified character is neither in the subject nor right after its end, the function returns nil.
+     */
+    static final class offset extends VarArgFunction {
+        public Varargs invoke(Varargs args) {
+            final LuaString s = args.checkstring(1);
+            final byte[] bytes = s.m_bytes;
+            final int off = s.m_offset;
+            final int len = s.m_length;
+            int n = args.checkint(2);
+            int posi = posrelat(args.optint(3, n >= 0 ? 1 : len + 1), len);
+            if (posi < 1 || --posi > len)
+                argerror(3, "position out of range");
+            if (n == 0) {
+                // find the beginning of the current byte sequence
+                while (posi > 0 && iscont(bytes, off, len, posi))
+                    posi--;
+            } else {
+                if (iscont(bytes, off, len, posi))
+                    error("initial position is a continuation byte");
+                if (n < 0) {
+                    while (n < 0 && posi > 0) {
+                        do {
+                            posi--;
+                        } while (posi > 0 && iscont(bytes, off, len, posi));
+                        n++;
+                    }
+                } else {
+                    n--; // do not move for the first character
+                    while (n > 0 && posi < len) {
+                        do {
+                            posi++;
+                        } while (iscont(bytes, off, len, posi));
+                        n--;
+                    }
+                }
+            }
+            return n == 0 ? valueOf(posi + 1) : NIL;
+        }
+    }
+
+    private static boolean iscont(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    /**
+     * Check for a continuation byte, treating the position just past the end like the terminating zero of a C string.
+     */
+    private static boolean iscont(byte[] bytes, int off, int len, int i) {
+        return i < len && iscont(bytes[off + i]);
+    }
+
+    /**
+     * Convert a relative string position, where negative means back from end, to an absolute one.
+     * Positions before the start of the string become 0.
+     */
+    private static int posrelat(int pos, int len) {
+        if (pos >= 0)
+            return pos;
+        else if (-pos > len)
+            return 0;
+        else
+            return len + pos + 1;
+    }
+}
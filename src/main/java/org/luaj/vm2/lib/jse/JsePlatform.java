@@ -61,6 +61,7 @@ import org.luaj.vm2.lib.*;
  * <li>{@link Bit32Lib}</li>
  * <li>{@link TableLib}</li>
  * <li>{@link StringLib}</li>
+ * <li>{@link Utf8Lib}</li>
  * <li>{@link CoroutineLib}</li>
  * <li>{@link org.luaj.vm2.lib.jse.JseMathLib}</li>
  * <li>{@link org.luaj.vm2.lib.jse.JseIoLib}</li>
@@ -93,6 +94,7 @@ public class JsePlatform {
         globals.load(new Bit32Lib());
         globals.load(new TableLib());
         globals.load(new JseStringLib());
+        globals.load(new Utf8Lib());
         globals.load(new CoroutineLib());
         globals.load(new JseMathLib());
         globals.load(new JseIoLib());
@@ -0,0 +1,782 @@
+package org.luaj.vm2.luajc;
+
+import org.luaj.vm2.*;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * {@link JavaBuilder} that generates classes with ASM, as class file version 61.
+ * <p>
+ * The instructions are the same as those of {@link BcelJavaBuilder}, but they are written straight
+ * into the class file as they are generated, and the stack map frames the verifier needs since
+ * class file version 50 are computed by ASM from the types of the values stored in the locals.
+ * Those types are library classes or generated closure classes, whose superclasses are known here,
+ * so no class is loaded to compute them.
+ */
+public class AsmJavaBuilder extends JavaBuilder {
+
+    private static final String VARARGS = Type.getInternalName(Varargs.class);
+    private static final String LUAVALUE = Type.getInternalName(LuaValue.class);
+    private static final String LUASTRING = Type.getInternalName(LuaString.class);
+    private static final String BUFFER = Type.getInternalName(Buffer.class);
+    private static final String STRING = Type.getInternalName(String.class);
+    private static final String JSEPLATFORM = "org/luaj/vm2/lib/jse/JsePlatform";
+
+    // type descriptors
+    private static final String D_VARARGS = Type.getDescriptor(Varargs.class);
+    private static final String D_LUAVALUE = Type.getDescriptor(LuaValue.class);
+    private static final String D_LUASTRING = Type.getDescriptor(LuaString.class);
+    private static final String D_LUAINTEGER = Type.getDescriptor(LuaInteger.class);
+    private static final String D_LUANUMBER = Type.getDescriptor(LuaNumber.class);
+    private static final String D_LUABOOLEAN = Type.getDescriptor(LuaBoolean.class);
+    private static final String D_LUATABLE = Type.getDescriptor(LuaTable.class);
+    private static final String D_BUFFER = Type.getDescriptor(Buffer.class);
+    private static final String D_LOCALUPVALUE = "[" + D_LUAVALUE;
+    private static final String D_STRINGARRAY = "[" + Type.getDescriptor(String.class);
+
+    // method descriptors
+    private static final String M_V = "()V";
+    private static final String M_Z = "()Z";
+    private static final String M_LUAVALUE = "()" + D_LUAVALUE;
+    private static final String M_VARARGS = "()" + D_VARARGS;
+    private static final String M_LOCALUPVALUE = "()" + D_LOCALUPVALUE;
+    private static final String M_INT_LUAVALUE = "(I)" + D_LUAVALUE;
+    private static final String M_INT_VARARGS = "(I)" + D_VARARGS;
+    private static final String M_INT_INT_LUATABLE = "(II)" + D_LUATABLE;
+    private static final String M_INT_LUAINTEGER = "(I)" + D_LUAINTEGER;
+    private static final String M_DOUBLE_LUANUMBER = "(D)" + D_LUANUMBER;
+    private static final String M_STRING_LUASTRING = "(" + Type.getDescriptor(String.class) + ")" + D_LUASTRING;
+    private static final String M_CHARARRAY = "()[C";
+    private static final String M_CHARARRAY_LUASTRING = "([C)" + D_LUASTRING;
+    private static final String M_LUAVALUE_V = "(" + D_LUAVALUE + ")V";
+    private static final String M_LUAVALUE_Z = "(" + D_LUAVALUE + ")Z";
+    private static final String M_LUAVALUE_LUAVALUE = "(" + D_LUAVALUE + ")" + D_LUAVALUE;
+    private static final String M_LUAVALUE_LOCALUPVALUE = "(" + D_LUAVALUE + ")" + D_LOCALUPVALUE;
+    private static final String M_LUAVALUE_LUAVALUE_V = "(" + D_LUAVALUE + D_LUAVALUE + ")V";
+    private static final String M_LUAVALUE_LUAVALUE_Z = "(" + D_LUAVALUE + D_LUAVALUE + ")Z";
+    private static final String M_LUAVALUE_LUAVALUE_LUAVALUE = "(" + D_LUAVALUE + D_LUAVALUE + ")" + D_LUAVALUE;
+    private static final String M_LUAVALUE_LUAVALUE_LUAVALUE_LUAVALUE = "(" + D_LUAVALUE + D_LUAVALUE + D_LUAVALUE + ")" + D_LUAVALUE;
+    private static final String M_VARARGS_VARARGS = "(" + D_VARARGS + ")" + D_VARARGS;
+    private static final String M_LUAVALUE_VARARGS_VARARGS = "(" + D_LUAVALUE + D_VARARGS + ")" + D_VARARGS;
+    private static final String M_LUAVALUE_LUAVALUE_VARARGS_VARARGS = "(" + D_LUAVALUE + D_LUAVALUE + D_VARARGS + ")" + D_VARARGS;
+    private static final String M_LUAVALUEARRAY_VARARGS = "(" + D_LOCALUPVALUE + ")" + D_VARARGS;
+    private static final String M_LUAVALUEARRAY_VARARGS_VARARGS = "(" + D_LOCALUPVALUE + D_VARARGS + ")" + D_VARARGS;
+    private static final String M_INT_LUAVALUE_V = "(I" + D_LUAVALUE + ")V";
+    private static final String M_INT_VARARGS_V = "(I" + D_VARARGS + ")V";
+    private static final String M_BUFFER = "()" + D_BUFFER;
+    private static final String M_BUFFER_BUFFER = "(" + D_BUFFER + ")" + D_BUFFER;
+    private static final String M_LUAVALUE_STRINGARRAY_VARARGS = "(" + D_LUAVALUE + D_STRINGARRAY + ")" + D_VARARGS;
+
+    private static final Pattern NOT_IDENTIFIER = Pattern.compile("[^a-zA-Z0-9]");
+
+    // descriptors of the main method for each superclass type
+    private static final String[] METH_DESC_N = { M_LUAVALUE, M_LUAVALUE_LUAVALUE, M_LUAVALUE_LUAVALUE_LUAVALUE, M_LUAVALUE_LUAVALUE_LUAVALUE_LUAVALUE, M_VARARGS_VARARGS, };
+    private static final String[] ARG_DESC_N = { null, D_LUAVALUE, D_LUAVALUE, D_LUAVALUE, D_VARARGS, };
+
+    // asm variables
+    private final String internalname;
+    private final ClassWriter cw;
+    private final MethodVisitor main;
+    private MethodVisitor init;
+
+    // superclasses of the generated classes that may be stored in locals
+    private final Map<String, Class<?>> generated = new HashMap<String, Class<?>>();
+
+    // storage for goto locations
+    private final Label[] starts;
+    private final Label[] ends;
+    private final boolean[] started;
+    private final boolean[] ended;
+    private final int[] targets;
+    private final Label begin = new Label();
+
+    // local variables
+    private final List<LocalVar> locals = new ArrayList<LocalVar>();
+    private int nextLocal;
+
+    // hold vararg result
+    private LocalVar varresult = null;
+    private int prev_line = -1;
+
+    public AsmJavaBuilder(ProtoInfo pi, String classname, String filename) {
+        super(pi, classname);
+        this.internalname = classname.replace('.', '/');
+        generated.put(internalname, SUPER_CLASS_N[superclassType]);
+
+        // create class generator
+        cw = new Writer();
+        cw.visit(Opcodes.V17, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, internalname, null,
+            Type.getInternalName(SUPER_CLASS_N[superclassType]), null);
+        cw.visitSource(filename, null);
+
+        // create the fields
+        for (int i = 0; i < p.upvalues.length; i++) {
+            boolean isrw = pi.isReadWriteUpvalue(pi.upvals[i]);
+            cw.visitField(0, upvalueName(i), isrw ? D_LOCALUPVALUE : D_LUAVALUE, null, null).visitEnd();
+        }
+
+        // create the method
+        main = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL,
+            METH_NAME_N[superclassType], METH_DESC_N[superclassType], null, null);
+        main.visitCode();
+        main.visitLabel(begin);
+        String[] argnames = ARG_NAMES_N[superclassType];
+        for (int i = 0; i < argnames.length; i++)
+            locals.add(new LocalVar(argnames[i], ARG_DESC_N[superclassType], 1 + i));
+        nextLocal = 1 + argnames.length;
+
+        // initialize branching
+        int nc = p.code.length;
+        starts = new Label[nc];
+        ends = new Label[nc];
+        started = new boolean[nc];
+        ended = new boolean[nc];
+        targets = new int[nc];
+        for (int i = 0; i < nc; i++)
+            targets[i] = -1;
+
+        // initialize the values in the slots
+        initializeSlots();
+    }
+
+    private void initializeSlots() {
+        int slot = 0;
+        createUpvalues(-1, 0, p.maxstacksize);
+        if (superclassType == SUPERTYPE_VARARGS) {
+            for (slot = 0; slot < p.numparams; slot++) {
+                if (pi.isInitialValueUsed(slot)) {
+                    main.visitVarInsn(Opcodes.ALOAD, 1);
+                    push(main, slot + 1);
+                    main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, VARARGS, "arg", M_INT_LUAVALUE, false);
+                    storeLocal(-1, slot);
+                }
+            }
+            main.visitVarInsn(Opcodes.ALOAD, 1);
+            push(main, 1 + p.numparams);
+            main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, VARARGS, "subargs", M_INT_VARARGS, false);
+            main.visitVarInsn(Opcodes.ASTORE, 1);
+        } else {
+            // fixed arg function between 0 and 3 arguments
+            for (slot = 0; slot < p.numparams; slot++) {
+                this.plainSlotVars.put(Integer.valueOf(slot), Integer.valueOf(1 + slot));
+                if (pi.isUpvalueCreate(-1, slot)) {
+                    main.visitVarInsn(Opcodes.ALOAD, 1 + slot);
+                    storeLocal(-1, slot);
+                }
+            }
+        }
+
+        // nil parameters
+        for (; slot < p.maxstacksize; slot++) {
+            if (pi.isInitialValueUsed(slot)) {
+                loadNil();
+                storeLocal(-1, slot);
+            }
+        }
+    }
+
+    public byte[] completeClass(boolean genmain) {
+
+        // finish class initializer
+        if (init != null) {
+            init.visitInsn(Opcodes.RETURN);
+            init.visitMaxs(0, 0);
+            init.visitEnd();
+        }
+
+        // add default constructor
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", M_V, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, Type.getInternalName(SUPER_CLASS_N[superclassType]), "<init>", M_V, false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        // finish main method
+        resolveBranches();
+        Label end = new Label();
+        main.visitLabel(end);
+        main.visitLocalVariable("this", "L" + internalname + ";", null, begin, end, 0);
+        for (int i = 0, n = locals.size(); i < n; i++) {
+            LocalVar l = locals.get(i);
+            main.visitLocalVariable(l.name, l.desc, null, l.start != null ? l.start : begin, l.end != null ? l.end : end, l.index);
+        }
+        main.visitMaxs(0, 0);
+        main.visitEnd();
+
+        // add initupvalue1(LuaValue env) to initialize environment for main chunk
+        if (p.upvalues.length == 1 && superclassType == SUPERTYPE_VARARGS) {
+            mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, "initupvalue1", M_LUAVALUE_V, null, null);
+            mv.visitCode();
+            boolean isrw = pi.isReadWriteUpvalue(pi.upvals[0]);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            if (isrw) {
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, internalname, "newupl", M_LUAVALUE_LOCALUPVALUE, false);
+                mv.visitFieldInsn(Opcodes.PUTFIELD, internalname, upvalueName(0), D_LOCALUPVALUE);
+            } else {
+                mv.visitFieldInsn(Opcodes.PUTFIELD, internalname, upvalueName(0), D_LUAVALUE);
+            }
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        // add main function so class is invokable from the java command line
+        if (genmain) {
+            mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "main", "(" + D_STRINGARRAY + ")V", null, null);
+            mv.visitCode();
+            mv.visitTypeInsn(Opcodes.NEW, internalname);
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitMethodInsn(Opcodes.INVOKESPECIAL, internalname, "<init>", M_V, false);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, JSEPLATFORM, "luaMain", M_LUAVALUE_STRINGARRAY_VARARGS, false);
+            mv.visitInsn(Opcodes.POP);
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        // convert to class bytes
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    public void dup() {
+        main.visitInsn(Opcodes.DUP);
+    }
+
+    public void pop() {
+        main.visitInsn(Opcodes.POP);
+    }
+
+    public void loadNil() {
+        main.visitFieldInsn(Opcodes.GETSTATIC, LUAVALUE, "NIL", D_LUAVALUE);
+    }
+
+    public void loadNone() {
+        main.visitFieldInsn(Opcodes.GETSTATIC, LUAVALUE, "NONE", D_LUAVALUE);
+    }
+
+    public void loadBoolean(boolean b) {
+        main.visitFieldInsn(Opcodes.GETSTATIC, LUAVALUE, b ? "TRUE" : "FALSE", D_LUABOOLEAN);
+    }
+
+    private Map<Integer, Integer> plainSlotVars = new HashMap<Integer, Integer>();
+    private Map<Integer, Integer> upvalueSlotVars = new HashMap<Integer, Integer>();
+    private Map<Integer, LocalVar> localVarBySlot = new HashMap<Integer, LocalVar>();
+
+    private int findSlot(int slot, Map<Integer, Integer> map, String prefix, String desc) {
+        Integer islot = Integer.valueOf(slot);
+        Integer index = map.get(islot);
+        if (index != null)
+            return index.intValue();
+        LocalVar local = addLocal(prefix + slot, desc);
+        map.put(islot, Integer.valueOf(local.index));
+        localVarBySlot.put(islot, local);
+        return local.index;
+    }
+
+    private LocalVar addLocal(String name, String desc) {
+        LocalVar local = new LocalVar(name, desc, nextLocal++);
+        locals.add(local);
+        return local;
+    }
+
+    private int findSlotIndex(int slot, boolean isupvalue) {
+        return isupvalue ?
+            findSlot(slot, upvalueSlotVars, PREFIX_UPVALUE_SLOT, D_LOCALUPVALUE) :
+            findSlot(slot, plainSlotVars, PREFIX_PLAIN_SLOT, D_LUAVALUE);
+    }
+
+    public void loadLocal(int pc, int slot) {
+        boolean isupval = pi.isUpvalueRefer(pc, slot);
+        int index = findSlotIndex(slot, isupval);
+        main.visitVarInsn(Opcodes.ALOAD, index);
+        if (isupval) {
+            main.visitInsn(Opcodes.ICONST_0);
+            main.visitInsn(Opcodes.AALOAD);
+        }
+    }
+
+    public void storeLocal(int pc, int slot) {
+        boolean isupval = pi.isUpvalueAssign(pc, slot);
+        int index = findSlotIndex(slot, isupval);
+        if (isupval) {
+            boolean isupcreate = pi.isUpvalueCreate(pc, slot);
+            if (isupcreate) {
+                main.visitMethodInsn(Opcodes.INVOKESTATIC, internalname, "newupe", M_LOCALUPVALUE, false);
+                main.visitInsn(Opcodes.DUP);
+                main.visitVarInsn(Opcodes.ASTORE, index);
+            } else {
+                main.visitVarInsn(Opcodes.ALOAD, index);
+            }
+            main.visitInsn(Opcodes.SWAP);
+            main.visitInsn(Opcodes.ICONST_0);
+            main.visitInsn(Opcodes.SWAP);
+            main.visitInsn(Opcodes.AASTORE);
+        } else {
+            main.visitVarInsn(Opcodes.ASTORE, index);
+        }
+    }
+
+    private void createUpvalues(int pc, int firstslot, int numslots) {
+        for (int i = 0; i < numslots; i++) {
+            int slot = firstslot + i;
+            boolean isupcreate = pi.isUpvalueCreate(pc, slot);
+            if (isupcreate) {
+                int index = findSlotIndex(slot, true);
+                main.visitMethodInsn(Opcodes.INVOKESTATIC, internalname, "newupn", M_LOCALUPVALUE, false);
+                main.visitVarInsn(Opcodes.ASTORE, index);
+            }
+        }
+    }
+
+    public void convertToUpvalue(int pc, int slot) {
+        boolean isupassign = pi.isUpvalueAssign(pc, slot);
+        if (isupassign) {
+            int index = findSlotIndex(slot, false);
+            main.visitVarInsn(Opcodes.ALOAD, index);
+            main.visitMethodInsn(Opcodes.INVOKESTATIC, internalname, "newupl", M_LUAVALUE_LOCALUPVALUE, false);
+            int upindex = findSlotIndex(slot, true);
+            main.visitVarInsn(Opcodes.ASTORE, upindex);
+        }
+    }
+
+    public void loadUpvalue(int upindex) {
+        boolean isrw = pi.isReadWriteUpvalue(pi.upvals[upindex]);
+        main.visitVarInsn(Opcodes.ALOAD, 0);
+        if (isrw) {
+            main.visitFieldInsn(Opcodes.GETFIELD, internalname, upvalueName(upindex), D_LOCALUPVALUE);
+            main.visitInsn(Opcodes.ICONST_0);
+            main.visitInsn(Opcodes.AALOAD);
+        } else {
+            main.visitFieldInsn(Opcodes.GETFIELD, internalname, upvalueName(upindex), D_LUAVALUE);
+        }
+    }
+
+    public void storeUpvalue(int pc, int upindex, int slot) {
+        boolean isrw = pi.isReadWriteUpvalue(pi.upvals[upindex]);
+        main.visitVarInsn(Opcodes.ALOAD, 0);
+        if (isrw) {
+            main.visitFieldInsn(Opcodes.GETFIELD, internalname, upvalueName(upindex), D_LOCALUPVALUE);
+            main.visitInsn(Opcodes.ICONST_0);
+            loadLocal(pc, slot);
+            main.visitInsn(Opcodes.AASTORE);
+        } else {
+            loadLocal(pc, slot);
+            main.visitFieldInsn(Opcodes.PUTFIELD, internalname, upvalueName(upindex), D_LUAVALUE);
+        }
+    }
+
+    public void newTable(int b, int c) {
+        push(main, b);
+        push(main, c);
+        main.visitMethodInsn(Opcodes.INVOKESTATIC, LUAVALUE, "tableOf", M_INT_INT_LUATABLE, false);
+    }
+
+    public void loadVarargs() {
+        main.visitVarInsn(Opcodes.ALOAD, 1);
+    }
+
+    public void loadVarargs(int argindex) {
+        loadVarargs();
+        arg(argindex);
+    }
+
+    public void arg(int argindex) {
+        if (argindex == 1) {
+            main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, VARARGS, "arg1", M_LUAVALUE, false);
+        } else {
+            push(main, argindex);
+            main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, VARARGS, "arg", M_INT_LUAVALUE, false);
+        }
+    }
+
+    private int getVarresultIndex() {
+        if (varresult == null)
+            varresult = addLocal(NAME_VARRESULT, D_VARARGS);
+        return varresult.index;
+    }
+
+    public void loadVarresult() {
+        main.visitVarInsn(Opcodes.ALOAD, getVarresultIndex());
+    }
+
+    public void storeVarresult() {
+        main.visitVarInsn(Opcodes.ASTORE, getVarresultIndex());
+    }
+
+    public void subargs(int firstarg) {
+        push(main, firstarg);
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, VARARGS, "subargs", M_INT_VARARGS, false);
+    }
+
+    public void getTable() {
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "get", M_LUAVALUE_LUAVALUE, false);
+    }
+
+    public void setTable() {
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "set", M_LUAVALUE_LUAVALUE_V, false);
+    }
+
+    public void unaryop(int o) {
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, unaryopName(o), M_LUAVALUE, false);
+    }
+
+    public void binaryop(int o) {
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, binaryopName(o), M_LUAVALUE_LUAVALUE, false);
+    }
+
+    public void compareop(int o) {
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, compareopName(o), M_LUAVALUE_Z, false);
+    }
+
+    public void areturn() {
+        main.visitInsn(Opcodes.ARETURN);
+    }
+
+    public void toBoolean() {
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "toboolean", M_Z, false);
+    }
+
+    public void isNil() {
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "isnil", M_Z, false);
+    }
+
+    public void testForLoop() {
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "testfor_b", M_LUAVALUE_LUAVALUE_Z, false);
+    }
+
+    private void loadArrayArgs(int pc, int firstslot, int nargs) {
+        push(main, nargs);
+        main.visitTypeInsn(Opcodes.ANEWARRAY, LUAVALUE);
+        for (int i = 0; i < nargs; i++) {
+            main.visitInsn(Opcodes.DUP);
+            push(main, i);
+            loadLocal(pc, firstslot++);
+            main.visitInsn(Opcodes.AASTORE);
+        }
+    }
+
+    public void newVarargs(int pc, int firstslot, int nargs) {
+        switch (nargs) {
+            case 0:
+                loadNone();
+                break;
+            case 1:
+                loadLocal(pc, firstslot);
+                break;
+            case 2:
+                loadLocal(pc, firstslot);
+                loadLocal(pc, firstslot + 1);
+                main.visitMethodInsn(Opcodes.INVOKESTATIC, LUAVALUE, "varargsOf", M_LUAVALUE_VARARGS_VARARGS, false);
+                break;
+            case 3:
+                loadLocal(pc, firstslot);
+                loadLocal(pc, firstslot + 1);
+                loadLocal(pc, firstslot + 2);
+                main.visitMethodInsn(Opcodes.INVOKESTATIC, LUAVALUE, "varargsOf", M_LUAVALUE_LUAVALUE_VARARGS_VARARGS, false);
+                break;
+            default:
+                loadArrayArgs(pc, firstslot, nargs);
+                main.visitMethodInsn(Opcodes.INVOKESTATIC, LUAVALUE, "varargsOf", M_LUAVALUEARRAY_VARARGS, false);
+                break;
+        }
+    }
+
+    public void newVarargsVarresult(int pc, int firstslot, int nslots) {
+        loadArrayArgs(pc, firstslot, nslots);
+        loadVarresult();
+        main.visitMethodInsn(Opcodes.INVOKESTATIC, LUAVALUE, "varargsOf", M_LUAVALUEARRAY_VARARGS_VARARGS, false);
+    }
+
+    public void call(int nargs) {
+        if (nargs < 0 || nargs > 3)
+            throw new IllegalArgumentException("can't call with " + nargs + " args");
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "call", METH_DESC_N[nargs], false);
+    }
+
+    public void newTailcallVarargs() {
+        main.visitMethodInsn(Opcodes.INVOKESTATIC, LUAVALUE, "tailcallOf", M_LUAVALUE_VARARGS_VARARGS, false);
+    }
+
+    public void invoke(int nargs) {
+        switch (nargs) {
+            case -1:
+            case 1:
+                main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "invoke", M_VARARGS_VARARGS, false);
+                break;
+            case 0:
+                main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "invoke", M_VARARGS, false);
+                break;
+            case 2:
+                main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "invoke", M_LUAVALUE_VARARGS_VARARGS, false);
+                break;
+            case 3:
+                main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "invoke", M_LUAVALUE_LUAVALUE_VARARGS_VARARGS, false);
+                break;
+            default:
+                throw new IllegalArgumentException("can't invoke with " + nargs + " args");
+        }
+    }
+
+
+    // ------------------------ closures ------------------------
+
+    public void closureCreate(String protoname) {
+        String name = protoname.replace('.', '/');
+        if (!generated.containsKey(name)) {
+            for (int i = 0; i < pi.subprotos.length; i++)
+                if (pi.subprotos[i].name.equals(protoname))
+                    generated.put(name, SUPER_CLASS_N[superclassType(pi.subprotos[i].prototype)]);
+        }
+        main.visitTypeInsn(Opcodes.NEW, name);
+        main.visitInsn(Opcodes.DUP);
+        main.visitMethodInsn(Opcodes.INVOKESPECIAL, name, "<init>", M_V, false);
+    }
+
+    public void closureInitUpvalueFromUpvalue(String protoname, int newup, int upindex) {
+        boolean isrw = pi.isReadWriteUpvalue(pi.upvals[upindex]);
+        String uptype = isrw ? D_LOCALUPVALUE : D_LUAVALUE;
+        main.visitVarInsn(Opcodes.ALOAD, 0);
+        main.visitFieldInsn(Opcodes.GETFIELD, internalname, upvalueName(upindex), uptype);
+        main.visitFieldInsn(Opcodes.PUTFIELD, protoname.replace('.', '/'), upvalueName(newup), uptype);
+    }
+
+    public void closureInitUpvalueFromLocal(String protoname, int newup, int pc, int srcslot) {
+        boolean isrw = pi.isReadWriteUpvalue(pi.vars[srcslot][pc].upvalue);
+        String uptype = isrw ? D_LOCALUPVALUE : D_LUAVALUE;
+        int index = findSlotIndex(srcslot, isrw);
+        main.visitVarInsn(Opcodes.ALOAD, index);
+        main.visitFieldInsn(Opcodes.PUTFIELD, protoname.replace('.', '/'), upvalueName(newup), uptype);
+    }
+
+    private Map<LuaValue, String> constants = new HashMap<LuaValue, String>();
+
+    public void loadConstant(LuaValue value) {
+        switch (value.type()) {
+            case LuaValue.TNIL:
+                loadNil();
+                break;
+            case LuaValue.TBOOLEAN:
+                loadBoolean(value.toboolean());
+                break;
+            case LuaValue.TNUMBER:
+            case LuaValue.TSTRING:
+                String name = constants.get(value);
+                if (name == null) {
+                    name = createConstantField(value);
+                    constants.put(value, name);
+                }
+                main.visitFieldInsn(Opcodes.GETSTATIC, internalname, name, D_LUAVALUE);
+                break;
+            default:
+                throw new IllegalArgumentException("bad constant type: " + value.type());
+        }
+    }
+
+    private String createConstantField(LuaValue value) {
+        String name = PREFIX_CONSTANT + constants.size();
+        cw.visitField(Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, name, D_LUAVALUE, null, null).visitEnd();
+        if (init == null) {
+            init = cw.visitMethod(Opcodes.ACC_STATIC, "<clinit>", M_V, null, null);
+            init.visitCode();
+        }
+        if (value.type() == LuaValue.TNUMBER && value.isinttype()) {
+            push(init, value.checkint());
+            init.visitMethodInsn(Opcodes.INVOKESTATIC, LUAVALUE, "valueOf", M_INT_LUAINTEGER, false);
+        } else if (value.type() == LuaValue.TNUMBER) {
+            double d = value.checkdouble();
+            if (Double.doubleToRawLongBits(d) == 0L)
+                init.visitInsn(Opcodes.DCONST_0);
+            else if (d == 1.0)
+                init.visitInsn(Opcodes.DCONST_1);
+            else
+                init.visitLdcInsn(Double.valueOf(d));
+            init.visitMethodInsn(Opcodes.INVOKESTATIC, LUAVALUE, "valueOf", M_DOUBLE_LUANUMBER, false);
+        } else {
+            LuaString ls = value.checkstring();
+            if (ls.isValidUtf8()) {
+                init.visitLdcInsn(value.tojstring());
+                init.visitMethodInsn(Opcodes.INVOKESTATIC, LUASTRING, "valueOf", M_STRING_LUASTRING, false);
+            } else {
+                char[] c = new char[ls.m_length];
+                for (int j = 0; j < ls.m_length; j++)
+                    c[j] = (char) (0xff & (int) (ls.m_bytes[ls.m_offset + j]));
+                init.visitLdcInsn(new String(c));
+                init.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING, "toCharArray", M_CHARARRAY, false);
+                init.visitMethodInsn(Opcodes.INVOKESTATIC, LUASTRING, "valueOf", M_CHARARRAY_LUASTRING, false);
+            }
+        }
+        init.visitFieldInsn(Opcodes.PUTSTATIC, internalname, name, D_LUAVALUE);
+        return name;
+    }
+
+    // --------------------- branching support -------------------------
+    public void addBranch(int pc, int branchType, int targetpc) {
+        int opcode;
+        switch (branchType) {
+            default:
+            case BRANCH_GOTO:
+                opcode = Opcodes.GOTO;
+                break;
+            case BRANCH_IFNE:
+                opcode = Opcodes.IFNE;
+                break;
+            case BRANCH_IFEQ:
+                opcode = Opcodes.IFEQ;
+                break;
+        }
+        if (targetpc < 0 || targetpc >= starts.length)
+            throw new IllegalArgumentException("no target at or after " + targetpc);
+        targets[pc] = targetpc;
+        main.visitJumpInsn(opcode, start(targetpc));
+    }
+
+    private Label start(int pc) {
+        if (starts[pc] == null)
+            starts[pc] = new Label();
+        return starts[pc];
+    }
+
+    public void onStartOfLuaInstruction(int pc) {
+        main.visitLabel(start(pc));
+        started[pc] = true;
+    }
+
+    public void onEndOfLuaInstruction(int pc, int line) {
+        ends[pc] = new Label();
+        main.visitLabel(ends[pc]);
+        ended[pc] = true;
+        if (line != prev_line && started[pc])
+            main.visitLineNumber(prev_line = line, starts[pc]);
+    }
+
+    public void setVarStartEnd(int slot, int start_pc, int end_pc, String name) {
+        LocalVar l = localVarBySlot.get(Integer.valueOf(slot));
+        if (l != null) {
+            l.name = NOT_IDENTIFIER.matcher(name).replaceAll("_");
+            // blocks are not laid out in pc order, so keep the whole method when the range is out of order
+            if (start_pc < starts.length && started[start_pc] && end_pc > 0 && end_pc <= ends.length && ended[end_pc - 1]
+                && starts[start_pc].getOffset() < ends[end_pc - 1].getOffset()) {
+                l.start = starts[start_pc];
+                l.end = ends[end_pc - 1];
+            }
+        }
+    }
+
+    private void resolveBranches() {
+        for (int pc = 0; pc < targets.length; pc++)
+            if (targets[pc] >= 0 && !started[targets[pc]])
+                throw new IllegalArgumentException("no target at or after " + targets[pc] + " op=" + Lua.GET_OPCODE(p.code[targets[pc]]));
+    }
+
+    public void setlistStack(int pc, int a0, int index0, int nvals) {
+        for (int i = 0; i < nvals; i++) {
+            dup();
+            push(main, index0 + i);
+            loadLocal(pc, a0 + i);
+            main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "rawset", M_INT_LUAVALUE_V, false);
+        }
+    }
+
+    public void setlistVarargs(int index0, int vresultbase) {
+        push(main, index0);
+        loadVarresult();
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "rawsetlist", M_INT_VARARGS_V, false);
+    }
+
+    public void concatvalue() {
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "concat", M_LUAVALUE_LUAVALUE, false);
+    }
+
+    public void concatbuffer() {
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "concat", M_BUFFER_BUFFER, false);
+    }
+
+    public void tobuffer() {
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LUAVALUE, "buffer", M_BUFFER, false);
+    }
+
+    public void tovalue() {
+        main.visitMethodInsn(Opcodes.INVOKEVIRTUAL, BUFFER, "value", M_LUAVALUE, false);
+    }
+
+    public void closeUpvalue(int pc, int upindex) {
+        // upvalues are not closed, as in BcelJavaBuilder
+    }
+
+    private static void push(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5)
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        else
+            mv.visitLdcInsn(Integer.valueOf(value));
+    }
+
+    /**
+     * A local variable of the main method, for the debug information.
+     */
+    private static final class LocalVar {
+        String name;
+        final String desc;
+        final int index;
+        Label start, end;
+
+        LocalVar(String name, String desc, int index) {
+            this.name = name;
+            this.desc = desc;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Finds the common superclass of two types when merging stack map frames
+     * without loading the generated classes, which are not defined yet.
+     */
+    private final class Writer extends ClassWriter {
+        Writer() {
+            super(ClassWriter.COMPUTE_FRAMES);
+        }
+
+        protected String getCommonSuperClass(String type1, String type2) {
+            Class<?> c = classOf(type1), d = classOf(type2);
+            if (c.isAssignableFrom(d))
+                return Type.getInternalName(c);
+            if (d.isAssignableFrom(c))
+                return Type.getInternalName(d);
+            if (c.isInterface() || d.isInterface())
+                return "java/lang/Object";
+            do
+                c = c.getSuperclass();
+            while (!c.isAssignableFrom(d));
+            return Type.getInternalName(c);
+        }
+
+        // a generated class stands for its superclass, as no other class extends it
+        private Class<?> classOf(String type) {
+            Class<?> c = generated.get(type);
+            if (c != null)
+                return c;
+            try {
+                return Class.forName(type.replace('/', '.'), false, AsmJavaBuilder.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new TypeNotPresentException(type, e);
+            }
+        }
+    }
+}
@@ -38,14 +38,21 @@ public class JavaGen {
     public final JavaGen[] inners;
 
     public JavaGen(Prototype p, String classname, String filename, boolean genmain) {
-        this(new ProtoInfo(p, classname), classname, filename, genmain);
+        this(p, classname, filename, genmain, JavaBuilder.DEFAULT_BACKEND);
     }
 
-    private JavaGen(ProtoInfo pi, String classname, String filename, boolean genmain) {
+    /**
+     * @param backend the code generator to use, {@link JavaBuilder#BACKEND_ASM} or {@link JavaBuilder#BACKEND_BCEL}
+     */
+    public JavaGen(Prototype p, String classname, String filename, boolean genmain, int backend) {
+        this(new ProtoInfo(p, classname), classname, filename, genmain, backend);
+    }
+
+    private JavaGen(ProtoInfo pi, String classname, String filename, boolean genmain, int backend) {
         this.classname = classname;
 
         // build this class
-        JavaBuilder builder = new JavaBuilder(pi, classname, filename);
+        JavaBuilder builder = JavaBuilder.create(backend, pi, classname, filename);
         scanInstructions(pi, classname, builder);
         for (int i = 0; i < pi.prototype.locvars.length; ++i) {
             LocVars l = pi.prototype.locvars[i];
@@ -58,7 +65,7 @@ public class JavaGen {
             int n = pi.subprotos.length;
             inners = new JavaGen[n];
             for (int i = 0; i < n; i++)
-                inners[i] = new JavaGen(pi.subprotos[i], pi.subprotos[i].name, filename, false);
+                inners[i] = new JavaGen(pi.subprotos[i], pi.subprotos[i].name, filename, false, backend);
         } else {
             inners = null;
         }
@@ -72,6 +79,7 @@ public class JavaGen {
             BasicBlock b0 = pi.blocklist[bi];
 
             // convert upvalues that are phi-variables
+            builder.onStartOfLuaInstruction(b0.pc0);
             for (int slot = 0; slot < p.maxstacksize; slot++) {
                 int pc = b0.pc0;
                 boolean c = pi.isUpvalueCreate(pc, slot);
@@ -80,10 +88,12 @@ public class JavaGen {
             }
 
             for (int pc = b0.pc0; pc <= b0.pc1; pc++) {
+                if (pc > b0.pc0)
+                    builder.onStartOfLuaInstruction(pc);
 
                 final int pc0 = pc; // closure changes pc
                 final int ins = p.code[pc];
-                final int line = pc < p.lineinfo.length ? p.lineinfo[pc] : -1;
+                final int line = p.getline(pc);
                 final int o = Lua.GET_OPCODE(ins);
                 int a = Lua.GETARG_A(ins);
                 int b = Lua.GETARG_B(ins);
@@ -32,11 +32,18 @@ public class JavaLoader extends ClassLoader {
 
     private Map<String, byte[]> unloaded = new HashMap<String, byte[]>();
 
+    private final int backend;
+
     public JavaLoader() {
+        this(JavaBuilder.DEFAULT_BACKEND);
+    }
+
+    public JavaLoader(int backend) {
+        this.backend = backend;
     }
 
     public LuaFunction load(Prototype p, String classname, String filename, LuaValue env) {
-        JavaGen jg = new JavaGen(p, classname, filename, false);
+        JavaGen jg = new JavaGen(p, classname, filename, false, backend);
         return load(jg, env);
     }
 
@@ -47,7 +54,7 @@ public class JavaLoader extends ClassLoader {
 
     public LuaFunction load(String classname, LuaValue env) {
         try {
-            Class c = loadClass(classname);
+            Class<?> c = loadClass(classname);
             LuaFunction v = (LuaFunction) c.newInstance();
             v.initupvalue1(env);
             return v;
@@ -63,7 +70,7 @@ public class JavaLoader extends ClassLoader {
             include(jg.inners[i]);
     }
 
-    public Class findClass(String classname) throws ClassNotFoundException {
+    public Class<?> findClass(String classname) throws ClassNotFoundException {
         byte[] bytes = (byte[]) unloaded.get(classname);
         if (bytes != null)
             return defineClass(classname, bytes, 0, bytes.length);
@@ -49,8 +49,10 @@ import java.util.Hashtable;
  * chunk.call();
  * } </pre>
  * <p>
- * This requires the bcel library to be on the class path to work as expected.
- * If the library is not found, the default {@link LuaC} lua-to-lua-bytecode
+ * This requires the ASM or the bcel library to be on the class path to work as expected.
+ * ASM is used when it is found, see {@link JavaBuilder#DEFAULT_BACKEND};
+ * {@link #install(Globals, int)} chooses the code generator.
+ * If neither library is found, the default {@link LuaC} lua-to-lua-bytecode
  * compiler will be used.
  *
  * @see Globals#compiler
@@ -70,7 +72,26 @@ public class LuaJC implements Globals.Loader {
         G.loader = instance;
     }
 
-    protected LuaJC() {}
+    /**
+     * Install the compiler with a given code generator as the main Globals.Loader to use in a set of globals.
+     *
+     * @param backend {@link JavaBuilder#BACKEND_ASM} or {@link JavaBuilder#BACKEND_BCEL}
+     */
+    public static final void install(Globals G, int backend) {
+        G.loader = backend == instance.backend ? instance : new LuaJC(backend);
+    }
+
+    private final int backend;
+
+    protected LuaJC() {
+        this(JavaBuilder.DEFAULT_BACKEND);
+    }
+
+    protected LuaJC(int backend) {
+        if (backend != JavaBuilder.BACKEND_ASM && backend != JavaBuilder.BACKEND_BCEL)
+            throw new IllegalArgumentException("unknown backend " + backend);
+        this.backend = backend;
+    }
 
     public Hashtable compileAll(InputStream script, String chunkname, String filename, Globals globals, boolean genmain) throws IOException {
         final String classname = toStandardJavaClassName(chunkname);
@@ -87,7 +108,7 @@ public class LuaJC implements Globals.Loader {
     private Hashtable compileProtoAndSubProtos(Prototype p, String classname, String filename, boolean genmain) throws IOException {
         final String luaname = toStandardLuaFileName(filename);
         final Hashtable h = new Hashtable();
-        final JavaGen gen = new JavaGen(p, classname, luaname, genmain);
+        final JavaGen gen = new JavaGen(p, classname, luaname, genmain, backend);
         insert(h, gen);
         return h;
     }
@@ -101,7 +122,7 @@ public class LuaJC implements Globals.Loader {
     public LuaFunction load(Prototype p, String name, LuaValue globals) throws IOException {
         String luaname = toStandardLuaFileName(name);
         String classname = toStandardJavaClassName(luaname);
-        JavaLoader loader = new JavaLoader();
+        JavaLoader loader = new JavaLoader(backend);
         return loader.load(p, classname, luaname, globals);
     }
 
@@ -29,7 +29,7 @@ public class ProtoInfo {
 
     private ProtoInfo(Prototype p, String name, UpvalInfo[] u) {
         this.name = name;
-        this.prototype = p;
+        this.prototype = p.materializeDebug();
         this.upvals = u != null ? u : new UpvalInfo[] { new UpvalInfo(this) };
         this.subprotos = p.p != null && p.p.length > 0 ? new ProtoInfo[p.p.length] : null;
 
@@ -394,8 +394,7 @@ public class ProtoInfo {
     }
 
     private void substituteVariable(int slot, VarInfo vold, VarInfo vnew) {
-        for (int i = 0, n = prototype.code.length; i < n; i++)
-            replaceAll(vars[slot], vars[slot].length, vold, vnew);
+        replaceAll(vars[slot], vars[slot].length, vold, vnew);
     }
 
     private void replaceAll(VarInfo[] v, int n, VarInfo vold, VarInfo vnew) {
@@ -0,0 +1,97 @@
+package org.luaj.luajc;
+
+import org.luaj.vm2.*;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.JavaBuilder;
+import org.luaj.vm2.luajc.JavaGen;
+import org.luaj.vm2.luajc.JavaLoader;
+import org.luaj.vm2.luajc.LuaJC;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Compare the luajc code generators: the time to compile each perf script into loaded java classes,
+ * and the time the generated code takes to run it.
+ * <p>
+ * usage: java org.luaj.luajc.BenchLuaJC [script arg ...]
+ */
+public class BenchLuaJC {
+    // scripts in the perf directory with the argument to run them with
+    public static String[] scripts = {
+        "perf/binarytrees.lua", "12",
+        "perf/fannkuch.lua", "9",
+        "perf/nbody.lua", "100000",
+        "perf/nsieve.lua", "3",
+    };
+
+    static final int[] BACKENDS = { JavaBuilder.BACKEND_ASM, JavaBuilder.BACKEND_BCEL };
+    static final String[] NAMES = { "asm", "bcel" };
+    static final int COMPILES = 200;
+    static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0)
+            scripts = args;
+        System.out.println("script                  backend  compile(us)  class bytes  run(ms)");
+        for (int i = 0; i + 1 < scripts.length; i += 2) {
+            for (int b = 0; b < BACKENDS.length; b++) {
+                try {
+                    bench(scripts[i], scripts[i + 1], BACKENDS[b], NAMES[b]);
+                } catch (NoClassDefFoundError e) {
+                    System.out.println(String.format("%-24s%-9s not on the class path", scripts[i], NAMES[b]));
+                }
+            }
+        }
+    }
+
+    private static void bench(String script, String arg, int backend, String name) throws Exception {
+        Globals globals = JsePlatform.standardGlobals();
+        globals.STDOUT = new PrintStream(OutputStream.nullOutputStream());
+        Prototype p;
+        InputStream is = globals.finder.findResource(script);
+        try {
+            p = globals.loadPrototype(is, "bench", "t");
+        } finally {
+            is.close();
+        }
+
+        // compile and load the classes, after as many compiles again to warm up
+        int bytes = 0;
+        long compile = 0;
+        for (int n = 0; n < 2 * COMPILES; n++) {
+            long t0 = System.nanoTime();
+            JavaGen gen = new JavaGen(p, "bench", script, false, backend);
+            new JavaLoader(backend).load(gen, globals);
+            if (n >= COMPILES)
+                compile += System.nanoTime() - t0;
+            if (n == 0)
+                bytes = size(gen);
+        }
+
+        // run the best of a few
+        LuaJC.install(globals, backend);
+        LuaValue chunk = globals.loadfile(script).arg1();
+        if (chunk.isclosure())
+            throw new IllegalStateException(script + " was not compiled");
+        LuaTable argt = LuaValue.listOf(new LuaValue[] { LuaValue.valueOf(arg) });
+        globals.set("arg", argt);
+        long run = Long.MAX_VALUE;
+        for (int n = 0; n < RUNS; n++) {
+            long t0 = System.nanoTime();
+            chunk.invoke(argt.unpack());
+            run = Math.min(run, System.nanoTime() - t0);
+        }
+
+        System.out.println(String.format("%-24s%-9s%11.1f  %11d  %7.1f",
+            script, name, compile / 1e3 / COMPILES, bytes, run / 1e6));
+    }
+
+    private static int size(JavaGen gen) {
+        int n = gen.bytecode.length;
+        for (int i = 0, k = gen.inners != null ? gen.inners.length : 0; i < k; i++)
+            n += size(gen.inners[i]);
+        return n;
+    }
+}
@@ -0,0 +1,71 @@
+package org.luaj.vm2;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CallDepthTest {
+
+    private static final String DEPTH =
+        "local function depth(n) if n == 0 then return 0 end return 1 + depth(n - 1) end\n" +
+            "return depth(...)\n";
+
+    @Test
+    public void testDeepRecursion() {
+        Globals g = JsePlatform.standardGlobals();
+        assertEquals(150000, g.load(DEPTH).call(LuaValue.valueOf(150000)).toint());
+        assertTrue(g.metrics.getMaxCallDepth() > 150000);
+    }
+
+    @Test
+    public void testInfiniteRecursionIsAnError() {
+        Globals g = JsePlatform.standardGlobals();
+        Varargs r = g.load(
+            "local function f(n) return 1 + f(n + 1) end\n" +
+                "return pcall(f, 1)\n").invoke();
+        assertFalse(r.arg1().toboolean());
+        assertTrue(r.arg(2).tojstring().endsWith("stack overflow"), r.arg(2).tojstring());
+        // the thread is still usable afterwards
+        assertEquals(100, g.load(DEPTH).call(LuaValue.valueOf(100)).toint());
+    }
+
+    @Test
+    public void testDeepTracebackIsTruncated() {
+        Globals g = JsePlatform.debugGlobals();
+        Varargs r = g.load(
+            "local function f(n) return 1 + f(n + 1) end\n" +
+                "return pcall(f, 1)\n", "deep.lua").invoke();
+        String message = r.arg(2).tojstring();
+        assertTrue(message.length() < 2000, Integer.toString(message.length()));
+        assertTrue(message.contains("\n\t...\t(skipping "), message);
+        assertEquals(1 + 10 + 1 + 11 + 1, message.substring(message.indexOf("stack traceback:")).split("\n").length, message);
+
+        String shallow = g.load("local function f(n) if n == 0 then return debug.traceback() end return (f(n - 1)) end return f(15)", "shallow.lua").call().tojstring();
+        assertFalse(shallow.contains("skipping"), shallow);
+        assertEquals(1 + 15 + 1, shallow.split("\n").length, shallow);
+    }
+
+    @Test
+    public void testMaxCallDepthIsConfigurable() {
+        Globals g = JsePlatform.standardGlobals();
+        g.maxCallDepth = 1000;
+        assertEquals(900, g.load(DEPTH).call(LuaValue.valueOf(900)).toint());
+        LuaError e = assertThrows(LuaError.class, () -> g.load(DEPTH).call(LuaValue.valueOf(2000)));
+        assertTrue(e.getMessage().contains("stack overflow"), e.getMessage());
+    }
+
+    @Test
+    public void testDeepCoroutinesResume() {
+        for (boolean stackless : new boolean[] { false, true }) {
+            Globals g = JsePlatform.standardGlobals();
+            g.stackless = stackless;
+            Varargs r = g.load(
+                "local function deep(n) if n == 0 then return coroutine.yield('bottom') end return 1 + deep(n - 1) end\n" +
+                    "local co = coroutine.wrap(function() return deep(50000) end)\n" +
+                    "return co(), co(10)\n").invoke();
+            assertEquals("bottom", r.arg1().tojstring());
+            assertEquals(50010, r.arg(2).toint());
+        }
+    }
+}
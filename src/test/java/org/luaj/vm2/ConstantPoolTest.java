@@ -0,0 +1,88 @@
+package org.luaj.vm2;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConstantPoolTest {
+
+    private static final String SCRIPT =
+        "local greeting = 'hello from the constant pool'\n" +
+            "local function area(r) return 3.14159 * r * r end\n" +
+            "return greeting, area(2.5)\n";
+
+    private static Prototype compile(Globals g) throws Exception {
+        return g.compilePrototype(new StringReader(SCRIPT), "pooled.lua");
+    }
+
+    private static void assertSharedConstants(Prototype a, Prototype b) {
+        assertEquals(a.k.length, b.k.length);
+        for (int i = 0; i < a.k.length; i++)
+            if (a.k[i] instanceof LuaString || a.k[i] instanceof LuaDouble)
+                assertSame(a.k[i], b.k[i]);
+        assertSame(a.source, b.source);
+        assertEquals(a.p.length, b.p.length);
+        for (int i = 0; i < a.p.length; i++)
+            assertSharedConstants(a.p[i], b.p[i]);
+    }
+
+    @Test
+    public void testCompiledConstantsAreShared() throws Exception {
+        Prototype a = compile(JsePlatform.standardGlobals());
+        Prototype b = compile(JsePlatform.standardGlobals());
+        assertNotSame(a, b);
+        assertSharedConstants(a, b);
+    }
+
+    @Test
+    public void testUndumpedConstantsAreShared() throws Exception {
+        Globals g = JsePlatform.standardGlobals();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DumpState.dump(compile(g), baos, false);
+        byte[] chunk = baos.toByteArray();
+        Prototype a = g.loadPrototype(new ByteArrayInputStream(chunk), "pooled.lua", "b");
+        Prototype b = JsePlatform.standardGlobals().loadPrototype(new ByteArrayInputStream(chunk), "pooled.lua", "b");
+        assertSharedConstants(a, b);
+        assertSame(a.p[0].locvars[0].varname, b.p[0].locvars[0].varname);
+        assertSharedConstants(a, compile(g));
+    }
+
+    @Test
+    public void testOnlyStringsAndDoublesArePooled() {
+        LuaValue quarter = ConstantPool.intern(LuaValue.valueOf(0.5 - 0.25));
+        assertSame(quarter, ConstantPool.intern(LuaDouble.valueOf(0.25)));
+        assertSame(LuaDouble.NAN, ConstantPool.intern(LuaDouble.NAN));
+        assertSame(LuaValue.ONE, ConstantPool.intern(LuaValue.ONE));
+        assertNull(ConstantPool.intern((LuaString) null));
+    }
+
+    @Test
+    public void testSlicesArePooledAsCopies() {
+        byte[] chunk = ("header|a long string constant sliced out of a chunk " + System.nanoTime() + "|trailer").getBytes();
+        int len = chunk.length - "header|".length() - "|trailer".length();
+        LuaString slice = LuaString.valueUsing(chunk, "header|".length(), len);
+        LuaString pooled = ConstantPool.intern(slice);
+        assertTrue(pooled.raweq(slice));
+        assertNotSame(chunk, pooled.m_bytes);
+        assertEquals(len, pooled.m_bytes.length);
+        assertSame(pooled, ConstantPool.intern(LuaString.valueUsing(chunk.clone(), "header|".length(), len)));
+    }
+
+    @Test
+    public void testPoolDoesNotKeepConstantsAlive() {
+        LuaString s = LuaString.valueOf("an unreferenced constant " + System.nanoTime());
+        assertSame(s, ConstantPool.intern(s));
+        WeakReference<LuaString> ref = new WeakReference<>(s);
+        s = null;
+        for (int i = 0; i < 10 && ref.get() != null; ++i)
+            WeakTableTest.collectGarbage();
+        assertNull(ref.get());
+    }
+}
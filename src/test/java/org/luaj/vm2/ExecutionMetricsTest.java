@@ -0,0 +1,99 @@
+package org.luaj.vm2;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ExecutionMetricsTest {
+
+    private static final String WORK =
+        "local function depth(n) if n == 0 then return 0 end return 1 + depth(n - 1) end\n" +
+            "local t = {}\n" +
+            "for i = 1, 100000 do t[i] = tostring(i) end\n" +
+            "return depth(50)\n";
+
+    @Test
+    public void testMainThreadWorkIsCounted() {
+        Globals g = JsePlatform.standardGlobals();
+        ExecutionMetrics m = g.running.state.metrics;
+        g.metrics.setTimed(true);
+        assertEquals(50, g.load(WORK).call().toint());
+        assertTrue(m.getInstructions() > 100000, Long.toString(m.getInstructions()));
+        assertTrue(m.getMaxCallDepth() > 50);
+        assertTrue(m.getWallNanos() > 0);
+        assertEquals(m.getInstructions(), g.metrics.getInstructions());
+        assertEquals(m.getMaxCallDepth(), g.metrics.getMaxCallDepth());
+        assertEquals(m.getWallNanos(), g.metrics.getWallNanos());
+    }
+
+    @Test
+    public void testCoroutinesAreCountedSeparately() {
+        for (boolean stackless : new boolean[] { false, true }) {
+            Globals g = JsePlatform.standardGlobals();
+            g.stackless = stackless;
+            g.metrics.setTimed(true);
+            LuaThread co = (LuaThread) g.load(
+                "return coroutine.create(function()\n" +
+                    "  for i = 1, 3 do coroutine.yield(i) end\n" +
+                    "  local s = 0 for i = 1, 100000 do s = s + i end\n" +
+                    "  return s\n" +
+                    "end)\n").call();
+            for (int i = 0; i < 4; i++)
+                assertTrue(co.resume(LuaValue.NONE).arg1().toboolean());
+            ExecutionMetrics m = co.state.metrics;
+            assertEquals(4, m.getResumes());
+            assertEquals(3, m.getYields());
+            assertTrue(m.getInstructions() > 100000);
+            assertTrue(g.running.state.metrics.getInstructions() < 100);
+            assertEquals(4, g.metrics.getResumes());
+            assertTrue(g.metrics.getInstructions() >= m.getInstructions());
+            assertTrue(g.metrics.getWallNanos() >= m.getWallNanos());
+        }
+    }
+
+    @Test
+    public void testTimesAreOptIn() {
+        Globals g = JsePlatform.standardGlobals();
+        ExecutionMetrics m = g.running.state.metrics;
+        g.load(WORK).call();
+        assertTrue(m.getInstructions() > 100000);
+        assertEquals(0, g.metrics.getWallNanos());
+        assertEquals(0, m.getAllocatedBytes());
+        assertFalse(m.isTimed());
+        assertThrows(IllegalStateException.class, () -> m.setTimed(true));
+
+        g.metrics.setTimed(true);
+        assertTrue(m.isTimed());
+        g.load(WORK).call();
+        assertTrue(g.metrics.getWallNanos() > 0);
+        g.metrics.setTimed(false);
+        final long wall = g.metrics.getWallNanos();
+        g.load(WORK).call();
+        assertEquals(wall, g.metrics.getWallNanos());
+    }
+
+    @Test
+    public void testRegisteredAsMBean() throws Exception {
+        Globals g = JsePlatform.standardGlobals();
+        g.load(WORK).call();
+        ObjectName name = g.metrics.register("metrics test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals("Globals", name.getKeyProperty("type"));
+            assertEquals(g.metrics.getInstructions(), server.getAttribute(name, "Instructions"));
+            assertEquals(g.metrics.getMaxCallDepth(), server.getAttribute(name, "MaxCallDepth"));
+            server.setAttribute(name, new Attribute("Timed", true));
+            assertTrue(g.metrics.isTimed());
+            assertThrows(IllegalStateException.class, () -> g.metrics.register("again"));
+        } finally {
+            g.metrics.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,104 @@
+package org.luaj.vm2;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FrozenTableTest {
+
+    private static LuaTable sample() {
+        LuaTable t = new LuaTable();
+        for (int i = 1; i <= 10; ++i)
+            t.set(i, LuaValue.valueOf("v" + i));
+        t.set(20, LuaValue.valueOf(20));
+        t.set("name", LuaValue.valueOf("config"));
+        t.set(LuaValue.valueOf(1.5), LuaValue.TRUE);
+        LuaTable sub = new LuaTable();
+        sub.set("x", LuaValue.valueOf(1));
+        t.set("sub", sub);
+        t.set("self", t);
+        return t;
+    }
+
+    @Test
+    public void testContentsPreserved() {
+        LuaTable src = sample();
+        FrozenTable f = FrozenTable.freeze(src);
+        for (int i = 1; i <= 10; ++i)
+            assertEquals("v" + i, f.get(i).tojstring());
+        assertEquals(20, f.get(20).toint());
+        assertEquals("config", f.get("name").tojstring());
+        assertEquals(LuaValue.TRUE, f.get(LuaValue.valueOf(1.5)));
+        assertEquals(LuaValue.NIL, f.get("missing"));
+        assertEquals(LuaValue.NIL, f.get(11));
+        assertEquals(10, f.length());
+        assertEquals(src.keyCount(), f.keyCount());
+    }
+
+    @Test
+    public void testDeepAndCyclic() {
+        FrozenTable f = FrozenTable.freeze(sample());
+        assertTrue(f.get("sub") instanceof FrozenTable);
+        assertEquals(1, f.get("sub").get("x").toint());
+        assertSame(f, f.get("self"));
+        assertSame(f, FrozenTable.freeze(f));
+    }
+
+    @Test
+    public void testWritesFail() {
+        FrozenTable f = FrozenTable.freeze(sample());
+        assertThrows(LuaError.class, () -> f.set("name", LuaValue.NIL));
+        assertThrows(LuaError.class, () -> f.set(11, LuaValue.TRUE));
+        assertThrows(LuaError.class, () -> f.rawset(1, LuaValue.TRUE));
+        assertThrows(LuaError.class, () -> f.get("sub").set("y", LuaValue.TRUE));
+        assertThrows(LuaError.class, () -> f.setmetatable(LuaValue.tableOf()));
+        assertEquals("config", f.get("name").tojstring());
+    }
+
+    @Test
+    public void testMetatableFrozen() {
+        LuaTable mt = new LuaTable();
+        mt.set(LuaValue.INDEX, LuaValue.tableOf(new LuaValue[] { LuaValue.valueOf("fallback"), LuaValue.valueOf(42) }));
+        LuaTable t = new LuaTable();
+        t.setmetatable(mt);
+        FrozenTable f = FrozenTable.freeze(t);
+        assertTrue(f.getmetatable() instanceof FrozenTable);
+        assertEquals(42, f.get("fallback").toint());
+    }
+
+    @Test
+    public void testNextVisitsAllKeys() {
+        FrozenTable f = FrozenTable.freeze(sample());
+        int n = 0;
+        for (Varargs kv = f.next(LuaValue.NIL); !kv.arg1().isnil(); kv = f.next(kv.arg1())) {
+            assertEquals(kv.arg(2), f.get(kv.arg1()));
+            ++n;
+        }
+        assertEquals(15, n);
+    }
+
+    @Test
+    public void testSharedAcrossGlobals() {
+        FrozenTable f = FrozenTable.freeze(sample());
+        for (int i = 0; i < 2; ++i) {
+            Globals g = JsePlatform.standardGlobals();
+            g.set("config", f);
+            assertEquals("config10", g.load("return config.name .. #config").call().tojstring());
+            assertFalse(g.load("return pcall(function() config.name = 'x' end)").call().toboolean());
+        }
+    }
+
+    @Test
+    public void testTableFreeze() {
+        Globals g = JsePlatform.standardGlobals();
+        Varargs r = g.load(
+            "local t = table.freeze({1, 2, 3, a = {b = 'c'}})\n" +
+                "local ok, err = pcall(function() t.a.b = 'd' end)\n" +
+                "return #t, t.a.b, ok, err").invoke();
+        assertEquals(3, r.arg(1).toint());
+        assertEquals("c", r.arg(2).tojstring());
+        assertFalse(r.arg(3).toboolean());
+        assertTrue(r.arg(4).tojstring().contains("frozen table"));
+    }
+}
@@ -0,0 +1,136 @@
+package org.luaj.vm2;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoadStateTest {
+
+    private static final String LONG_STRING = "a string constant long enough to be shared with the chunk";
+
+    private static final String SCRIPT =
+        "local t = {}\n" +
+            "for i = 1, 10 do t[i] = i * 1.5 end\n" +
+            "return '" + LONG_STRING + "', t[10]\n";
+
+    private static final String LIBRARY =
+        "local lib = {}\n" +
+            "function lib.used(x) return x * 2 end\n" +
+            "function lib.unused(x) return x + 1 end\n" +
+            "function lib.fail(x)\n" +
+            "  local y = x\n" +
+            "  error('failed')\n" +
+            "end\n" +
+            "return lib\n";
+
+    private final Globals globals = JsePlatform.standardGlobals();
+
+    private byte[] dump(boolean littleEndian) throws Exception {
+        Prototype p = globals.compilePrototype(new StringReader(SCRIPT), "buffer.lua");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DumpState.dump(p, baos, false, DumpState.NUMBER_FORMAT_FLOATS_OR_DOUBLES, littleEndian);
+        return baos.toByteArray();
+    }
+
+    private void assertRuns(Prototype p) {
+        Varargs r = new LuaClosure(p, globals).invoke();
+        assertEquals(LONG_STRING, r.arg1().tojstring());
+        assertEquals(15.0, r.arg(2).todouble());
+    }
+
+    @Test
+    public void testUndumpBothByteOrders() throws Exception {
+        for (boolean littleEndian : new boolean[] { true, false }) {
+            ByteBuffer chunk = ByteBuffer.wrap(dump(littleEndian));
+            assertRuns(LoadState.undump(chunk, "buffer.lua"));
+            assertEquals(0, chunk.position());
+        }
+    }
+
+    @Test
+    public void testUndumpDirectBuffer() throws Exception {
+        byte[] bytes = dump(true);
+        ByteBuffer chunk = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        assertRuns(LoadState.undump(chunk, "buffer.lua"));
+    }
+
+    @Test
+    public void testLongStringsDoNotKeepChunkAlive() throws Exception {
+        // a constant the pool has not seen, so the first load adds it
+        String unique = "a long constant that nothing else has loaded " + System.nanoTime();
+        Prototype p = globals.compilePrototype(new StringReader("return 'x'"), "unique.lua");
+        p.k = new LuaValue[] { LuaString.valueOf(unique) };
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DumpState.dump(p, baos, false);
+        byte[] bytes = baos.toByteArray();
+        LuaValue k = LoadState.undump(ByteBuffer.wrap(bytes), "unique.lua").k[0];
+        assertEquals(unique, k.tojstring());
+        assertNotSame(bytes, k.checkstring().m_bytes);
+        assertSame(k, LoadState.undump(ByteBuffer.wrap(bytes.clone()), "unique.lua").k[0]);
+    }
+
+    @Test
+    public void testTruncatedChunk() throws Exception {
+        byte[] bytes = dump(true);
+        ByteBuffer chunk = ByteBuffer.wrap(bytes, 0, bytes.length / 2).slice();
+        assertThrows(EOFException.class, () -> LoadState.undump(chunk, "buffer.lua"));
+        assertNull(LoadState.undump(ByteBuffer.wrap("return 1".getBytes()), "text.lua"));
+    }
+
+    private ByteBuffer dumpLibrary() throws Exception {
+        Prototype p = globals.compilePrototype(new StringReader(LIBRARY), "lib.lua");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DumpState.dump(p, baos, false);
+        return ByteBuffer.wrap(baos.toByteArray());
+    }
+
+    @Test
+    public void testLazyUndumpDefersNestedFunctions() throws Exception {
+        Prototype p = LoadState.undump(dumpLibrary(), "lib.lua", true);
+        assertNotNull(p.code);
+        assertNull(p.lineinfo);
+        assertEquals(3, p.p.length);
+        for (Prototype q : p.p)
+            assertNull(q.code);
+
+        LuaValue lib = new LuaClosure(p, globals).call();
+        assertNull(p.p[0].code);
+        assertEquals(42, lib.get("used").call(LuaValue.valueOf(21)).toint());
+        assertNotNull(p.p[0].code);
+        assertNull(p.p[0].lineinfo);
+        assertNull(p.p[1].code);
+        assertEquals(3, p.p[1].linedefined);
+        assertEquals("lib.lua", p.p[1].shortsource());
+    }
+
+    @Test
+    public void testLazyUndumpDecodesDebugInfoOnDemand() throws Exception {
+        Prototype p = LoadState.undump(dumpLibrary(), "lib.lua", true);
+        LuaValue lib = new LuaClosure(p, globals).call();
+        LuaError e = assertThrows(LuaError.class, () -> lib.get("fail").call(LuaValue.ONE));
+        assertTrue(e.getMessage().contains("lib.lua:6"), e.getMessage());
+        Prototype fail = p.p[2];
+        assertNotNull(fail.lineinfo);
+        assertEquals("y", fail.getlocalname(2, fail.code.length - 1).tojstring());
+    }
+
+    @Test
+    public void testLazyUndumpDumpsIdentically() throws Exception {
+        ByteBuffer chunk = dumpLibrary();
+        Prototype p = LoadState.undump(chunk, "lib.lua", true);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DumpState.dump(p, baos, false);
+        assertEquals(chunk, ByteBuffer.wrap(baos.toByteArray()));
+
+        byte[] bytes = baos.toByteArray();
+        ByteBuffer truncated = ByteBuffer.wrap(bytes, 0, bytes.length - 4).slice();
+        assertThrows(EOFException.class, () -> LoadState.undump(truncated, "lib.lua", true));
+    }
+}
@@ -0,0 +1,56 @@
+package org.luaj.vm2;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.JavaBuilder;
+import org.luaj.vm2.luajc.LuaJC;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LuaJCTest {
+
+    // locals that hold closures of different superclasses, tables and upvalues across branches
+    private static final String SCRIPT =
+        "local n = ...\n" +
+            "local f, t\n" +
+            "if n > 2 then f = function(a) return a * 2 end else f = { n } end\n" +
+            "if n > 3 then t = function(a, b, ...) return select('#', ...) end else t = f end\n" +
+            "local count = 0\n" +
+            "local function bump() count = count + 1 return count end\n" +
+            "for i = 1, n do if i % 2 == 0 then bump() end end\n" +
+            "local s = 'x' .. n .. 'y' .. 1.5 .. '\\255'\n" +
+            "return type(f) == 'function' and f(n) or f[1], type(t) == 'function' and t(1, 2, 3, 4) or -1, count, #s\n";
+
+    @Test
+    public void testAsmBackendRunsLikeTheInterpreter() {
+        for (int n = 1; n <= 5; n++) {
+            Globals interpreted = JsePlatform.standardGlobals();
+            Globals compiled = JsePlatform.standardGlobals();
+            LuaJC.install(compiled, JavaBuilder.BACKEND_ASM);
+            LuaValue chunk = compiled.load(SCRIPT, "script");
+            assertFalse(chunk.isclosure());
+            Varargs expected = interpreted.load(SCRIPT, "script").invoke(LuaValue.valueOf(n));
+            Varargs actual = chunk.invoke(LuaValue.valueOf(n));
+            assertEquals(expected.narg(), actual.narg());
+            for (int i = 1; i <= expected.narg(); i++)
+                assertEquals(expected.arg(i), actual.arg(i), "n=" + n + " result " + i);
+        }
+    }
+
+    @Test
+    public void testAsmBackendTargetsModernClassFiles() throws Exception {
+        Globals g = JsePlatform.standardGlobals();
+        LuaJC.install(g, JavaBuilder.BACKEND_ASM);
+        Map<?, ?> classes = ((LuaJC) g.loader).compileAll(new ByteArrayInputStream(SCRIPT.getBytes()), "script", "script.lua", g, true);
+        assertTrue(classes.size() > 1);
+        for (Object bytes : classes.values()) {
+            byte[] b = (byte[]) bytes;
+            assertEquals(0xCAFEBABE, ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff));
+            assertEquals(61, ((b[6] & 0xff) << 8) | (b[7] & 0xff));
+        }
+        assertThrows(IllegalArgumentException.class, () -> LuaJC.install(g, 0));
+    }
+}
@@ -0,0 +1,235 @@
+package org.luaj.vm2;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.lib.AsyncFunction;
+import org.luaj.vm2.lib.ZeroArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LuaThreadTest {
+
+    private static final String GENERATOR =
+        "local gen = coroutine.wrap(function(n)\n" +
+            "  for i = 1, n do coroutine.yield(i) end\n" +
+            "  return 'done'\n" +
+            "end)\n" +
+            "local sum = gen(4)\n" +
+            "for i = 2, 4 do sum = sum + gen() end\n" +
+            "return sum, gen()\n";
+
+    private static void assertGenerates(Globals g) {
+        Varargs r = g.load(GENERATOR, "gen.lua").invoke();
+        assertEquals(10, r.arg1().toint());
+        assertEquals("done", r.arg(2).tojstring());
+    }
+
+    @Test
+    public void testDefaultCarrier() {
+        Globals g = JsePlatform.standardGlobals();
+        assertSame(LuaThread.DEFAULT_CARRIER, g.carrier);
+        assertSame(LuaThread.VIRTUAL_CARRIER != null ? LuaThread.VIRTUAL_CARRIER : LuaThread.POOLED_CARRIER, g.carrier);
+        assertGenerates(g);
+    }
+
+    @Test
+    public void testPlatformCarrier() {
+        Globals g = JsePlatform.standardGlobals();
+        g.carrier = LuaThread.PLATFORM_CARRIER;
+        assertGenerates(g);
+    }
+
+    @Test
+    public void testCustomCarrier() {
+        final AtomicInteger started = new AtomicInteger();
+        final Executor counting = r -> {
+            started.incrementAndGet();
+            LuaThread.PLATFORM_CARRIER.execute(r);
+        };
+        Globals g = JsePlatform.standardGlobals();
+        g.carrier = counting;
+        assertGenerates(g);
+        assertEquals(1, started.get());
+    }
+
+    @Test
+    public void testResumeFromAnotherJavaThread() throws Exception {
+        Globals g = JsePlatform.standardGlobals();
+        LuaThread co = (LuaThread) g.load(
+            "return coroutine.create(function(a) local b = coroutine.yield(a + 1) return b * 2 end)").call();
+        assertEquals(2, co.resume(LuaValue.ONE).arg(2).toint());
+        final Varargs[] result = new Varargs[1];
+        Thread t = new Thread(() -> result[0] = co.resume(LuaValue.valueOf(21)));
+        t.start();
+        t.join();
+        assertTrue(result[0].arg1().toboolean());
+        assertEquals(42, result[0].arg(2).toint());
+        assertEquals("dead", co.getStatus());
+    }
+
+    private static Globals stacklessGlobals(AtomicInteger started) {
+        Globals g = JsePlatform.standardGlobals();
+        g.stackless = true;
+        g.carrier = r -> {
+            started.incrementAndGet();
+            LuaThread.PLATFORM_CARRIER.execute(r);
+        };
+        return g;
+    }
+
+    @Test
+    public void testStacklessUsesNoCarrier() {
+        final AtomicInteger started = new AtomicInteger();
+        Globals g = stacklessGlobals(started);
+        assertGenerates(g);
+        Varargs r = g.load(
+            "local function deep(n) if n == 0 then return coroutine.yield('bottom') end return deep(n - 1) + 1 end\n" +
+                "local co = coroutine.wrap(function()\n" +
+                "  local ok, e = pcall(function() local x = coroutine.yield(deep(3)) error(x, 0) end)\n" +
+                "  return e\n" +
+                "end)\n" +
+                "return co(), co(10), co('err')\n", "deep.lua").invoke();
+        assertEquals("bottom", r.arg1().tojstring());
+        assertEquals(13, r.arg(2).toint());
+        assertEquals("err", r.arg(3).tojstring());
+        assertEquals(0, started.get());
+    }
+
+    @Test
+    public void testStacklessYieldAcrossJavaCall() {
+        Globals g = stacklessGlobals(new AtomicInteger());
+        Varargs r = g.load(
+            "local co = coroutine.create(function() table.sort({3, 2, 1}, function(a, b) coroutine.yield() return a < b end) end)\n" +
+                "return coroutine.resume(co)\n", "sort.lua").invoke();
+        assertFalse(r.arg1().toboolean());
+        assertTrue(r.arg(2).tojstring().contains("attempt to yield across a C-call boundary"), r.arg(2).tojstring());
+    }
+
+    @Test
+    public void testStacklessJavaBodyUsesCarrier() {
+        final AtomicInteger started = new AtomicInteger();
+        Globals g = stacklessGlobals(started);
+        Varargs r = g.load("local co = coroutine.wrap(coroutine.yield)\nlocal a, b = co(1, 2)\nco()\nreturn a, b\n", "java.lua").invoke();
+        assertEquals(2, r.narg());
+        assertEquals(1, started.get());
+    }
+
+    @Test
+    public void testPooledCarrierReusesThreads() {
+        Globals g = JsePlatform.standardGlobals();
+        g.carrier = new LuaThread.CarrierPool(2, 1, TimeUnit.MINUTES);
+        g.set("carrier", new ZeroArgFunction() {
+            public LuaValue call() {
+                return valueOf(Thread.currentThread().getName());
+            }
+        });
+        assertGenerates(g);
+        Varargs r = g.load(
+            "local names = {}\n" +
+                "for i = 1, 20 do\n" +
+                "  local co = coroutine.wrap(function() coroutine.yield() return carrier() end)\n" +
+                "  co()\n" +
+                "  names[co()] = true\n" +
+                "end\n" +
+                "local n = 0\n" +
+                "for _ in pairs(names) do n = n + 1 end\n" +
+                "return n\n", "names.lua").invoke();
+        // a thread goes back to the pool just after its coroutine hands back control, so allow a few
+        assertTrue(r.arg1().toint() <= 3, r.arg1().tojstring());
+    }
+
+    @Test
+    public void testOrphanReleasesCarrierWithoutPolling() throws Exception {
+        final LuaThread.CarrierPool pool = new LuaThread.CarrierPool(2, 1, TimeUnit.MINUTES);
+        Globals g = JsePlatform.standardGlobals();
+        g.carrier = pool;
+        LuaThread co = (LuaThread) g.load("return coroutine.create(function() coroutine.yield() end)").call();
+        assertTrue(co.resume(LuaValue.NONE).arg1().toboolean());
+        assertEquals(0, pool.idleCount());
+        co = null;
+        for (int i = 0; i < 200 && pool.idleCount() == 0; i++) {
+            Runtime.getRuntime().gc();
+            Thread.sleep(5);
+        }
+        assertEquals(1, pool.idleCount());
+    }
+
+    @Test
+    public void testErrorValuesAreKept() {
+        for (boolean stackless : new boolean[] { false, true }) {
+            Globals g = JsePlatform.standardGlobals();
+            g.stackless = stackless;
+            Varargs r = g.load(
+                "local ok, e = coroutine.resume(coroutine.create(function() error({code = 7}) end))\n" +
+                    "local ok2, e2 = pcall(coroutine.wrap(function() coroutine.yield() error({code = 8}) end))\n" +
+                    "local ok3, e3 = pcall(coroutine.wrap(function() error('text', 0) end))\n" +
+                    "return e.code, ok2, e3\n", "errors.lua").invoke();
+            assertEquals(7, r.arg1().toint());
+            assertTrue(r.arg(2).toboolean());
+            assertTrue(r.arg(3).tojstring().endsWith("text"), r.arg(3).tojstring());
+            Varargs w = g.load(
+                "local co = coroutine.wrap(function() coroutine.yield() error({code = 8}) end)\n" +
+                    "co()\n" +
+                    "local ok, e = pcall(co)\n" +
+                    "return ok, e.code\n", "wrap.lua").invoke();
+            assertFalse(w.arg1().toboolean());
+            assertEquals(8, w.arg(2).toint());
+        }
+    }
+
+    @Test
+    public void testConcurrentResumesOfEndingCoroutine() throws Exception {
+        Globals g = JsePlatform.standardGlobals();
+        LuaThread co = (LuaThread) g.load("return coroutine.create(function() coroutine.yield() end)").call();
+        co.resume(LuaValue.NONE);
+        final Varargs[] results = new Varargs[2];
+        final Thread[] threads = new Thread[2];
+        for (int i = 0; i < 2; i++) {
+            final int n = i;
+            threads[i] = new Thread(() -> results[n] = co.resume(LuaValue.NONE));
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join(10000);
+            assertFalse(t.isAlive());
+        }
+        assertTrue(results[0].arg1().toboolean() != results[1].arg1().toboolean());
+        final Varargs failed = results[0].arg1().toboolean() ? results[1] : results[0];
+        // the losing resume sees the coroutine either still running or already dead
+        assertTrue(failed.arg(2).tojstring().matches("cannot resume (dead|non-suspended) coroutine"), failed.arg(2).tojstring());
+    }
+
+    @Test
+    public void testAsyncFunctionCompletesTheCall() {
+        for (boolean stackless : new boolean[] { false, true }) {
+            Globals g = JsePlatform.standardGlobals();
+            g.stackless = stackless;
+            g.set("later", new AsyncFunction() {
+                public CompletableFuture<Varargs> invokeAsync(Varargs args) {
+                    final LuaValue v = args.arg1();
+                    return CompletableFuture.supplyAsync(() -> {
+                        if (v.isnil())
+                            throw new LuaError("no value", 0);
+                        return varargsOf(v, v);
+                    }, CompletableFuture.delayedExecutor(10, TimeUnit.MILLISECONDS));
+                }
+            });
+            Varargs r = g.load(
+                "local co = coroutine.wrap(function(x)\n" +
+                    "  local a, b = later(x)\n" +
+                    "  local ok, e = pcall(later)\n" +
+                    "  coroutine.yield(a + b)\n" +
+                    "  return e\n" +
+                    "end)\n" +
+                    "return co(4), co(), later('main')\n", "async.lua").invoke();
+            assertEquals(8, r.arg1().toint());
+            assertEquals("no value", r.arg(2).tojstring());
+            assertEquals("main", r.arg(3).tojstring());
+        }
+    }
+}
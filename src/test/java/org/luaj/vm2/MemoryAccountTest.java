@@ -0,0 +1,99 @@
+package org.luaj.vm2;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MemoryAccountTest {
+
+    private static final String FILL =
+        "local t = {}\n" +
+            "for i = 1, 100000 do t[i] = i end\n" +
+            "return t\n";
+
+    @Test
+    public void testTableGrowthIsCharged() {
+        Globals g = JsePlatform.standardGlobals();
+        MemoryAccount account = MemoryAccount.install(g, 0);
+        long before = account.used();
+        LuaValue t = g.load(FILL).call();
+        assertTrue(account.used() - before >= 100000L * MemoryAccount.ARRAY_SLOT_BYTES);
+        assertEquals(100000, t.length());
+    }
+
+    @Test
+    public void testAccountsAreSeparate() {
+        Globals a = JsePlatform.standardGlobals();
+        Globals b = JsePlatform.standardGlobals();
+        MemoryAccount accountA = MemoryAccount.install(a, 0);
+        MemoryAccount accountB = MemoryAccount.install(b, 0);
+        LuaValue t = a.load(FILL).call();
+        assertTrue(accountA.used() > 10 * accountB.used());
+        assertNotNull(t);
+    }
+
+    @Test
+    public void testCollectGarbageCountReportsVmUsage() {
+        Globals g = JsePlatform.standardGlobals();
+        MemoryAccount.install(g, 0);
+        Varargs r = g.load(
+            "local before = collectgarbage('count')\n" +
+                "local t = {}\n" +
+                "for i = 1, 100000 do t[i] = i end\n" +
+                "return before, collectgarbage('count'), #t").invoke();
+        assertTrue(r.arg(2).todouble() - r.arg(1).todouble() >= 100000 * MemoryAccount.ARRAY_SLOT_BYTES / 1024.);
+        assertEquals(100000, r.arg(3).toint());
+    }
+
+    @Test
+    public void testQuotaExceeded() {
+        Globals g = JsePlatform.standardGlobals();
+        MemoryAccount.install(g, 256 * 1024);
+        Varargs r = g.load(
+            "return pcall(function()\n" +
+                "  local t = {}\n" +
+                "  for i = 1, 1000000 do t[i] = i end\n" +
+                "end)").invoke();
+        assertFalse(r.arg1().toboolean());
+        assertTrue(r.arg(2).tojstring().contains("not enough memory"));
+    }
+
+    @Test
+    public void testChargeOverLimitIsNotKept() {
+        MemoryAccount account = new MemoryAccount(100);
+        MemoryAccount previous = MemoryAccount.enter(account);
+        try {
+            Object owner = new Object();
+            assertThrows(LuaError.class, () -> MemoryAccount.resize(null, owner, 1000));
+            assertEquals(0, account.used());
+            assertNotNull(MemoryAccount.resize(null, owner, 50));
+            assertEquals(50, account.used());
+        } finally {
+            MemoryAccount.exit(previous);
+        }
+    }
+
+    @Test
+    public void testLongStringsAreCharged() {
+        Globals g = JsePlatform.standardGlobals();
+        MemoryAccount account = MemoryAccount.install(g, 0);
+        long before = account.used();
+        LuaValue s = g.load("local s = string.rep('x', 100000) return s").call();
+        assertTrue(account.used() - before >= 100000);
+        assertEquals(100000, s.length());
+    }
+
+    @Test
+    public void testCollectedMemoryIsCredited() {
+        Globals g = JsePlatform.standardGlobals();
+        MemoryAccount account = MemoryAccount.install(g, 0);
+        long before = account.used();
+        g.load(FILL).call();
+        long peak = account.used();
+        for (int i = 0; i < 10 && account.used() > before + (peak - before) / 2; ++i)
+            WeakTableTest.collectGarbage();
+        assertTrue(account.used() < before + (peak - before) / 2);
+        assertTrue(account.peak() >= peak);
+    }
+}
@@ -0,0 +1,157 @@
+package org.luaj.vm2;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.lib.AsyncFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SchedulerTest {
+
+    private final Scheduler scheduler = new Scheduler(2, 1000);
+
+    @AfterEach
+    public void tearDown() {
+        scheduler.close();
+    }
+
+    private static Varargs await(Scheduler.Task task) throws Exception {
+        return task.result().get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testManyMachinesOnFewWorkers() throws Exception {
+        final List<Scheduler.Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Scheduler.Machine vm = scheduler.add(JsePlatform.standardGlobals(), 1, true);
+            LuaValue f = vm.globals.load("local n = ... local s = 0 for i = 1, n do s = s + i end return s");
+            tasks.add(vm.submit(f, LuaValue.valueOf(i * 100)));
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            final long n = i * 100L;
+            assertEquals(n * (n + 1) / 2, await(tasks.get(i)).arg1().tolong());
+        }
+    }
+
+    @Test
+    public void testBusyMachineIsPreempted() throws Exception {
+        try (Scheduler single = new Scheduler(1, 1000)) {
+            Scheduler.Machine busy = single.add(JsePlatform.standardGlobals(), 1, true);
+            busy.submit(busy.globals.load("local function spin() end while true do spin() end"), LuaValue.NONE);
+            Scheduler.Machine quick = single.add(JsePlatform.standardGlobals(), 1, true);
+            Scheduler.Task task = quick.submit(quick.globals.load("local t = {} for i = 1, 5000 do t[i] = i end return #t"), LuaValue.NONE);
+            assertEquals(5000, await(task).arg1().toint());
+            assertTrue(busy.preemptions() > 0);
+            assertTrue(quick.slices() > 1);
+            assertTrue(busy.cpuNanos() > 0);
+        }
+    }
+
+    @Test
+    public void testPreemptedFramesContinue() throws Exception {
+        Scheduler.Machine vm = scheduler.add(JsePlatform.standardGlobals(), 1, true);
+        LuaValue f = vm.globals.load(
+            "local function fib(n) if n < 2 then return n end return fib(n - 1) + fib(n - 2) end\n" +
+                "local ok, v = pcall(function() local t = {} for k, x in ipairs({20, 1}) do t[k] = fib(x) end return t[1] + t[2] end)\n" +
+                "return v\n");
+        assertEquals(6766, await(vm.submit(f, LuaValue.NONE)).arg1().toint());
+        assertTrue(vm.preemptions() > 0);
+    }
+
+    @Test
+    public void testYieldWaitsForResume() throws Exception {
+        Scheduler.Machine vm = scheduler.add(JsePlatform.standardGlobals(), 2, true);
+        LuaValue f = vm.globals.load(
+            "local sum = 0\n" +
+                "while true do\n" +
+                "  local v = coroutine.yield('ready')\n" +
+                "  if v == nil then return sum end\n" +
+                "  sum = sum + v\n" +
+                "end\n");
+        Scheduler.Task task = vm.submit(f, LuaValue.NONE);
+        task.resume(LuaValue.valueOf(1));
+        task.resume(LuaValue.valueOf(2));
+        task.resume(LuaValue.valueOf(3));
+        task.resume(LuaValue.NIL);
+        assertEquals(6, await(task).arg1().toint());
+        assertThrows(IllegalStateException.class, () -> task.resume(LuaValue.NONE));
+    }
+
+    @Test
+    public void testAsyncCallsReleaseTheWorker() throws Exception {
+        final List<CompletableFuture<Varargs>> pending = new ArrayList<>();
+        final AsyncFunction read = new AsyncFunction() {
+            public CompletableFuture<Varargs> invokeAsync(Varargs args) {
+                final CompletableFuture<Varargs> f = new CompletableFuture<>();
+                synchronized (pending) {
+                    pending.add(f);
+                }
+                return f;
+            }
+        };
+        final List<Scheduler.Task> tasks = new ArrayList<>();
+        try (Scheduler single = new Scheduler(1, 1000)) {
+            for (int i = 0; i < 1000; i++) {
+                Scheduler.Machine vm = single.add(JsePlatform.standardGlobals(), 1, true);
+                vm.globals.set("read", read);
+                LuaValue f = vm.globals.load("local ok, e = pcall(read) return read() + (ok and 0 or #e)");
+                tasks.add(vm.submit(f, LuaValue.NONE));
+            }
+            // every task waits on the single worker at once, and fails or succeeds when its call completes
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < 200; i++) {
+                    synchronized (pending) {
+                        if (pending.size() == 1000)
+                            break;
+                    }
+                    Thread.sleep(50);
+                }
+                final List<CompletableFuture<Varargs>> batch;
+                synchronized (pending) {
+                    assertEquals(1000, pending.size());
+                    batch = new ArrayList<>(pending);
+                    pending.clear();
+                }
+                for (CompletableFuture<Varargs> f : batch) {
+                    if (round == 0)
+                        f.completeExceptionally(new LuaError("four", 0));
+                    else
+                        f.complete(LuaValue.valueOf(10));
+                }
+            }
+            for (Scheduler.Task t : tasks)
+                assertEquals(14, await(t).arg1().toint());
+        }
+    }
+
+    @Test
+    public void testStackfulMachineYieldsFromMetamethods() throws Exception {
+        final String script = "local t = setmetatable({}, {__index = function(_, k) return coroutine.yield(k) end}) return t.x";
+        Scheduler.Machine stackless = scheduler.add(JsePlatform.standardGlobals(), 1, true);
+        assertTrue(stackless.globals.stackless);
+        Exception e = assertThrows(Exception.class, () -> await(stackless.submit(stackless.globals.load(script), LuaValue.NONE)));
+        assertTrue(e.getCause().getMessage().contains("attempt to yield across a C-call boundary"));
+
+        Scheduler.Machine vm = scheduler.add(JsePlatform.standardGlobals(), 1, false);
+        assertFalse(vm.globals.stackless);
+        Scheduler.Task task = vm.submit(vm.globals.load(script), LuaValue.NONE);
+        task.resume(LuaValue.valueOf(7));
+        assertEquals(7, await(task).arg1().toint());
+        assertEquals("x", task.yielded().tojstring());
+    }
+
+    @Test
+    public void testErrorCompletesExceptionally() {
+        Scheduler.Machine vm = scheduler.add(JsePlatform.standardGlobals(), 1, true);
+        CompletableFuture<Varargs> r = vm.submit(vm.globals.load("error({code = 3})"), LuaValue.NONE).result();
+        Exception e = assertThrows(Exception.class, () -> r.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof LuaError);
+        assertEquals(3, ((LuaError) e.getCause()).getMessageObject().get("code").toint());
+    }
+}
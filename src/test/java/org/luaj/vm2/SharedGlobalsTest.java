@@ -0,0 +1,99 @@
+package org.luaj.vm2;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.lib.ZeroArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SharedGlobalsTest {
+
+    private static final String HANDLER =
+        "local n = ...\n" +
+            "local function fib(k) if k < 2 then return k end return fib(k - 1) + fib(k - 2) end\n" +
+            "local gen = coroutine.wrap(function() for i = 1, n do coroutine.yield(i) end end)\n" +
+            "local sum = 0\n" +
+            "for i = 1, n do sum = sum + gen() end\n" +
+            "local seen\n" +
+            "local ok = xpcall(function() error('e' .. n, 0) end, function(e) seen = e return e end)\n" +
+            "assert(not ok and seen:find('e' .. n .. '$'))\n" +
+            "return sum + fib(15), tostring(coroutine.running())\n";
+
+    @Test
+    public void testHandlersRunInParallel() throws Exception {
+        for (boolean stackless : new boolean[] { false, true }) {
+            final Globals g = JsePlatform.standardGlobals();
+            g.stackless = stackless;
+            final LuaValue handler = g.load(HANDLER, "handler");
+            g.share();
+            final String main = handler.invoke(LuaValue.valueOf(1)).tojstring(2);
+            final ExecutorService pool = Executors.newFixedThreadPool(8);
+            try {
+                final List<Future<String>> results = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    final int n = t + 10;
+                    results.add(pool.submit(() -> {
+                        String thread = null;
+                        for (int i = 0; i < 200; i++) {
+                            Varargs r = handler.invoke(LuaValue.valueOf(n));
+                            assertEquals(n * (n + 1) / 2 + 610, r.arg1().toint());
+                            assertTrue(thread == null || thread.equals(r.tojstring(2)));
+                            thread = r.tojstring(2);
+                        }
+                        return thread;
+                    }));
+                }
+                final List<String> threads = new ArrayList<>();
+                for (Future<String> f : results) {
+                    final String thread = f.get(60, TimeUnit.SECONDS);
+                    assertFalse(main.equals(thread));
+                    assertFalse(threads.contains(thread));
+                    threads.add(thread);
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            assertEquals(main, handler.invoke(LuaValue.valueOf(1)).tojstring(2));
+            assertSame(g.running, g.running());
+        }
+    }
+
+    @Test
+    public void testModulesAreLoadedOnce() throws Exception {
+        final Globals g = JsePlatform.standardGlobals();
+        final AtomicInteger loads = new AtomicInteger();
+        g.get("package").get("preload").set("counted", new ZeroArgFunction() {
+            public LuaValue call() {
+                loads.incrementAndGet();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new LuaError("interrupted");
+                }
+                return LuaValue.tableOf();
+            }
+        });
+        final LuaValue require = g.load("return require('counted')", "require");
+        g.share();
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<LuaValue>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++)
+                results.add(pool.submit(() -> require.call()));
+            final LuaValue module = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<LuaValue> f : results)
+                assertSame(module, f.get(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+    }
+}
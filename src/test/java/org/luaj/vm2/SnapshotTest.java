@@ -0,0 +1,81 @@
+package org.luaj.vm2;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotTest {
+
+    private static final String BOOT =
+        "local count = 0\n" +
+            "function bump() count = count + 1 return count end\n" +
+            "function peek() return count end\n" +
+            "local say = print\n" +
+            "function greet(name) say('hello ' .. name) end\n" +
+            "function string.shout(s) return s:upper() .. '!' end\n" +
+            "os.exit = nil\n" +
+            "config = { name = 'boot', list = { 1, 2, 3 } }\n" +
+            "config.self = config\n" +
+            "Point = {}\n" +
+            "Point.__index = Point\n" +
+            "setmetatable(Point, Point)\n" +
+            "function Point.new(x, y) return setmetatable({ x = x, y = y }, Point) end\n" +
+            "function Point:sum() return self.x + self.y end\n" +
+            "package.preload.mod = function() return { value = 42 } end\n" +
+            "mod = require('mod')\n";
+
+    private static Snapshot boot() {
+        Globals g = JsePlatform.standardGlobals();
+        g.load(BOOT, "boot").call();
+        return new Snapshot(g, JsePlatform::standardGlobals);
+    }
+
+    @Test
+    public void testForksStartInTheBootedState() {
+        Globals vm = boot().fork();
+        LuaValue r = vm.load(
+            "assert(bump() == 1 and bump() == 2 and peek() == 2)\n" +
+                "assert(string.shout('hi') == 'HI!')\n" +
+                "assert(os.exit == nil and os.time ~= nil)\n" +
+                "assert(config.self == config and #config.list == 3)\n" +
+                "assert(Point.new(1, 2):sum() == 3)\n" +
+                "assert(require('mod') == mod and mod.value == 42)\n" +
+                "assert(package.loaded.string == string)\n" +
+                "return config.name\n").call();
+        assertEquals("boot", r.tojstring());
+    }
+
+    @Test
+    public void testForksAreIndependent() {
+        Snapshot s = boot();
+        Globals a = s.fork(), b = s.fork();
+        a.load("bump() bump() config.name = 'a' config.list[4] = 4 x = 1").call();
+        b.load("bump()").call();
+        assertEquals(2, a.get("peek").call().toint());
+        assertEquals(1, b.get("peek").call().toint());
+        assertEquals("boot", b.get("config").get("name").tojstring());
+        assertEquals(3, b.get("config").get("list").length());
+        assertTrue(b.get("x").isnil());
+        assertEquals(0, s.fork().get("peek").call().toint());
+    }
+
+    @Test
+    public void testLibrariesAreBoundToTheFork() {
+        Globals vm = boot().fork();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        vm.STDOUT = new PrintStream(out, true);
+        vm.get("greet").call(LuaValue.valueOf("fork"));
+        assertEquals("hello fork", out.toString().trim());
+    }
+
+    @Test
+    public void testCoroutinesCannotBeCopied() {
+        Globals g = JsePlatform.standardGlobals();
+        g.load("co = coroutine.create(print)").call();
+        assertThrows(IllegalArgumentException.class, () -> new Snapshot(g, JsePlatform::standardGlobals));
+    }
+}
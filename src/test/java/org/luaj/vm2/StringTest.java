@@ -311,6 +311,34 @@ public class StringTest {
         assertEquals(-1, sub.indexOf(xyz, 7));
     }
 
+    @Test
+    public void testIndexOfInLongSubstring() {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < 1000; ++k)
+            sb.append("abcabd");
+        sb.append("needle").append("xyz");
+        LuaString str = LuaString.valueOf(sb.toString());
+        LuaString sub = str.substring(3, str.m_length);
+
+        LuaString needle = LuaString.valueOf("needle");
+        LuaString abd = LuaString.valueOf("abd");
+        LuaString z = LuaString.valueOf("z");
+        LuaString missing = LuaString.valueOf("needles");
+
+        assertEquals(6000, str.indexOf(needle, 0));
+        assertEquals(5997, sub.indexOf(needle, 0));
+        assertEquals(5997, sub.indexOf(needle, 5997));
+        assertEquals(-1, sub.indexOf(needle, 5998));
+        assertEquals(3, str.indexOf(abd, 0));
+        assertEquals(0, sub.indexOf(abd, 0));
+        assertEquals(5994, sub.indexOf(abd, 5992));
+        assertEquals(6008, str.indexOf(z, 0));
+        assertEquals(6005, sub.indexOf(z, 100));
+        assertEquals(6005, sub.indexOf((byte) 'z', 0));
+        assertEquals(-1, str.indexOf(missing, 0));
+        assertEquals(-1, sub.indexOf((byte) 'q', 0));
+    }
+
     @Test
     public void testLastIndexOfPatternInSubstring() {
         LuaString str = LuaString.valueOf("abcdef:ghi");
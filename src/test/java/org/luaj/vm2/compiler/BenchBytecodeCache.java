@@ -0,0 +1,89 @@
+package org.luaj.vm2.compiler;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Compare the startup cost of loading scripts: compiling the source each time, the first load through
+ * a {@link BytecodeCache} with an empty directory (compile and write), and a later load that finds the
+ * chunk written by an earlier run (read and undump).
+ * <p>
+ * usage: java org.luaj.vm2.compiler.BenchBytecodeCache [script ...]
+ */
+public class BenchBytecodeCache {
+    // scripts in the perf directory
+    public static String[] scripts = {
+        "perf/binarytrees.lua",
+        "perf/fannkuch.lua",
+        "perf/nbody.lua",
+        "perf/nsieve.lua",
+        "perf/coroutines.lua",
+    };
+
+    static final int ROUNDS = 200;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0)
+            scripts = args;
+        System.out.println("script                  source bytes  compile(us)  cold(us)  warm(us)  speedup");
+        for (String script : scripts)
+            bench(script);
+    }
+
+    private static void bench(String script) throws IOException {
+        Globals globals = JsePlatform.standardGlobals();
+        byte[] source;
+        InputStream is = globals.finder.findResource(script);
+        try {
+            source = is.readAllBytes();
+        } finally {
+            is.close();
+        }
+
+        // every round after as many rounds again to warm up; cold loads each get an empty directory
+        long compile = 0, cold = 0, warm = 0;
+        for (int n = 0; n < 2 * ROUNDS; n++) {
+            long t0 = System.nanoTime();
+            LuaC.instance.compile(new ByteArrayInputStream(source), script);
+            long t1 = System.nanoTime();
+
+            Path directory = Files.createTempDirectory("luaj-bench-cache");
+            try {
+                long t2 = System.nanoTime();
+                new BytecodeCache(LuaC.instance, directory, 1 << 20).compile(new ByteArrayInputStream(source), script);
+                long t3 = System.nanoTime();
+                // a new cache over the same directory, as after a restart
+                BytecodeCache cache = new BytecodeCache(LuaC.instance, directory, 1 << 20);
+                long t4 = System.nanoTime();
+                cache.compile(new ByteArrayInputStream(source), script);
+                long t5 = System.nanoTime();
+                if (cache.hitCount() != 1)
+                    throw new IllegalStateException(script + " was not read from the cache");
+                if (n >= ROUNDS) {
+                    compile += t1 - t0;
+                    cold += t3 - t2;
+                    warm += t5 - t4;
+                }
+            } finally {
+                delete(directory);
+            }
+        }
+
+        System.out.println(String.format("%-24s%12d  %11.1f  %8.1f  %8.1f  %6.1fx",
+            script, source.length, compile / 1e3 / ROUNDS, cold / 1e3 / ROUNDS, warm / 1e3 / ROUNDS, (double) compile / warm));
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.luaj.vm2.compiler;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BytecodeCacheTest {
+
+    private static final String SCRIPT =
+        "local function fib(n) if n < 2 then return n end return fib(n - 1) + fib(n - 2) end\n" +
+            "return fib(10), 'cached'\n";
+
+    private final Path directory;
+
+    public BytecodeCacheTest() throws IOException {
+        directory = Files.createTempDirectory("luaj-bytecode-cache");
+    }
+
+    @AfterEach
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    /**
+     * Compiler that counts how often it is really used.
+     */
+    static final class CountingCompiler implements Globals.Compiler {
+        int compiles;
+
+        public Prototype compile(InputStream stream, String chunkname) throws IOException {
+            compiles++;
+            return LuaC.instance.compile(stream, chunkname);
+        }
+    }
+
+    private List<Path> cacheFiles() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(directory)) {
+            for (Path f : dir)
+                files.add(f);
+        }
+        return files;
+    }
+
+    private static void assertRuns(Globals g, String chunkname) {
+        assertEquals(55, g.load(SCRIPT, chunkname).call().toint());
+    }
+
+    @Test
+    public void testWarmLoadSkipsCompiler() throws IOException {
+        CountingCompiler compiler = new CountingCompiler();
+        Globals cold = JsePlatform.standardGlobals();
+        new BytecodeCache(compiler, directory, 1 << 20).install(cold);
+        assertRuns(cold, "fib.lua");
+        assertEquals(1, compiler.compiles);
+        assertEquals(1, cacheFiles().size());
+
+        // a new cache over the same directory, as after a restart
+        BytecodeCache cache = new BytecodeCache(compiler, directory, 1 << 20);
+        Globals warm = JsePlatform.standardGlobals();
+        cache.install(warm);
+        assertRuns(warm, "fib.lua");
+        assertEquals(1, compiler.compiles);
+        assertEquals(1, cache.hitCount());
+        assertEquals(0, cache.missCount());
+    }
+
+    @Test
+    public void testCorruptFileIsRecompiled() throws IOException {
+        CountingCompiler compiler = new CountingCompiler();
+        BytecodeCache cache = new BytecodeCache(compiler, directory, 1 << 20);
+        Globals g = JsePlatform.standardGlobals();
+        cache.install(g);
+        assertRuns(g, "fib.lua");
+        Path file = cacheFiles().get(0);
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 0x55;
+        Files.write(file, bytes);
+
+        assertRuns(g, "fib.lua");
+        assertEquals(2, compiler.compiles);
+        assertRuns(g, "fib.lua");
+        assertEquals(2, compiler.compiles);
+        assertEquals(1, cache.hitCount());
+    }
+
+    @Test
+    public void testEntriesKeyedByChunkName() throws IOException {
+        Globals g = JsePlatform.standardGlobals();
+        new BytecodeCache(LuaC.instance, directory, 1 << 20).install(g);
+        assertRuns(g, "a.lua");
+        assertRuns(g, "b.lua");
+        assertEquals(2, cacheFiles().size());
+    }
+
+    @Test
+    public void testSizeBound() throws IOException {
+        Globals g = JsePlatform.standardGlobals();
+        new BytecodeCache(LuaC.instance, directory, 1024).install(g);
+        for (int i = 0; i < 20; i++)
+            g.load("return " + i + " .. '" + "x".repeat(100) + "'", "chunk" + i).call();
+        long total = 0;
+        for (Path f : cacheFiles())
+            total += Files.size(f);
+        assertTrue(total <= 1024);
+        assertFalse(cacheFiles().isEmpty());
+    }
+
+    @Test
+    public void testSizeBoundCountsExistingFiles() throws IOException {
+        Globals g = JsePlatform.standardGlobals();
+        new BytecodeCache(LuaC.instance, directory, 1 << 20).install(g);
+        for (int i = 0; i < 20; i++)
+            g.load("return " + i + " .. '" + "x".repeat(100) + "'", "chunk" + i).call();
+        assertEquals(20, cacheFiles().size());
+
+        // a smaller cache over the same files, as after a restart, evicts them at its first write
+        new BytecodeCache(LuaC.instance, directory, 1024).install(g);
+        g.load("return 'new'", "new.lua").call();
+        long total = 0;
+        for (Path f : cacheFiles())
+            total += Files.size(f);
+        assertTrue(total <= 1024);
+        assertTrue(cacheFiles().size() < 20);
+    }
+
+    @Test
+    public void testHitsOnlyTouchStaleFiles() throws IOException {
+        Globals g = JsePlatform.standardGlobals();
+        BytecodeCache cache = new BytecodeCache(LuaC.instance, directory, 1 << 20);
+        cache.install(g);
+        assertRuns(g, "fib.lua");
+        Path file = cacheFiles().get(0);
+
+        FileTime recent = FileTime.fromMillis(System.currentTimeMillis() - BytecodeCache.TOUCH_INTERVAL_MILLIS / 2);
+        Files.setLastModifiedTime(file, recent);
+        assertRuns(g, "fib.lua");
+        assertEquals(recent, Files.getLastModifiedTime(file));
+
+        FileTime stale = FileTime.fromMillis(System.currentTimeMillis() - 2 * BytecodeCache.TOUCH_INTERVAL_MILLIS);
+        Files.setLastModifiedTime(file, stale);
+        assertRuns(g, "fib.lua");
+        assertTrue(Files.getLastModifiedTime(file).compareTo(recent) > 0);
+        assertEquals(2, cache.hitCount());
+    }
+}
@@ -0,0 +1,80 @@
+package org.luaj.vm2.compiler;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PrototypeCacheTest {
+
+    private static final String COUNTER =
+        "local n = 0\n" +
+            "return function() n = n + 1 return n end\n";
+
+    @Test
+    public void testPrototypeSharedAcrossGlobals() throws Exception {
+        PrototypeCache cache = new PrototypeCache(LuaC.instance, 16);
+        Globals a = JsePlatform.standardGlobals();
+        Globals b = JsePlatform.standardGlobals();
+        cache.install(a);
+        cache.install(b);
+        Prototype pa = a.compilePrototype(new StringReader(COUNTER), "counter.lua");
+        Prototype pb = b.compilePrototype(new StringReader(COUNTER), "counter.lua");
+        assertSame(pa, pb);
+        assertEquals(1, cache.missCount());
+        assertEquals(1, cache.hitCount());
+    }
+
+    @Test
+    public void testClosuresKeepTheirOwnState() {
+        PrototypeCache cache = new PrototypeCache(LuaC.instance, 16);
+        Globals a = JsePlatform.standardGlobals();
+        Globals b = JsePlatform.standardGlobals();
+        cache.install(a);
+        cache.install(b);
+        LuaValue ca = a.load(COUNTER, "counter.lua").call();
+        LuaValue cb = b.load(COUNTER, "counter.lua").call();
+        ca.call();
+        assertEquals(2, ca.call().toint());
+        assertEquals(1, cb.call().toint());
+    }
+
+    @Test
+    public void testKeyedBySourceAndChunkName() throws Exception {
+        PrototypeCache cache = new PrototypeCache(LuaC.instance, 16);
+        Globals g = JsePlatform.standardGlobals();
+        cache.install(g);
+        Prototype p = g.compilePrototype(new StringReader("return 1"), "a.lua");
+        assertNotSame(p, g.compilePrototype(new StringReader("return 2"), "a.lua"));
+        assertNotSame(p, g.compilePrototype(new StringReader("return 1"), "b.lua"));
+        assertSame(p, g.compilePrototype(new StringReader("return 1"), "a.lua"));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testSizeBound() throws Exception {
+        PrototypeCache cache = new PrototypeCache(LuaC.instance, 2);
+        Globals g = JsePlatform.standardGlobals();
+        cache.install(g);
+        for (int i = 0; i < 5; i++)
+            g.compilePrototype(new StringReader("return " + i), "chunk");
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.evictionCount());
+        assertEquals(5, cache.missCount());
+    }
+
+    @Test
+    public void testErrorsAreNotCached() {
+        PrototypeCache cache = new PrototypeCache(LuaC.instance, 16);
+        Globals g = JsePlatform.standardGlobals();
+        cache.install(g);
+        assertThrows(LuaError.class, () -> g.load("return +", "bad.lua"));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,82 @@
+package org.luaj.vm2.compiler;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StripDebugTest {
+
+    private static final String SCRIPT =
+        "local up = 1\n" +
+            "local function f(a)\n" +
+            "  local b = a + up\n" +
+            "\n" +
+            "\n" +
+            "  return nothing.field + b\n" +
+            "end\n" +
+            "return f\n";
+
+    @Test
+    public void testStrippedCompileKeepsLineNumbers() {
+        String[] messages = new String[2];
+        for (int i = 0; i < 2; i++) {
+            Globals g = JsePlatform.debugGlobals();
+            LuaC.install(g, i == 1);
+            LuaValue f = g.load(SCRIPT, "strip.lua").call();
+            messages[i] = assertThrows(LuaError.class, () -> f.call(LuaValue.ONE)).getMessage();
+        }
+        assertTrue(messages[1].startsWith("strip.lua:6 "), messages[1]);
+        assertEquals(messages[0], messages[1]);
+    }
+
+    @Test
+    public void testStripDropsNames() throws Exception {
+        Globals g = JsePlatform.standardGlobals();
+        LuaC.install(g, true);
+        Prototype p = g.compilePrototype(new StringReader(SCRIPT), "strip.lua");
+        Prototype f = p.p[0];
+        assertNull(f.lineinfo);
+        assertNotNull(f.packedlineinfo);
+        assertEquals(0, f.locvars.length);
+        assertNull(f.getlocalname(1, 1));
+        assertNull(f.upvalues[0].name);
+        assertEquals("_ENV", p.upvalues[0].name.tojstring());
+    }
+
+    @Test
+    public void testPackedLinesMatchLineInfo() throws Exception {
+        StringBuilder sb = new StringBuilder("local x = 0\n");
+        for (int i = 0; i < 300; i++)
+            sb.append(i % 7 == 0 ? "\n\n\n" : "").append("x = x + ").append(i).append('\n');
+        sb.append("local function g() return x end\n".repeat(3));
+        Prototype full = LuaC.instance.compile(new java.io.ByteArrayInputStream(sb.toString().getBytes()), "lines");
+        Prototype stripped = LuaC.stripping.compile(new java.io.ByteArrayInputStream(sb.toString().getBytes()), "lines");
+        assertArrayEquals(full.lineinfo, stripped.getlineinfo());
+        for (int pc = 0; pc < full.lineinfo.length; pc++)
+            assertEquals(full.lineinfo[pc], stripped.getline(pc));
+        assertEquals(-1, stripped.getline(full.lineinfo.length));
+        assertTrue(stripped.packedlineinfo.length < full.lineinfo.length * 2);
+    }
+
+    @Test
+    public void testDebugLibSeesEmptyUpvalueNames() {
+        Globals g = JsePlatform.debugGlobals();
+        LuaC.install(g, true);
+        LuaValue r = g.load("local up = 5\n" +
+            "local function f() return up end\n" +
+            "local name, value = debug.getupvalue(f, 1)\n" +
+            "return name, value, debug.getinfo(1, 'l').currentline\n", "up.lua").invoke().arg1();
+        assertEquals("", r.tojstring());
+        assertEquals(5, g.load("local up = 5\n" +
+            "local function f() return up end\n" +
+            "return select(2, debug.getupvalue(f, 1))\n", "up.lua").call().toint());
+        assertEquals(2, g.load("local x = 1\nreturn debug.getinfo(1, 'l').currentline\n", "line.lua").call().toint());
+    }
+}
@@ -0,0 +1,243 @@
+package org.luaj.vm2.lib;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StringLibTest {
+
+    private final Globals globals = JsePlatform.standardGlobals();
+
+    private Varargs eval(String script) {
+        return globals.load(script).invoke();
+    }
+
+    @Test
+    public void testPatternIsCached() {
+        LuaValue p = LuaValue.valueOf("(%w+)=(%w+)");
+        assertSame(StringLib.Pattern.of(p.checkstring()), StringLib.Pattern.of(LuaValue.valueOf("(%w+)=(%w+)").checkstring()));
+    }
+
+    @Test
+    public void testLiteralPrefix() {
+        assertEquals("key", StringLib.Pattern.of(LuaValue.valueOf("(key)=(%d+)").checkstring()).prefix.tojstring());
+        assertEquals("ab", StringLib.Pattern.of(LuaValue.valueOf("ab+c").checkstring()).prefix.tojstring());
+        assertNull(StringLib.Pattern.of(LuaValue.valueOf("a?b").checkstring()).prefix);
+        assertTrue(StringLib.Pattern.of(LuaValue.valueOf("^abc").checkstring()).anchor);
+        assertNotNull(StringLib.Pattern.of(LuaValue.valueOf("%d+x").checkstring()).first);
+    }
+
+    @Test
+    public void testGmatchWithPrefix() {
+        Varargs r = eval(
+            "local t = {}\n" +
+                "for k, v in string.gmatch('a=1, key=22, x=3, key=4', 'key=(%d+)') do t[#t + 1] = k end\n" +
+                "return table.concat(t, ',')");
+        assertEquals("22,4", r.arg1().tojstring());
+    }
+
+    @Test
+    public void testGsubWithPrefix() {
+        Varargs r = eval("return string.gsub('one two three two', 'two', '2')");
+        assertEquals("one 2 three 2", r.arg1().tojstring());
+        assertEquals(2, r.arg(2).toint());
+        r = eval("return string.gsub('abc', '%d*', '-')");
+        assertEquals("-a-b-c-", r.arg1().tojstring());
+    }
+
+    @Test
+    public void testGmatchCaretIsLiteral() {
+        assertEquals("^a^a", eval(
+            "local s = '' for w in string.gmatch('x^ay^a', '^a') do s = s .. w end return s").arg1().tojstring());
+        assertEquals(1, eval("return string.find('^abc', '^^a')").arg1().toint());
+    }
+
+    @Test
+    public void testMalformedPatternErrorsAreLazy() {
+        assertTrue(eval("return string.find('b', 'a%')").arg1().isnil());
+        LuaError e = assertThrows(LuaError.class, () -> eval("return string.find('a', 'a%')"));
+        assertTrue(e.getMessage().contains("malformed pattern (ends with '%')"));
+        e = assertThrows(LuaError.class, () -> eval("return string.find('a', '[a')"));
+        assertTrue(e.getMessage().contains("missing ']'"));
+    }
+
+    @Test
+    public void testRecursionLimitKept() {
+        LuaError e = assertThrows(LuaError.class, () -> eval("return string.find(string.rep('a', 300), string.rep('a?', 300))"));
+        assertTrue(e.getMessage().contains("pattern too complex"));
+    }
+
+    @Test
+    public void testSetsAndFrontier() {
+        assertEquals("THE", eval("return string.match('the (quick) fox', '%f[%a]%a+'):upper()").arg1().tojstring());
+        assertEquals("(quick)", eval("return string.match('the (quick) fox', '%b()')").arg1().tojstring());
+        assertEquals("x-y", eval("return string.match('12x-y34', '[^%d]+')").arg1().tojstring());
+    }
+
+    @Test
+    public void testLiteralGsubAndGmatch() {
+        assertTrue(StringLib.Pattern.of(LuaValue.valueOf("abc").checkstring()).literal);
+        assertFalse(StringLib.Pattern.of(LuaValue.valueOf("ab+").checkstring()).literal);
+        assertFalse(StringLib.Pattern.of(LuaValue.valueOf("(ab)").checkstring()).literal);
+        Varargs r = eval("local s = string.rep('x', 5000) .. 'ab' .. string.rep('y', 5000) .. 'ab'\n" +
+            "local n = 0 for m in string.gmatch(s, 'ab') do n = n + 1 end\n" +
+            "local t, c = string.gsub(s, 'ab', '%0%0')\n" +
+            "return n, c, #t, t:find('abab', 1, true)");
+        assertEquals(2, r.arg(1).toint());
+        assertEquals(2, r.arg(2).toint());
+        assertEquals(10008, r.arg(3).toint());
+        assertEquals(5001, r.arg(4).toint());
+    }
+
+    @Test
+    public void testCompiledCacheKeepsEntriesInUse() {
+        StringLib.CompiledCache<String> cache = new StringLib.CompiledCache<String>(4);
+        LuaString hot = LuaString.valueOf("hot");
+        cache.put(hot, "h");
+        for (int i = 0; i < 100; i++) {
+            assertEquals("h", cache.get(hot));
+            cache.put(LuaString.valueOf("cold" + i), "c");
+            assertTrue(cache.size() <= 4);
+        }
+        assertEquals("h", cache.get(hot));
+        assertNull(cache.get(LuaString.valueOf("cold0")));
+
+        // a key sliced from a larger string is stored as a copy
+        LuaString slice = LuaString.valueOf("xxhotxx").substring(2, 5);
+        cache.put(slice, "s");
+        assertEquals("s", cache.get(hot));
+    }
+
+    @Test
+    public void testFormatSpecIsCached() {
+        StringLib lib = new StringLib();
+        StringLib.FormatSpec spec = lib.formatSpec(LuaValue.valueOf("x=%5d%%, y=%.2f\n").checkstring());
+        assertSame(spec, lib.formatSpec(LuaValue.valueOf("x=%5d%%, y=%.2f\n").checkstring()));
+        assertEquals(2, spec.descs.length);
+        assertEquals("x=", spec.literals[0].tojstring());
+        assertEquals("%, y=", spec.literals[1].tojstring());
+        assertEquals("\n", spec.literals[2].tojstring());
+    }
+
+    @Test
+    public void testFormatIntegers() {
+        assertEquals("[   42|-42  |+0042|00042|2a|2A|52|-ff|]", eval(
+            "return string.format('[%5d|%-5d|%+05d|%.5d|%x|%X|%o|%x|%.0d]', 42, -42, 42, 42, 42, 42, 42, -255, 0)").arg1().tojstring());
+        assertEquals("-9223372036854775808", eval("return string.format('%d', -0x8000000000000000)").arg1().tojstring());
+    }
+
+    @Test
+    public void testFormatFixed() {
+        assertEquals("3.14|  -2.50|0.12|0.38|1.000000|+0001.5|1.5   |", eval(
+            "return string.format('%.2f|%7.2f|%.2f|%.2f|%f|%+07.1f|%-6.1f|', 3.14159, -2.5, 0.125, 0.375, 1, 1.5, 1.5)").arg1().tojstring());
+        assertEquals("0.03778", eval("return string.format('%.5f', 0.037785)").arg1().tojstring());
+        assertEquals("1e+300", eval("return string.format('%.0e', 1e300)").arg1().tojstring());
+        assertEquals("2|2|1e+300", eval("return string.format('%.f|%.d|%.e', 1.5, 2, 1e300)").arg1().tojstring());
+    }
+
+    @Test
+    public void testFormatErrorsInOrder() {
+        LuaError e = assertThrows(LuaError.class, () -> eval("return string.format('%d %123d', 'x', 1)"));
+        assertTrue(e.getMessage().contains("number expected"));
+        e = assertThrows(LuaError.class, () -> eval("return string.format('%d %123d', 1, 1)"));
+        assertTrue(e.getMessage().contains("width or precision too long"));
+        e = assertThrows(LuaError.class, () -> eval("return string.format('%y', 1)"));
+        assertTrue(e.getMessage().contains("invalid option '%y'"));
+    }
+
+    @Test
+    public void testPackRoundTrip() {
+        Varargs r = eval("local s = string.pack('<i4 >h B z s1 d', -2, 0x102, 255, 'hi', 'abc', 1.5)\n" +
+            "return #s, table.concat({s:byte(1, 7)}, ','), string.unpack('<i4 >h B z s1 d', s)");
+        assertEquals(4 + 2 + 1 + 3 + 4 + 8, r.arg(1).toint());
+        assertEquals("254,255,255,255,1,2,255", r.arg(2).tojstring());
+        assertEquals(-2, r.arg(3).toint());
+        assertEquals(0x102, r.arg(4).toint());
+        assertEquals(255, r.arg(5).toint());
+        assertEquals("hi", r.arg(6).tojstring());
+        assertEquals("abc", r.arg(7).tojstring());
+        assertEquals(1.5, r.arg(8).todouble());
+        assertEquals(23, r.arg(9).toint());
+    }
+
+    @Test
+    public void testPackAlignment() {
+        assertEquals(8, eval("return string.packsize('!4 b i4')").arg1().toint());
+        assertEquals(16, eval("return string.packsize('!8 b d')").arg1().toint());
+        assertEquals(9, eval("return string.packsize('b d')").arg1().toint());
+        assertEquals(4, eval("return string.packsize('!4 b Xi4')").arg1().toint());
+        assertEquals(3, eval("return #string.pack('i3', -1)").arg1().toint());
+        Varargs r = eval("return string.unpack('!4 b i4', string.pack('!4 b i4', 1, 2))");
+        assertEquals(2, r.arg(2).toint());
+        assertEquals(9, r.arg(3).toint());
+    }
+
+    @Test
+    public void testPackWideIntegers() {
+        Varargs r = eval("return string.unpack('<i16 >I9', string.pack('<i16 >I9', -3, 7))");
+        assertEquals(-3, r.arg(1).toint());
+        assertEquals(7, r.arg(2).toint());
+        LuaError e = assertThrows(LuaError.class, () -> eval("return string.unpack('i9', string.rep('\\1', 9))"));
+        assertTrue(e.getMessage().contains("9-byte integer does not fit into Lua Integer"));
+    }
+
+    @Test
+    public void testPackErrors() {
+        LuaError e = assertThrows(LuaError.class, () -> eval("return string.pack('b', 128)"));
+        assertTrue(e.getMessage().contains("integer overflow"));
+        e = assertThrows(LuaError.class, () -> eval("return string.pack('i4 y', 'x')"));
+        assertTrue(e.getMessage().contains("number expected"));
+        e = assertThrows(LuaError.class, () -> eval("return string.pack('i4 y', 1)"));
+        assertTrue(e.getMessage().contains("invalid format option 'y'"));
+        e = assertThrows(LuaError.class, () -> eval("return string.packsize('i17')"));
+        assertTrue(e.getMessage().contains("integral size (17) out of limits [1,16]"));
+        e = assertThrows(LuaError.class, () -> eval("return string.packsize('!4 i3')"));
+        assertTrue(e.getMessage().contains("format asks for alignment not power of 2"));
+        e = assertThrows(LuaError.class, () -> eval("return string.packsize('s')"));
+        assertTrue(e.getMessage().contains("variable-length format"));
+        e = assertThrows(LuaError.class, () -> eval("return string.unpack('i4', 'abc')"));
+        assertTrue(e.getMessage().contains("data string too short"));
+        e = assertThrows(LuaError.class, () -> eval("return string.unpack('z', 'abc')"));
+        assertTrue(e.getMessage().contains("unfinished string for format 'z'"));
+    }
+
+    @Test
+    public void testPackFormatIsCached() {
+        StringLib.PackFormat f = StringLib.PackFormat.of(LuaValue.valueOf("<i4 !8 Xd z").checkstring());
+        assertSame(f, StringLib.PackFormat.of(LuaValue.valueOf("<i4 !8 Xd z").checkstring()));
+        assertEquals(3, f.count);
+        assertEquals(StringLib.PackFormat.KPADDALIGN, f.kind[1]);
+        assertEquals(8, f.align[1]);
+    }
+
+    @Test
+    public void testGsubWithoutMatchReturnsSubject() {
+        LuaValue s = LuaValue.valueOf("no digits in here");
+        Varargs r = globals.get("string").get("gsub").invoke(LuaValue.varargsOf(s, LuaValue.valueOf("%d"), LuaValue.valueOf("#")));
+        assertSame(s, r.arg1());
+        assertEquals(0, r.arg(2).toint());
+    }
+
+    @Test
+    public void testLongCapturesShareSubjectBytes() {
+        LuaString s = LuaValue.valueOf("key=" + "v".repeat(100) + ";").checkstring();
+        Varargs r = globals.get("string").get("match").invoke(LuaValue.varargsOf(s, LuaValue.valueOf("(%w+)=(%w+)")));
+        assertEquals("key", r.arg(1).tojstring());
+        assertSame(s.m_bytes, r.arg(2).checkstring().m_bytes);
+        assertEquals(100, r.arg(2).length());
+    }
+
+    @Test
+    public void testGsubReplacementSpans() {
+        assertEquals("[b=a] [d=c] e", eval("return (string.gsub('a=b c=d e', '(%w)=(%w)', '[%2=%1]'))").arg1().tojstring());
+        assertEquals("x%y-x", eval("return (string.gsub('x', '%w', '%0%%y-%0'))").arg1().tojstring());
+        assertEquals("1 b 1", eval("return (string.gsub('a b a', '%w', {a = 1, b = false}))").arg1().tojstring());
+        assertEquals("A b A", eval("return (string.gsub('a b a', 'a', string.upper))").arg1().tojstring());
+    }
+}
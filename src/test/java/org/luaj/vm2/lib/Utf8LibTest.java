@@ -0,0 +1,95 @@
+package org.luaj.vm2.lib;
+
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Utf8LibTest {
+
+    private final Globals globals = JsePlatform.standardGlobals();
+
+    private Varargs eval(String script) {
+        return globals.load(script).invoke();
+    }
+
+    @Test
+    public void testChar() {
+        LuaString s = eval("return utf8.char(72, 233, 0x20AC, 0x1F600)").arg1().checkstring();
+        assertEquals(1 + 2 + 3 + 4, s.length());
+        assertEquals("H\u00e9\u20ac\ud83d\ude00", s.tojstring());
+        assertEquals("", eval("return utf8.char()").arg1().tojstring());
+        assertThrows(LuaError.class, () -> eval("return utf8.char(0x110000)"));
+        assertThrows(LuaError.class, () -> eval("return utf8.char(-1)"));
+    }
+
+    @Test
+    public void testSupplementaryCharactersRoundTrip() {
+        String java = "a\ud83d\ude00b";
+        LuaString s = LuaValue.valueOf(java);
+        assertEquals(6, s.length());
+        assertTrue(s.isValidUtf8());
+        assertEquals(java, s.tojstring());
+        assertEquals(0x1F600, LuaString.decodeUtf8(s.m_bytes, s.m_offset + 1, s.m_offset + s.m_length));
+    }
+
+    @Test
+    public void testLen() {
+        globals.set("s", LuaValue.valueOf("h\u00e9llo\u20ac"));
+        assertEquals(6, eval("return utf8.len(s)").arg1().toint());
+        assertEquals(5, eval("return utf8.len(s, 2)").arg1().toint());
+        assertEquals(1, eval("return utf8.len(s, -3)").arg1().toint());
+        Varargs r = eval("return utf8.len('ab\\255c')");
+        assertTrue(r.arg1().isnil());
+        assertEquals(3, r.arg(2).toint());
+        assertThrows(LuaError.class, () -> eval("return utf8.len('abc', 5)"));
+    }
+
+    @Test
+    public void testCodepoint() {
+        globals.set("s", LuaValue.valueOf("h\u00e9\u20ac"));
+        assertEquals(104, eval("return utf8.codepoint(s)").arg1().toint());
+        Varargs r = eval("return utf8.codepoint(s, 1, -1)");
+        assertEquals(3, r.narg());
+        assertEquals(0xE9, r.arg(2).toint());
+        assertEquals(0x20AC, r.arg(3).toint());
+        assertEquals(0, eval("return utf8.codepoint(s, 3, 2)").narg());
+        LuaError e = assertThrows(LuaError.class, () -> eval("return utf8.codepoint(s, 3)"));
+        assertTrue(e.getMessage().contains("invalid UTF-8 code"));
+    }
+
+    @Test
+    public void testCodes() {
+        globals.set("s", LuaValue.valueOf("a\u00e9\u20ac\ud83d\ude00"));
+        assertEquals("1:97,2:233,4:8364,7:128512,", eval(
+            "local t = '' for p, c in utf8.codes(s) do t = t .. p .. ':' .. c .. ',' end return t").arg1().tojstring());
+        assertThrows(LuaError.class, () -> eval("for p, c in utf8.codes('a\\128') do end"));
+    }
+
+    @Test
+    public void testOffset() {
+        globals.set("s", LuaValue.valueOf("a\u00e9\u20acz"));
+        assertEquals(1, eval("return utf8.offset(s, 1)").arg1().toint());
+        assertEquals(2, eval("return utf8.offset(s, 2)").arg1().toint());
+        assertEquals(4, eval("return utf8.offset(s, 3)").arg1().toint());
+        assertEquals(7, eval("return utf8.offset(s, 4)").arg1().toint());
+        assertEquals(8, eval("return utf8.offset(s, 5)").arg1().toint());
+        assertTrue(eval("return utf8.offset(s, 6)").arg1().isnil());
+        assertEquals(7, eval("return utf8.offset(s, -1)").arg1().toint());
+        assertEquals(4, eval("return utf8.offset(s, -2)").arg1().toint());
+        assertEquals(4, eval("return utf8.offset(s, 0, 5)").arg1().toint());
+        assertThrows(LuaError.class, () -> eval("return utf8.offset(s, 1, 3)"));
+    }
+
+    @Test
+    public void testCharpattern() {
+        globals.set("s", LuaValue.valueOf("a\u00e9\u20ac"));
+        assertEquals(3, eval("local n = 0 for c in s:gmatch(utf8.charpattern) do n = n + 1 end return n").arg1().toint());
+        assertSame(globals.get("utf8"), eval("return require('utf8')").arg1());
+    }
+}
@@ -0,0 +1,53 @@
+-- Coroutine switch benchmark
+-- Measures resume/yield round trips per second, through coroutine.resume
+-- and through the function returned by coroutine.wrap, and the cost of
+-- creating short-lived generator coroutines.
+
+local N = tonumber(arg and arg[1]) or 100000
+
+local function report(name, count, seconds)
+  if seconds <= 0 then seconds = 0.001 end
+  print(string.format("%-12s %8d in %6.3f s  %10.0f /s", name, count, seconds, count / seconds))
+end
+
+local function resumes(n)
+  local co = coroutine.create(function(x)
+    while true do x = coroutine.yield(x + 1) end
+  end)
+  local x = 0
+  local t0 = os.clock()
+  for i = 1, n do
+    local ok
+    ok, x = coroutine.resume(co, x)
+  end
+  report("resume", n, os.clock() - t0)
+  assert(x == n)
+end
+
+local function wraps(n)
+  local gen = coroutine.wrap(function(x)
+    while true do x = coroutine.yield(x + 1) end
+  end)
+  local x = 0
+  local t0 = os.clock()
+  for i = 1, n do x = gen(x) end
+  report("wrap", n, os.clock() - t0)
+  assert(x == n)
+end
+
+local function generators(n)
+  local function range(k)
+    return coroutine.wrap(function() for i = 1, k do coroutine.yield(i) end end)
+  end
+  local sum = 0
+  local t0 = os.clock()
+  for i = 1, n do
+    for v in range(3) do sum = sum + v end
+  end
+  report("generators", n, os.clock() - t0)
+  assert(sum == 6 * n)
+end
+
+resumes(N)
+wraps(N)
+generators(math.floor(N / 10))